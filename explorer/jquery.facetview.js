@@ -208,6 +208,13 @@ search_url
 ----------
 The URL at the index to which searches should be submitted in order to retrieve JSON results.
 
+facet_summary_url
+-----------------
+The URL of a document holding precomputed terms facets, like the summary/facets document written while indexing.
+Its facets (under "_source.facets", or "facets" for a plain json file) are shown instead of asking the index for
+them as long as nothing is selected and no query is typed. Facets with a facet_filter or sorted by anything but
+count, and every facet once a selection is made, are still computed by the index.
+
 datatype
 --------
 The datatype that should be used when submitting a search to the index - e.g. JSON for local, JSONP for remote.
@@ -409,6 +416,7 @@ search box - the end user will not know they are happening.
             "result_display": resdisplay,
             "display_images": false,
             "search_url":"",
+            "facet_summary_url": false,
             "datatype":"jsonp",
             "initialsearch":true,
             "fields": false,
@@ -861,6 +869,17 @@ search box - the end user will not know they are happening.
             options.rawdata = sdata;
             // get the data and parse from the es layout
             var data = parseresults(sdata);
+            for ( var each = 0; each < options.facets.length; each++ ) {
+                var summarized = options.summarized[ options.facets[each]['field'] ];
+                if ( summarized ) {
+                    var size = 'size' in options.facets[each] ? parseInt(options.facets[each]['size']) : 10;
+                    var facetsobj = new Object();
+                    for ( var thing = 0; thing < summarized['terms'].length && thing < size; thing++ ) {
+                        facetsobj[ summarized['terms'][thing]['term'] ] = summarized['terms'][thing]['count'];
+                    }
+                    data["facets"][ options.facets[each]['field'] ] = facetsobj;
+                }
+            }
             options.data = data;
 
             // for each filter setup, find the results for it and append them to the relevant filter
@@ -981,6 +1000,24 @@ search box - the end user will not know they are happening.
             return rqs;
         };
 
+        // precomputed facets, loaded before the first search when facet_summary_url is set
+        var facetsummary = false;
+
+        // the precomputed facet of a field, if it can stand for the facet the index would compute
+        var summaryfacet = function(facet) {
+            if ( !facetsummary || !(facet['field'] in facetsummary) || facet['facet_filter'] ) {
+                return false;
+            }
+            if ( facet['order'] && facet['order'] != 'count' ) {
+                return false;
+            }
+            if ( $('.facetview_filterselected',obj).length || !$.isEmptyObject(options.predefined_filters) ||
+                    options.q != "" || options.filter ) {
+                return false;
+            }
+            return facetsummary[ facet['field'] ];
+        };
+
         // build the search query URL based on current params
         var elasticsearchquery = function() {
             var qs = {};
@@ -1082,7 +1119,13 @@ search box - the end user will not know they are happening.
             options.partial_fields ? qs['partial_fields'] = options.partial_fields : "";
             // set any facets
             qs['facets'] = {};
+            options.summarized = {};
             for ( var item = 0; item < options.facets.length; item++ ) {
+                var summarized = summaryfacet(options.facets[item]);
+                if ( summarized ) {
+                    options.summarized[ options.facets[item]['field'] ] = summarized;
+                    continue;
+                }
                 var fobj = jQuery.extend(true, {}, options.facets[item] );
                 var facet_filter = fobj['facet_filter'];
                 delete fobj['display'];
@@ -1106,6 +1149,7 @@ search box - the end user will not know they are happening.
                 }
             }
             jQuery.extend(true, qs['facets'], options.extra_facets );
+            $.isEmptyObject(qs['facets']) ? delete qs['facets'] : "";
             // set elasticsearch filter, if any
             // set any filter
             if (options.filter) {
@@ -1126,6 +1170,26 @@ search box - the end user will not know they are happening.
         // execute a search
         var dosearch = function() {
             jQuery('.notify_loading').show();
+            if ( options.facet_summary_url && facetsummary === false ) {
+                // without a summary every facet is computed by the index
+                var nosummary = function() {
+                    facetsummary = {};
+                    dosearch();
+                };
+                $.ajax({
+                    type: "get",
+                    url: options.facet_summary_url,
+                    dataType: options.datatype,
+                    timeout: 10000,
+                    success: function(data) {
+                        var source = data._source ? data._source : data;
+                        source.facets ? facetsummary = source.facets : facetsummary = {};
+                        dosearch();
+                    },
+                    error: nosummary
+                });
+                return;
+            }
             // update the options with the latest q value
             if ( options.searchbox_class.length == 0 ) {
                 options.q = $('.facetview_freetext', obj).val();
@@ -1,30 +1,84 @@
 from __future__ import print_function
+import base64
 from collections import defaultdict
+from itertools import islice
+import multiprocessing
 import elasticsearch as es
 from elasticsearch.helpers import scan
 from jsonpath import jsonpath
 
+from . import smile
+from .cache import PageCache
+
+# every field a page document may hold its content in, see _page_content,
+# and the size of its json, see _page_size
+_CONTENT_FIELDS = 'content,content_smile,content_blob,content_bytes'
+
 
 class ExtractorError(RuntimeError):
     def __init__(self, *args, **kwargs):
         super(RuntimeError, self).__init__(*args, **kwargs)
 
 
+# state of the worker processes of BaseExtractor.sliced, inherited when
+# the pool forks so that neither the extractor nor the user functions
+# need to be pickled
+_worker = {}
+
+
+def _fork_context():
+    """
+    The workers of BaseExtractor.sliced must be forked to inherit _worker,
+    whatever the default start method of the platform is.
+    """
+    if not hasattr(multiprocessing, 'get_context'):
+        return multiprocessing  # python 2 always forks on posix
+    try:
+        return multiprocessing.get_context('fork')
+    except ValueError:
+        raise ExtractorError(
+            "sliced needs the fork start method, not available on this platform"
+        )
+
+
+def _init_worker():
+    extractor = _worker['extractor']
+    # connections must not be shared with the parent process
+    extractor.client = es.Elasticsearch(hosts=extractor.nodes)
+
+
+def _run_slice(bounds):
+    extractor = _worker['extractor']
+    extractor._slice = bounds
+    results = list(getattr(extractor, _worker['method'])(*_worker['args']))
+    return results, dict(extractor.report)
+
+
 class BaseExtractor(object):
     def __init__(self, nodes, index_name="jsonpedia",
-                 section_type="section", page_type="page"):
+                 section_type="section", page_type="page",
+                 cache_bytes=256 * 1024 * 1024, prefetch=100, client=None,
+                 dump_dir=None):
         """
         Initialize the extractor with the given elasticsearch nodes.
         :param nodes: a list of dictionaries in the form {'host': '<hostname>', 'port': '<port number>'}
         :param index_name: name of the index
         :param section_type: name of the type that holds the section documents in elasticsearch
         :param page_type: name of the type that holds the page documents in elasticsearch
+        :param cache_bytes: size of the page cache, in bytes of json
+        :param prefetch: number of upcoming sections whose pages are fetched with a single multi-get
+        :param client: an elasticsearch client to share with other extractors, one is created if missing
+        :param dump_dir: enriched dump of an index built with --content-storage dump
         """
         self.index_name = index_name
         self.section_type = section_type
         self.page_type = page_type
-        self.client = es.Elasticsearch(hosts=nodes)
-        self._page_cache = {}
+        self.prefetch = prefetch
+        self.nodes = nodes
+        self.dump_dir = dump_dir
+        self.client = client or es.Elasticsearch(hosts=nodes)
+        self._slice = None  # page_id range scanned by a worker of sliced
+        self._page_cache = PageCache(cache_bytes)
         self.report = defaultdict(int)  # dictionary with default value 0
 
     def sections_with_content(self, query):
@@ -36,8 +90,115 @@ class BaseExtractor(object):
         :param query: the elasticsearch query
         :return: all the tuples (es_document, dom_fragment)
         """
-        for s in self.sections_from_query(query):
-            yield (s, self._extract_section_data(s))
+        sections = self.sections_from_query(query)
+        while True:
+            batch = list(islice(sections, max(self.prefetch, 1)))
+            if not batch:
+                break
+            self._prefetch_pages(batch)
+            for s in batch:
+                yield (s, self._extract_section_data(s))
+
+    def sliced(self, method, args=(), workers=4, slices=None, ordered=False):
+        """
+        Run one of the generator methods of the extractor, such as
+        get_values, over page_id ranges of the index in parallel.
+        Every slice is scanned and processed by a worker process, the
+        results of a slice are yielded once it is done.
+        The report counters of the slices are summed into self.report.
+        :param method: name of the method, or the method itself
+        :param args: arguments of the method
+        :param workers: number of worker processes
+        :param slices: number of page_id ranges, 4 per worker by default
+        :param ordered: yield the slices in page_id order instead of as soon as they are done
+        """
+        if callable(method):
+            method = method.__name__
+        bounds = self._page_id_slices(slices or workers * 4)
+
+        context = _fork_context()
+        _worker.update(extractor=self, method=method, args=tuple(args))
+        pool = context.Pool(workers, _init_worker)
+        self.report = defaultdict(int)
+        try:
+            run = pool.imap if ordered else pool.imap_unordered
+            for results, report in run(_run_slice, bounds):
+                for k, v in report.items():
+                    self.report[k] += v
+                for r in results:
+                    yield r
+        finally:
+            pool.terminate()
+            pool.join()
+            _worker.clear()
+
+    def _page_id_slices(self, slices):
+        """
+        Split the page ids of the sections into ranges of equal width.
+        :return: a list of (first id, last id + 1) tuples
+        """
+        res = self.client.search(self.index_name, self.section_type, body={
+            "size": 0,
+            "aggs": {
+                "min_id": {"min": {"field": "page_id"}},
+                "max_id": {"max": {"field": "page_id"}},
+            }
+        })
+        low = res['aggregations']['min_id']['value']
+        high = res['aggregations']['max_id']['value']
+        if low is None or high is None:
+            return []
+
+        low, high = int(low), int(high) + 1
+        width = max((high - low + slices - 1) // slices, 1)
+        return [(b, min(b + width, high)) for b in range(low, high, width)]
+
+    @staticmethod
+    def _sliced_query(query, first, end):
+        """
+        Restrict a query to the pages whose id is in [first, end).
+        """
+        sliced = dict(query)
+        sliced['query'] = {"bool": {"must": [
+            query.get('query', {"match_all": {}}),
+            {"range": {"page_id": {"gte": first, "lt": end}}},
+        ]}}
+        return sliced
+
+    def _prefetch_pages(self, sections):
+        """
+        Fetch with a single multi-get the pages of the given sections
+        that are neither cached nor needed because the section holds
+        its own content.
+        Sections without a page_id are left to _page_from_title.
+        """
+        ids = []
+        for s in sections:
+            if 'section_content' in s or 'page_id' not in s:
+                continue
+            page_id = s['page_id']
+            if page_id not in self._page_cache and page_id not in ids:
+                ids.append(page_id)
+        if not ids:
+            return
+
+        res = self.client.mget(
+            body={'docs': [{'_id': i, '_routing': i} for i in ids]},
+            index=self.index_name, doc_type=self.page_type,
+            _source_include=_CONTENT_FIELDS
+        )
+        for page_id, doc in zip(ids, res['docs']):
+            if doc.get('found'):
+                self._page_cache.put(page_id,
+                                     self._page_content(doc['_source']),
+                                     self._page_size(doc['_source']))
+                self.report['prefetched'] += 1
+
+    def cache_stats(self):
+        """
+        :return: the statistics of the page cache
+        """
+        return self._page_cache.stats()
 
     def sections_from_query(self, query):
         """
@@ -47,6 +208,8 @@ class BaseExtractor(object):
         :return:
         """
         self.report = defaultdict(int)
+        if self._slice is not None:
+            query = self._sliced_query(query, *self._slice)
         for r in scan(client=self.client, query=query,
                       doc_type=self.section_type,
                       _source=True):
@@ -59,7 +222,8 @@ class BaseExtractor(object):
         It will then cache it.
         :param title: Title of the page to look for
         """
-        if not title in self._page_cache:
+        page = self._page_cache.get(title)
+        if page is None:
             query = {"query": {"match": {"title": title}}}
             res = self.client.search(self.index_name, self.page_type,
                                      body=query, size=1, _source=True)
@@ -68,10 +232,64 @@ class BaseExtractor(object):
                     "page with title '{}' not found".format(title)
                 )
 
-            self._page_cache[title] = \
-                res['hits']['hits'][0]['_source']['content']
+            source = res['hits']['hits'][0]['_source']
+            page = self._page_content(source)
+            self._page_cache.put(title, page, self._page_size(source))
 
-        return self._page_cache[title]
+        return page
+
+    def _page_from_id(self, page_id):
+        """
+        Real-time get of the page with the given id, routed by page id
+        like every document of the page.
+        It will then cache it.
+        :param page_id: id of the page, as found in its section documents
+        """
+        page = self._page_cache.get(page_id)
+        if page is None:
+            try:
+                res = self.client.get(self.index_name, page_id,
+                                      doc_type=self.page_type,
+                                      routing=page_id,
+                                      _source_include=_CONTENT_FIELDS)
+            except es.NotFoundError:
+                raise ExtractorError(
+                    "page with id '{}' not found".format(page_id)
+                )
+
+            page = self._page_content(res['_source'])
+            self._page_cache.put(page_id, page, self._page_size(res['_source']))
+
+        return page
+
+    def _page_content(self, source):
+        """
+        Decode the enriched page of a page document, whichever way the
+        indexer stored it: as json, as deflated smile, or in an enriched
+        dump next to the index.
+        :param source: the json source of the elasticsearch page document
+        """
+        if 'content' in source:
+            return source['content']
+        if 'content_smile' in source:
+            return smile.loads(base64.b64decode(source['content_smile']),
+                               deflated=True)
+        if 'content_blob' in source:
+            if self.dump_dir is None:
+                raise ExtractorError(
+                    "the pages are in an enriched dump, dump_dir is needed"
+                )
+            return smile.read_dump_page(self.dump_dir, source['content_blob'])
+        raise ExtractorError("page document without content")
+
+    @staticmethod
+    def _page_size(source):
+        """
+        :param source: the json source of the elasticsearch page document
+        :return: size of the json of the page as recorded by the indexer,
+        None for the indexes built before it was recorded
+        """
+        return source.get('content_bytes')
 
     def processed(self, success=True):
         """
@@ -85,13 +303,20 @@ class BaseExtractor(object):
 
     def _extract_section_data(self, section_source):
         """
-        Given a section extract the relevant json for it
+        Given a section extract the relevant json for it.
+        Sections indexed with their own content are used as they are,
+        otherwise the section is looked up in the whole page.
         :param section_source: the json source of the elasticsearch section docuement
         :return: the json representation of the section's content
         """
-        page_title = section_source['page_title']
+        if 'section_content' in section_source:
+            return [section_source['section_content']]
+
         section_title = section_source['section_title']
-        page_json = self._page_from_title(page_title)
+        if 'page_id' in section_source:
+            page_json = self._page_from_id(section_source['page_id'])
+        else:
+            page_json = self._page_from_title(section_source['page_title'])
         try:
             return jsonpath(
                 page_json,
@@ -117,15 +342,27 @@ class SimpleExtractor(BaseExtractor):
         :param query: the elasticsearch query
         :param function: the function to apply
         """
+        for values in self.section_values(query, function):
+            for r in values:
+                yield r
+
+    def section_values(self, query, function):
+        """
+        Same as get_values, but yields the list of results of every
+        section, even when it is empty, so that callers regain control
+        after each section.
+        :param query: the elasticsearch query
+        :param function: the function to apply
+        """
         for doc, dom in self.sections_with_content(query):
-            least_once = False
+            values = []
             try:
                 for r in function(doc, dom):
-                    yield r
-                    least_once = True
+                    values.append(r)
             except ValueError:
                 pass
 
             # if at least one result is fetched than this section is
             # considered a success
-            self.processed(least_once)
+            self.processed(len(values) > 0)
+            yield values
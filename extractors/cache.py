@@ -0,0 +1,84 @@
+from collections import OrderedDict
+
+
+class PageCache(object):
+    """
+    Least recently used cache of page contents, bounded by the size
+    of their json rather than by their number: a handful of large pages
+    weighs as much as thousands of stubs.
+    The pages are not serialized again to be weighed, their size is given
+    by the caller, e.g. from the content_bytes field of the page documents.
+    """
+
+    # size assumed for the pages whose size is not known
+    default_page_bytes = 64 * 1024
+
+    def __init__(self, max_bytes=256 * 1024 * 1024):
+        """
+        :param max_bytes: total size of the cached pages, in bytes of json
+        """
+        self.max_bytes = max_bytes
+        self.bytes = 0
+        self._pages = OrderedDict()  # key -> (page, size), oldest first
+        self.hits = 0
+        self.misses = 0
+        self.evictions = 0
+
+    def __contains__(self, key):
+        """
+        Membership test, it does not count as a hit or a miss
+        nor refresh the entry.
+        """
+        return key in self._pages
+
+    def __len__(self):
+        return len(self._pages)
+
+    def get(self, key, default=None):
+        """
+        :return: the cached page, or default if it is not cached
+        """
+        entry = self._pages.pop(key, None)
+        if entry is None:
+            self.misses += 1
+            return default
+
+        self._pages[key] = entry  # most recently used again
+        self.hits += 1
+        return entry[0]
+
+    def put(self, key, page, size=None):
+        """
+        Cache a page, evicting the least recently used ones if needed.
+        A page larger than the whole cache is not cached.
+        :param size: size of the json of the page in bytes, default_page_bytes if missing
+        """
+        if size is None:
+            size = self.default_page_bytes
+
+        old = self._pages.pop(key, None)
+        if old is not None:
+            self.bytes -= old[1]
+        if size > self.max_bytes:
+            return
+
+        self._pages[key] = (page, size)
+        self.bytes += size
+        while self.bytes > self.max_bytes:
+            _, (_, evicted) = self._pages.popitem(last=False)
+            self.bytes -= evicted
+            self.evictions += 1
+
+    def stats(self):
+        """
+        :return: hits, misses, evictions, number and size of the cached pages
+        """
+        lookups = self.hits + self.misses
+        return {
+            'hits': self.hits,
+            'misses': self.misses,
+            'hit_ratio': float(self.hits) / lookups if lookups else 0.0,
+            'evictions': self.evictions,
+            'pages': len(self._pages),
+            'bytes': self.bytes,
+        }
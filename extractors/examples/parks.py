@@ -65,28 +65,34 @@ class ParkExtractor(BaseExtractor):
 @click.command()
 @click.option('--elasticsearch', '-e', default='localhost:9200', multiple=True)
 @click.option('--format', '-f', default='csv', type=click.Choice(['csv', 'json']))
+@click.option('--workers', '-w', default=1, help='processes scanning slices of the index in parallel')
 @click.argument('output', type=click.File('w'))
-def main(elasticsearch, format, output):
+def main(elasticsearch, format, workers, output):
     hosts = [{'host': h, 'port': int(p)} for h, p in (x.split(':', 1) for x in elasticsearch)]
 
     pe = ParkExtractor(hosts)
+    if workers > 1:
+        results = pe.sliced('get_parks', workers=workers)
+    else:
+        results = pe.get_parks()
 
     print "Starting park extractor (output {}): ".format(format)
 
     if format == 'json':
         out = []
-        for p, n in pe.get_parks():
+        for p, n in results:
             out.append([p, n])
         json.dump(out, output)
     else:
         writer = csv.writer(output, delimiter=',', quoting=csv.QUOTE_MINIMAL)
         writer.writerow(["page_title", "album_title"])
-        for p, n in pe.get_parks():
+        for p, n in results:
             writer.writerow([p.encode('utf-8'), n.encode('utf-8')])
 
     print "Total: {}".format(pe.report['total'])
     print "Success: {}".format(pe.report['success'])
     print "Failure: {}".format(pe.report['failure'])
+    print "Page cache: {}".format(pe.cache_stats())
 
 if __name__ == '__main__':
     main()
@@ -1,13 +1,24 @@
 import json
-from flask import Flask, request, make_response
+import time
+import uuid
+from flask import Flask, Response, request, make_response
 
 import itertools
 
+import elasticsearch as es
+
 from ..base import SimpleExtractor
-from .settings import ES_SETTINGS
+from .settings import ES_SETTINGS, STREAM_BUDGET, CURSOR_TTL, ENRICHED_DUMP
 
 app = Flask(__name__)
 
+# a single client, and its connection pool, serves every request
+client = es.Elasticsearch(hosts=ES_SETTINGS)
+
+# extractions left unfinished by a stream, by cursor:
+# (extractor, generator of section values, time of the last request)
+cursors = {}
+
 
 def make_json(data, code=200):
     res = make_response(
@@ -17,24 +28,27 @@ def make_json(data, code=200):
     res.headers['Content-Type'] = 'application/json'
     return res
 
-@app.route('/es', methods=['POST'])
-def slash():
+
+def load_code():
+    """
+    Execute the code of the request.
+    :return: (query, process_data), or an error response and None
+    """
     code = request.form.get('code', '')
     if not code:
         return make_json(
             {'success': False, 'message': 'code not provided'},
             400
-        )
+        ), None
 
     g, l = {}, {}
     try:
         exec(code, g, l)
-    except BaseException as e:
+    except Exception as e:
         return make_json(
-            # {'success': False, 'message': 'error while executing code'},
             {'success': False, 'message': str(e)},
             400
-        )
+        ), None
 
     query, function = l.get('query'), l.get('process_data')
 
@@ -42,20 +56,109 @@ def slash():
         return make_json(
             {'success': False, 'message': 'query or process_data missing from code'},
             400
-        )
+        ), None
+
+    return query, function
 
-    s = SimpleExtractor(ES_SETTINGS)
+
+@app.route('/es', methods=['POST'])
+def slash():
+    query, function = load_code()
+    if function is None:
+        return query
+
+    s = SimpleExtractor(ES_SETTINGS, client=client, dump_dir=ENRICHED_DUMP)
     try:
         # limited to 100 elements
         data = list(itertools.islice(s.get_values(query, function), 100))
-    except BaseException as e:
+    except Exception as e:
         return make_json(
             {'success': False, 'message': str(e)},
             400
         )
-        print e.message
 
     return make_json({'success': True, 'data': data})
 
+
+def expire_cursors():
+    now = time.time()
+    for cursor, (_, _, last) in list(cursors.items()):
+        if now - last > CURSOR_TTL:
+            del cursors[cursor]
+
+
+def stream(cursor, extractor, values, budget, limit):
+    """
+    Write the results as json lines until the extraction is over, the
+    time budget is spent or limit results are written. The last line
+    holds the cursor to continue from, null once the extraction is over,
+    and the report of the extraction so far.
+    """
+    start = time.time()
+    count = 0
+    done = True
+    try:
+        for section in values:
+            for r in section:
+                yield json.dumps({'data': r}) + '\n'
+                count += 1
+            if time.time() - start > budget or (limit and count >= limit):
+                done = False
+                break
+    except Exception as e:  # not GeneratorExit, raised when the client goes away
+        yield json.dumps({'success': False, 'message': str(e)}) + '\n'
+        return
+
+    if done:
+        cursors.pop(cursor, None)
+    else:
+        cursors[cursor] = (extractor, values, time.time())
+    yield json.dumps({
+        'success': True,
+        'cursor': None if done else cursor,
+        'count': count,
+        'report': extractor.report,
+    }) + '\n'
+
+
+def stream_response(cursor, extractor, values):
+    budget = request.form.get('budget', STREAM_BUDGET, type=float)
+    limit = request.form.get('limit', 0, type=int)
+    return Response(stream(cursor, extractor, values, budget, limit),
+                    mimetype='application/x-ndjson')
+
+
+@app.route('/es/stream', methods=['POST'])
+def start_stream():
+    """
+    Run the code of the request and stream its results as json lines,
+    for at most `budget` seconds and `limit` results.
+    """
+    expire_cursors()
+    query, function = load_code()
+    if function is None:
+        return query
+
+    s = SimpleExtractor(ES_SETTINGS, client=client, dump_dir=ENRICHED_DUMP)
+    # sections are processed lazily while the response is written
+    values = s.section_values(query, function)
+    return stream_response(uuid.uuid4().hex, s, values)
+
+
+@app.route('/es/stream/<cursor>', methods=['POST'])
+def continue_stream(cursor):
+    """
+    Continue the extraction a previous stream stopped at.
+    """
+    expire_cursors()
+    if cursor not in cursors:
+        return make_json(
+            {'success': False, 'message': 'unknown or expired cursor'},
+            404
+        )
+    extractor, values, _ = cursors.pop(cursor)
+    return stream_response(cursor, extractor, values)
+
+
 if __name__ == '__main__':
     app.run()
@@ -1,5 +1,15 @@
-# elasticsearch configuration
+# elasticsearch configuration, it can also be a LuceneSearchServerMain instance
 
 ES_SETTINGS = [
     {'host': 'localhost', 'port': 9200},
 ]
+
+# seconds a streamed response runs before handing back a cursor
+STREAM_BUDGET = 30
+
+# seconds an unfinished stream can be continued, like the scroll of its scan
+CURSOR_TTL = 300
+
+# enriched dump of an index built with --content-storage dump, where the
+# extractors read the pages from
+ENRICHED_DUMP = None
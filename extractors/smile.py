@@ -0,0 +1,261 @@
+"""
+Streaming decoder of the smile documents written by the indexer: the
+content_smile field of the page documents and the records of an enriched
+dump. Both are deflated, and written without back references to shared
+names or string values, which this decoder does not support.
+"""
+import io
+import os
+import struct
+import zlib
+
+HEADER = b':)\n'
+_END_OF_STRING = b'\xfc'
+
+
+class SmileError(ValueError):
+    pass
+
+
+class _Input(object):
+    """
+    Buffered reader over a file-like object, inflating it if it is
+    deflated, that only keeps the bytes not decoded yet.
+    """
+
+    def __init__(self, stream, deflated, chunk_size=64 * 1024):
+        self._stream = stream
+        self._inflater = zlib.decompressobj() if deflated else None
+        self._chunk_size = chunk_size
+        self._buf = bytearray()
+        self._pos = 0
+        self._eof = False
+
+    def _fill(self, n):
+        while len(self._buf) - self._pos < n:
+            if self._eof:
+                raise SmileError("truncated smile document")
+            data = self._stream.read(self._chunk_size)
+            if not data:
+                self._eof = True
+                if self._inflater is not None:
+                    data = self._inflater.flush()
+            elif self._inflater is not None:
+                data = self._inflater.decompress(data)
+            if self._pos:
+                del self._buf[:self._pos]
+                self._pos = 0
+            self._buf.extend(data)
+
+    def byte(self):
+        self._fill(1)
+        b = self._buf[self._pos]
+        self._pos += 1
+        return b
+
+    def read(self, n):
+        self._fill(n)
+        data = bytes(self._buf[self._pos:self._pos + n])
+        self._pos += n
+        return data
+
+    def read_string(self):
+        """
+        Read a string terminated by the end of string marker.
+        """
+        while True:
+            end = self._buf.find(_END_OF_STRING, self._pos)
+            if end >= 0:
+                data = bytes(self._buf[self._pos:end])
+                self._pos = end + 1
+                return data
+            self._fill(len(self._buf) - self._pos + 1)
+
+
+def _zigzag(n):
+    return (n >> 1) ^ -(n & 1)
+
+
+def _vint(inp):
+    """
+    Variable length int: 7 bits per byte, the last byte has its high bit
+    set and holds 6 bits.
+    """
+    value = 0
+    while True:
+        b = inp.byte()
+        if b & 0x80:
+            return (value << 6) | (b & 0x3F)
+        value = (value << 7) | b
+
+
+def _seven_bit(inp, n):
+    value = 0
+    for _ in range(n):
+        value = (value << 7) | inp.byte()
+    return value
+
+
+def _value(inp, b):
+    if 0x40 <= b <= 0x5F:
+        return inp.read((b & 0x1F) + 1).decode('ascii')
+    if 0x60 <= b <= 0x7F:
+        return inp.read((b & 0x1F) + 33).decode('ascii')
+    if 0x80 <= b <= 0x9F:
+        return inp.read((b & 0x1F) + 2).decode('utf-8')
+    if 0xA0 <= b <= 0xBF:
+        return inp.read((b & 0x1F) + 34).decode('utf-8')
+    if 0xC0 <= b <= 0xDF:
+        return _zigzag(b & 0x1F)
+    if b == 0x20:
+        return u''
+    if b == 0x21:
+        return None
+    if b == 0x22:
+        return False
+    if b == 0x23:
+        return True
+    if b in (0x24, 0x25):
+        return _zigzag(_vint(inp))
+    if b == 0x28:
+        bits = _seven_bit(inp, 5) & 0xFFFFFFFF
+        return struct.unpack('>f', struct.pack('>I', bits))[0]
+    if b == 0x29:
+        bits = _seven_bit(inp, 10) & 0xFFFFFFFFFFFFFFFF
+        return struct.unpack('>d', struct.pack('>Q', bits))[0]
+    if b in (0xE0, 0xE4):
+        return inp.read_string().decode('utf-8')
+    raise SmileError("unsupported smile value 0x{:02x}".format(b))
+
+
+def _key(inp, b):
+    if 0x80 <= b <= 0xBF:
+        return inp.read((b & 0x3F) + 1).decode('ascii')
+    if 0xC0 <= b <= 0xF7:
+        return inp.read((b & 0x3F) + 2).decode('utf-8')
+    if b == 0x20:
+        return u''
+    if b == 0x34:
+        return inp.read_string().decode('utf-8')
+    raise SmileError("unsupported smile key 0x{:02x}".format(b))
+
+
+def iterparse(stream, deflated=False):
+    """
+    Yield the events of a smile document as it is read from a file-like
+    object, as (event, value) pairs: start_map, map_key, end_map,
+    start_array, end_array, and value with a string, number, boolean or
+    None value.
+    :param deflated: the document is deflated, it is inflated as it is read
+    """
+    inp = _Input(stream, deflated)
+    if inp.read(3) != HEADER:
+        raise SmileError("not a smile document")
+    if inp.byte() & 0x03:
+        raise SmileError("shared names and string values are not supported")
+
+    stack = []  # True for the objects, False for the arrays
+    expect_key = False
+    while True:
+        b = inp.byte()
+        if expect_key:
+            if b == 0xFB:
+                stack.pop()
+                yield 'end_map', None
+            else:
+                yield 'map_key', _key(inp, b)
+                expect_key = False
+                continue
+        elif b == 0xFA:
+            stack.append(True)
+            yield 'start_map', None
+            expect_key = True
+            continue
+        elif b == 0xF8:
+            stack.append(False)
+            yield 'start_array', None
+            continue
+        elif b == 0xF9:
+            stack.pop()
+            yield 'end_array', None
+        else:
+            yield 'value', _value(inp, b)
+
+        # a value is done, the document ends with its root value
+        if not stack:
+            return
+        expect_key = stack[-1]
+
+
+def build(events):
+    """
+    Build the next value out of the events of iterparse, consuming only
+    the events of that value.
+    """
+    stack = []  # [container, key of the next value]
+    for event, value in events:
+        if event == 'map_key':
+            stack[-1][1] = value
+            continue
+        if event == 'start_map':
+            stack.append([{}, None])
+            continue
+        if event == 'start_array':
+            stack.append([[], None])
+            continue
+        if event in ('end_map', 'end_array'):
+            value = stack.pop()[0]
+
+        if not stack:
+            return value
+        container, key = stack[-1]
+        if isinstance(container, list):
+            container.append(value)
+        else:
+            container[key] = value
+    raise SmileError("truncated smile document")
+
+
+def load(stream, deflated=False):
+    """
+    :return: the document read from a file-like object
+    """
+    return build(iterparse(stream, deflated))
+
+
+def loads(data, deflated=False):
+    """
+    :return: the document held by a string of bytes
+    """
+    return load(io.BytesIO(data), deflated)
+
+
+def read_dump_page(dump_dir, location):
+    """
+    Read a page of an enriched dump, e.g. the one whose location is stored
+    in the content_blob field of a page document. Only the page is built,
+    the other fields of the record are skipped.
+    :param dump_dir: directory holding the chunks of the dump
+    :param location: chunk:offset location of the record
+    """
+    chunk, _, offset = location.rpartition(':')
+    if not chunk or not offset.isdigit():
+        raise SmileError("{} is not the location of an enriched page".format(location))
+
+    with open(os.path.join(dump_dir, chunk + '.chunk'), 'rb') as f:
+        f.seek(int(offset))
+        length = struct.unpack('>i', f.read(4))[0]
+        record = f.read(length)
+    if len(record) != length:
+        raise SmileError("truncated record at {}".format(location))
+
+    events = iterparse(io.BytesIO(record), deflated=True)
+    if next(events)[0] != 'start_map':
+        raise SmileError("a smile object was expected at {}".format(location))
+    for event, value in events:
+        if event != 'map_key':
+            break
+        field = build(events)
+        if value == 'page':
+            return field
+    raise SmileError("record without a page at {}".format(location))
@@ -0,0 +1,69 @@
+package org.dbpedia.analysis;
+
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.TokenStream;
+import org.dbpedia.analysis.analyzers.KStemAnalyzer;
+import org.dbpedia.analysis.analyzers.LowercaseAnalyzer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Token streams of the analyzers over the section titles, ancestors and link names of the corpus.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class AnalyzerBenchmark {
+    @Param({"kstem", "lowercase"})
+    public String analyzer;
+
+    private Analyzer a;
+    private final List<String> texts = new ArrayList<>();
+
+    @Setup
+    public void setup() throws Exception {
+        a = analyzer.equals("kstem") ? new KStemAnalyzer() : new LowercaseAnalyzer();
+        for(String page: new String[]{"trieste", "parks", "discography", "stub"}){
+            final EnrichedPage enriched = BenchmarkCorpus.enrichedPage(page);
+            for(int i = 0; i < enriched.getSectionCount(); i++){
+                texts.add(enriched.getSectionTitle(i));
+                Collections.addAll(texts, enriched.getAncestors(i));
+            }
+            for(Link l: enriched.getLinks()){
+                if(l.description != null){
+                    texts.add(l.description);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return number of tokens produced for the whole corpus
+     */
+    @Benchmark
+    public int tokenize() throws IOException {
+        int tokens = 0;
+        for(String text: texts){
+            try (TokenStream ts = a.tokenStream("field", text)) {
+                ts.reset();
+                while(ts.incrementToken()){
+                    tokens++;
+                }
+                ts.end();
+            }
+        }
+        return tokens;
+    }
+}
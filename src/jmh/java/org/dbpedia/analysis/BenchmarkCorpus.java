@@ -0,0 +1,91 @@
+package org.dbpedia.analysis;
+
+import com.machinelinking.enricher.WikiEnricher;
+import com.machinelinking.parser.DocumentSource;
+import com.machinelinking.serializer.JSONSerializer;
+import com.machinelinking.util.JSONUtils;
+import org.apache.commons.io.IOUtils;
+import org.codehaus.jackson.map.ObjectMapper;
+import org.codehaus.jackson.util.TokenBuffer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.nio.charset.Charset;
+import java.util.List;
+
+/**
+ * <strong>BenchmarkCorpus</strong> gives access to the sample pages checked in under <code>corpus/</code>.
+ * The samples are listed in <code>corpus/pages.txt</code> and are referred to by their file name without extension.
+ */
+final class BenchmarkCorpus {
+    private static final String corpusPath = "org/dbpedia/analysis/corpus/";
+    private static final Charset utf8 = Charset.forName("UTF-8");
+
+    private BenchmarkCorpus() {
+    }
+
+    /**
+     * @param page name of the sample, e.g. trieste
+     * @return the wikitext of the sample
+     */
+    static String content(String page) throws IOException {
+        return read(page + ".wikitext");
+    }
+
+    /**
+     * @param page name of the sample, e.g. trieste
+     * @return the title the sample is listed with in pages.txt
+     */
+    static String title(String page) throws IOException {
+        for(String line: IOUtils.readLines(open("pages.txt"), utf8)){
+            if(line.startsWith("#")){
+                continue;
+            }
+            final String[] titleAndResource = line.split("\t");
+            if(titleAndResource.length == 2 && titleAndResource[1].equals(page + ".wikitext")){
+                return titleAndResource[0];
+            }
+        }
+        throw new IOException(page + " is not listed in pages.txt");
+    }
+
+    /**
+     * @param pipeline either elasticsearch or lucene
+     * @return the enricher configured as in the page processor of the given index
+     */
+    static WikiEnricher enricher(String pipeline) {
+        if(pipeline.equals("lucene")){
+            return new LuceneIndexPageProcessor(null).createEnricher();
+        }
+        return new ElasticsearchPageProcessor(null, null, "jsonpedia", "page", "section").createEnricher();
+    }
+
+    static TokenBuffer enrich(WikiEnricher enricher, String content) throws Exception {
+        final TokenBuffer buffer = JSONUtils.createJSONBuffer();
+        enricher.enrichEntity(
+                new DocumentSource(new URL("http://en.wikipedia.org/wiki/"), content),
+                new JSONSerializer(buffer)
+        );
+        return buffer;
+    }
+
+    static EnrichedPage enrichedPage(String page) throws Exception {
+        final TokenBuffer buffer = enrich(enricher("elasticsearch"), content(page));
+        return EnrichedPage.read(buffer, new ObjectMapper());
+    }
+
+    private static String read(String resource) throws IOException {
+        try (InputStream is = open(resource)) {
+            return IOUtils.toString(is, utf8);
+        }
+    }
+
+    private static InputStream open(String resource) throws IOException {
+        final InputStream is = BenchmarkCorpus.class.getClassLoader().getResourceAsStream(corpusPath + resource);
+        if(is == null){
+            throw new IOException(resource + " not found in the benchmark corpus");
+        }
+        return is;
+    }
+}
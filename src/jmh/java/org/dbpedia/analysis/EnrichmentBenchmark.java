@@ -0,0 +1,49 @@
+package org.dbpedia.analysis;
+
+import com.machinelinking.enricher.WikiEnricher;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.codehaus.jackson.util.TokenBuffer;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Pages per second enriched by the pipelines of the two page processors: with the enricher reused as in a worker,
+ * and with an enricher built for every page as the processors used to do.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class EnrichmentBenchmark {
+    @Param({"elasticsearch", "lucene"})
+    public String pipeline;
+
+    @Param({"trieste", "parks", "discography", "stub"})
+    public String page;
+
+    private WikiEnricher enricher;
+    private String content;
+
+    @Setup
+    public void setup() throws IOException {
+        enricher = BenchmarkCorpus.enricher(pipeline);
+        content = BenchmarkCorpus.content(page);
+    }
+
+    @Benchmark
+    public TokenBuffer enrich() throws Exception {
+        return BenchmarkCorpus.enrich(enricher, content);
+    }
+
+    @Benchmark
+    public TokenBuffer enrichWithNewEnricher() throws Exception {
+        return BenchmarkCorpus.enrich(BenchmarkCorpus.enricher(pipeline), content);
+    }
+}
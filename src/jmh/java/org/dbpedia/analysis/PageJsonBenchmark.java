@@ -0,0 +1,51 @@
+package org.dbpedia.analysis;
+
+import com.machinelinking.util.JSONUtils;
+import org.codehaus.jackson.JsonNode;
+import org.codehaus.jackson.map.ObjectMapper;
+import org.codehaus.jackson.util.TokenBuffer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reading the enriched tokens of a page: a full JsonNode tree serialized again for the page content,
+ * against the single streaming pass of {@link EnrichedPage}.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class PageJsonBenchmark {
+    @Param({"trieste", "parks", "discography", "stub"})
+    public String page;
+
+    private final ObjectMapper mapper = new ObjectMapper();
+    private TokenBuffer buffer;
+
+    @Setup
+    public void setup() throws Exception {
+        buffer = BenchmarkCorpus.enrich(BenchmarkCorpus.enricher("elasticsearch"), BenchmarkCorpus.content(page));
+    }
+
+    @Benchmark
+    public void jsonTree(Blackhole bh) throws IOException {
+        final JsonNode root = JSONUtils.bufferToJSONNode(buffer);
+        bh.consume(mapper.writeValueAsBytes(root));
+        bh.consume(mapper.readValue(root.path("links"), Link[].class));
+        bh.consume(mapper.readValue(root.path("references"), Link[].class));
+    }
+
+    @Benchmark
+    public EnrichedPage streaming() throws IOException {
+        return EnrichedPage.read(buffer, mapper);
+    }
+}
@@ -0,0 +1,101 @@
+package org.dbpedia.analysis;
+
+import org.codehaus.jackson.JsonGenerator;
+import org.codehaus.jackson.map.ObjectMapper;
+import org.codehaus.jackson.util.TokenBuffer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Links of a page with many sections and links assigned to their sections: the per section bucket index of
+ * {@link EnrichedPage} against scanning every link for every section.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class PathologicalPageBenchmark {
+    @Param({"100", "1000"})
+    public int sections;
+
+    @Param({"1000", "10000"})
+    public int links;
+
+    private final ObjectMapper mapper = new ObjectMapper();
+    private TokenBuffer buffer;
+
+    @Setup
+    public void setup() throws IOException {
+        final Random random = new Random(42);
+        buffer = new TokenBuffer(mapper);
+        final JsonGenerator g = buffer;
+        g.writeStartObject();
+        g.writeArrayFieldStart("sections");
+        for(int i = 0; i < sections; i++){
+            g.writeStartObject();
+            g.writeStringField("title", "Section " + i);
+            g.writeArrayFieldStart("ancestors");
+            if(i > 0){
+                g.writeNumber(random.nextInt(i));
+            }
+            g.writeEndArray();
+            g.writeEndObject();
+        }
+        g.writeEndArray();
+        for(String field: new String[]{"links", "references"}){
+            g.writeArrayFieldStart(field);
+            for(int i = 0; i < links; i++){
+                g.writeStartObject();
+                g.writeStringField("url", "http://en.wikipedia.org/wiki/Link_" + i);
+                g.writeStringField("description", "Link " + i);
+                g.writeNumberField("section_idx", random.nextInt(sections + 1));
+                g.writeEndObject();
+            }
+            g.writeEndArray();
+        }
+        g.writeEndObject();
+        g.close();
+    }
+
+    @Benchmark
+    public void bucketed(Blackhole bh) throws IOException {
+        final EnrichedPage enriched = EnrichedPage.read(buffer, mapper);
+        for(int i = 0; i < enriched.getSectionCount(); i++){
+            bh.consume(enriched.getAncestors(i));
+            for(Link l: enriched.getSectionLinks(i)){
+                bh.consume(l.url);
+            }
+            for(Link l: enriched.getSectionReferences(i)){
+                bh.consume(l.url);
+            }
+        }
+    }
+
+    @Benchmark
+    public void linearScan(Blackhole bh) throws IOException {
+        final EnrichedPage enriched = EnrichedPage.read(buffer, mapper);
+        for(int i = 0; i < enriched.getSectionCount(); i++){
+            bh.consume(enriched.getAncestors(i));
+            for(Link l: enriched.getLinks()){
+                if(l.section_idx == i + 1){
+                    bh.consume(l.url);
+                }
+            }
+            for(Link l: enriched.getReferences()){
+                if(l.section_idx == i + 1){
+                    bh.consume(l.url);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,52 @@
+package org.dbpedia.analysis;
+
+import org.apache.lucene.facet.FacetsConfig;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Pages per second turned into elasticsearch and lucene section documents.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class SectionDocumentBenchmark {
+    @Param({"trieste", "parks", "discography", "stub"})
+    public String page;
+
+    private String title;
+    private EnrichedPage enriched;
+    private final FacetsConfig facets = LuceneIndexPageProcessor.createFacetsConfig();
+
+    @Setup
+    public void setup() throws Exception {
+        title = BenchmarkCorpus.title(page);
+        enriched = BenchmarkCorpus.enrichedPage(page);
+    }
+
+    @Benchmark
+    public void elasticsearchSections(Blackhole bh) throws IOException {
+        for(int i = 0; i < enriched.getSectionCount(); i++){
+            bh.consume(ElasticsearchPageProcessor.sectionDocument(1, title, enriched.getCategories(), enriched, i).bytes());
+        }
+    }
+
+    @Benchmark
+    public void luceneSections(Blackhole bh) throws IOException {
+        for(int i = 0; i < enriched.getSectionCount(); i++){
+            bh.consume(facets.build(
+                    LuceneIndexPageProcessor.sectionDocument(1, title, enriched.getCategories(), enriched, i, "")
+            ));
+        }
+    }
+}
@@ -0,0 +1,242 @@
+package org.dbpedia.analysis;
+
+import org.elasticsearch.action.ActionRequest;
+import org.elasticsearch.action.bulk.BulkItemResponse;
+import org.elasticsearch.action.bulk.BulkProcessor;
+import org.elasticsearch.action.bulk.BulkRequest;
+import org.elasticsearch.action.bulk.BulkResponse;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.common.unit.ByteSizeUnit;
+import org.elasticsearch.common.unit.ByteSizeValue;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.rest.RestStatus;
+
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <strong>BulkIngester</strong> collects the page and section documents of every worker into shared bulk requests.
+ * A bulk is sent when it reaches a number of documents, a size in bytes or an age, whichever comes first.
+ * At most <code>concurrentRequests</code> bulks are in flight: once they are all busy {@link #add(ActionRequest)}
+ * blocks the calling worker. Items rejected by a busy cluster are sent again with an exponential backoff.
+ * Every document gets a sequence number when it is added, so that {@link #flush()} only waits for the documents
+ * added before it, while the workers keep adding more.
+ */
+public class BulkIngester implements BulkProcessor.Listener {
+    private static final long retryDelayMillis = 100;
+
+    private final BulkProcessor bulkProcessor;
+    private final ScheduledExecutorService retryExecutor;
+    private final int maxRetries;
+
+    private final Map<ActionRequest, Item> items =
+            Collections.synchronizedMap(new IdentityHashMap<ActionRequest, Item>());
+    private final ConcurrentSkipListSet<Long> unacknowledged = new ConcurrentSkipListSet<>();
+    private final Object acknowledged = new Object();
+
+    private final AtomicLong addedItems = new AtomicLong();
+    private final AtomicLong pending = new AtomicLong();
+    private final AtomicLong indexedItems = new AtomicLong();
+    private final AtomicLong retriedItems = new AtomicLong();
+    private final AtomicLong failedItems = new AtomicLong();
+
+    /**
+     * A document not acknowledged yet.
+     */
+    private static class Item {
+        private final long sequence;
+        private int attempts = 0;
+
+        Item(long sequence) {
+            this.sequence = sequence;
+        }
+    }
+
+    /**
+     * @param client elasticsearch client
+     * @param bulkActions number of documents that triggers a bulk
+     * @param bulkSizeMb size in megabytes that triggers a bulk
+     * @param flushIntervalSeconds max age of a bulk before it is sent
+     * @param concurrentRequests number of bulks allowed to be in flight
+     * @param maxRetries number of times a rejected document is sent again
+     */
+    public BulkIngester(Client client, int bulkActions, int bulkSizeMb, int flushIntervalSeconds,
+                        int concurrentRequests, int maxRetries) {
+        this.maxRetries = maxRetries;
+        this.retryExecutor = Executors.newSingleThreadScheduledExecutor();
+        this.bulkProcessor = BulkProcessor.builder(client, this)
+                .setName("jsonpedia-bulk")
+                .setBulkActions(bulkActions)
+                .setBulkSize(new ByteSizeValue(bulkSizeMb, ByteSizeUnit.MB))
+                .setFlushInterval(TimeValue.timeValueSeconds(flushIntervalSeconds))
+                .setConcurrentRequests(concurrentRequests)
+                .build();
+    }
+
+    /**
+     * Queue a document, blocks while all the concurrent bulks are in flight.
+     */
+    public void add(ActionRequest request) {
+        final long sequence = addedItems.incrementAndGet();
+        unacknowledged.add(sequence);
+        items.put(request, new Item(sequence));
+        bulkProcessor.add(request);
+    }
+
+    @Override
+    public void beforeBulk(long executionId, BulkRequest request) {
+        pending.incrementAndGet();
+    }
+
+    @Override
+    public void afterBulk(long executionId, BulkRequest request, BulkResponse response) {
+        try {
+            for(BulkItemResponse item: response){
+                final ActionRequest itemRequest = request.requests().get(item.getItemId());
+                if(!item.isFailed()){
+                    indexedItems.incrementAndGet();
+                    acknowledge(itemRequest);
+                } else if(isRejection(item.getFailure())){
+                    retry(itemRequest, item.getFailureMessage());
+                } else {
+                    failedItems.incrementAndGet();
+                    acknowledge(itemRequest);
+                    System.err.println("bulk item failed: " + item.getFailureMessage());
+                }
+            }
+        } finally {
+            done();
+        }
+    }
+
+    @Override
+    public void afterBulk(long executionId, BulkRequest request, Throwable failure) {
+        try {
+            for(ActionRequest itemRequest: request.requests()){
+                retry(itemRequest, failure.getMessage());
+            }
+        } finally {
+            done();
+        }
+    }
+
+    /**
+     * A node whose bulk queue is full rejects the item with a 503 in elasticsearch 1.2, which has no 429 yet; the
+     * item can be sent again once the cluster catches up.
+     */
+    private static boolean isRejection(BulkItemResponse.Failure failure) {
+        return failure != null && failure.getStatus() == RestStatus.SERVICE_UNAVAILABLE;
+    }
+
+    /**
+     * Schedule a document to be sent again, retries are added from their own thread so that
+     * the transport thread running the listener never waits on a busy bulk processor.
+     */
+    private void retry(final ActionRequest request, String reason) {
+        final Item item = items.get(request);
+        final int attempt = ++item.attempts;
+        if(attempt > maxRetries){
+            failedItems.incrementAndGet();
+            acknowledge(request);
+            System.err.println("bulk item failed after " + maxRetries + " retries: " + reason);
+            return;
+        }
+
+        retriedItems.incrementAndGet();
+        pending.incrementAndGet();
+        retryExecutor.schedule(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    bulkProcessor.add(request);
+                } finally {
+                    done();
+                }
+            }
+        }, retryDelayMillis << (attempt - 1), TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * A document is indexed, or failed for good.
+     */
+    private void acknowledge(ActionRequest request) {
+        unacknowledged.remove(items.remove(request).sequence);
+    }
+
+    private void done() {
+        pending.decrementAndGet();
+        synchronized (acknowledged) {
+            acknowledged.notifyAll();
+        }
+    }
+
+    /**
+     * @return whether every document up to a sequence number is acknowledged
+     */
+    private boolean isAcknowledged(long sequence) {
+        final Long oldest = unacknowledged.ceiling(Long.MIN_VALUE);
+        return oldest == null || oldest > sequence;
+    }
+
+    /**
+     * Send the queued documents and wait until every document added so far, retries included, is acknowledged.
+     * Documents added meanwhile are not waited for, and the bulks they fill are not cut short: the bulk being filled
+     * is only sent again once nothing is in flight, when it can only hold retries.
+     */
+    public void flush() throws InterruptedException {
+        final long sequence = addedItems.get();
+        bulkProcessor.flush();
+        while(!isAcknowledged(sequence)){
+            synchronized (acknowledged) {
+                if(!isAcknowledged(sequence)){
+                    acknowledged.wait(100);
+                }
+            }
+            if(pending.get() == 0 && !isAcknowledged(sequence)){
+                bulkProcessor.flush();
+            }
+        }
+    }
+
+    /**
+     * Flush the queued documents and release the bulk processor.
+     */
+    public void close() throws InterruptedException {
+        flush();
+        bulkProcessor.close();
+        retryExecutor.shutdown();
+    }
+
+    /**
+     * @return number of bulks in flight plus retries waiting to be added again
+     */
+    public long getPending() {
+        return pending.get();
+    }
+
+    public long getIndexedItems() {
+        return indexedItems.get();
+    }
+
+    public long getRetriedItems() {
+        return retriedItems.get();
+    }
+
+    public long getFailedItems() {
+        return failedItems.get();
+    }
+
+    @Override
+    public String toString() {
+        return String.format(
+                "bulk items: %d indexed, %d retried, %d failed",
+                getIndexedItems(), getRetriedItems(), getFailedItems()
+        );
+    }
+}
@@ -0,0 +1,147 @@
+package org.dbpedia.analysis;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Date;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <strong>Checkpointer</strong> periodically records the page id up to which every page of the dump has been committed,
+ * so that an interrupted run can be resumed from there.
+ * Every worker publishes the id of the last page it has handed to the index. Pages are dispatched in dump order,
+ * that is by increasing id, so every page up to the smallest of those ids has been handed to the index: once the
+ * index confirms a commit made after reading it, that id is safely written to the checkpoint file.
+ */
+public class Checkpointer {
+    /**
+     * Makes durable everything handed to the index so far.
+     */
+    public interface Commit {
+        void commit() throws IOException;
+    }
+
+    private static final String pageIdKey = "page_id";
+    private static final String completeKey = "complete";
+
+    private final File file;
+    private final long resumeFrom;
+    private final List<AtomicLong> workers = new CopyOnWriteArrayList<>();
+    private ScheduledExecutorService scheduler;
+
+    /**
+     * @param file checkpoint file
+     * @param resume start from the page recorded in the file instead of the beginning of the dump
+     */
+    public Checkpointer(File file, boolean resume) throws IOException {
+        this.file = file;
+        this.resumeFrom = resume ? load(file) : -1;
+    }
+
+    private static long load(File file) throws IOException {
+        if(!file.exists()){
+            return -1;
+        }
+        final Properties properties = new Properties();
+        try (InputStream is = new FileInputStream(file)) {
+            properties.load(is);
+        }
+        try {
+            return Long.parseLong(properties.getProperty(pageIdKey, "-1"));
+        } catch (NumberFormatException e) {
+            throw new IOException(String.format("%s is not a valid checkpoint file", file), e);
+        }
+    }
+
+    /**
+     * @return the id of the last page committed by the interrupted run, pages up to it are skipped; -1 if not resuming
+     */
+    public long getResumeFrom() {
+        return resumeFrom;
+    }
+
+    /**
+     * @return the marker a worker must set to the id of every page once it has been handed to the index,
+     * or to {@link Long#MAX_VALUE} while it holds no page at all
+     */
+    public AtomicLong register() {
+        final AtomicLong lastPage = new AtomicLong(resumeFrom);
+        workers.add(lastPage);
+        return lastPage;
+    }
+
+    /**
+     * Write a checkpoint every <code>intervalSeconds</code>.
+     */
+    public void start(long intervalSeconds, final Commit commit) {
+        scheduler = Executors.newSingleThreadScheduledExecutor();
+        scheduler.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    checkpoint(commit);
+                } catch (IOException e) {
+                    System.err.println("checkpoint failed: " + e.getMessage());
+                }
+            }
+        }, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Commit the index and record the pages it is known to contain.
+     */
+    public synchronized void checkpoint(Commit commit) throws IOException {
+        long pageId = Long.MAX_VALUE;
+        for(AtomicLong lastPage: workers){
+            pageId = Math.min(pageId, lastPage.get());
+        }
+        if(pageId == Long.MAX_VALUE){
+            pageId = resumeFrom;
+        }
+
+        commit.commit();
+        save(pageId, false);
+    }
+
+    /**
+     * Stop the periodic checkpoints and record the whole dump once every worker is done.
+     */
+    public synchronized void finish(Commit commit) throws IOException {
+        if(scheduler != null){
+            scheduler.shutdown();
+        }
+        long pageId = resumeFrom;
+        for(AtomicLong lastPage: workers){
+            if(lastPage.get() != Long.MAX_VALUE){
+                pageId = Math.max(pageId, lastPage.get());
+            }
+        }
+
+        commit.commit();
+        save(pageId, true);
+    }
+
+    private void save(long pageId, boolean complete) throws IOException {
+        final Properties properties = new Properties();
+        properties.setProperty(pageIdKey, Long.toString(pageId));
+        properties.setProperty(completeKey, Boolean.toString(complete));
+
+        // write aside and rename, a crash while writing must not corrupt the last good checkpoint
+        final File tmp = new File(file.getPath() + ".tmp");
+        try (OutputStream os = new FileOutputStream(tmp)) {
+            properties.store(os, "jsonpedia-extractor checkpoint " + new Date());
+        }
+        if(!tmp.renameTo(file) && !(file.delete() && tmp.renameTo(file))){
+            throw new IOException(String.format("cannot write the checkpoint file %s", file));
+        }
+    }
+}
@@ -3,6 +3,7 @@ package org.dbpedia.analysis;
 import com.beust.jcommander.JCommander;
 import com.beust.jcommander.Parameter;
 import com.beust.jcommander.ParameterException;
+import com.beust.jcommander.ParametersDelegate;
 import com.beust.jcommander.converters.BooleanConverter;
 import com.beust.jcommander.converters.FileConverter;
 import com.machinelinking.wikimedia.ProcessorReport;
@@ -10,6 +11,7 @@ import com.machinelinking.wikimedia.ProcessorReport;
 import java.io.File;
 import java.io.IOException;
 import java.net.URL;
+import java.util.Locale;
 
 /**
  *
@@ -24,7 +26,7 @@ public class ElasticSearchMain {
 
     @Parameter(
             names = {"--input", "-i"},
-            description = "path to the input dump",
+            description = "path to the input dump, or to a folder written with --dump-enriched",
             converter = FileConverter.class,
             required = true
     )
@@ -32,22 +34,218 @@ public class ElasticSearchMain {
 
     @Parameter(
             names = {"--append", "-a"},
-            description = "append to the index instead of starting from scratch",
+            description = "append to the index behind the jsonpedia alias instead of building a new one",
             converter = BooleanConverter.class
     )
     private boolean append = false;
 
+    @Parameter(
+            names = {"--rebuild-index"},
+            description = "versioned index of an interrupted rebuild to write to, the alias is moved to it at the end"
+    )
+    private String rebuildIndex;
+
+    @Parameter(
+            names = {"--replicas"},
+            description = "number of replicas a new index gets once it is loaded"
+    )
+    private int replicas = 1;
+
+    @Parameter(
+            names = {"--refresh-interval"},
+            description = "refresh interval a new index gets once it is loaded"
+    )
+    private String refreshInterval = "1s";
+
+    @Parameter(
+            names = {"--optimize"},
+            description = "merge a new index down to this many segments once it is loaded, 0 to skip it"
+    )
+    private int optimize = 0;
+
+    @Parameter(
+            names = {"--keep-old-index"},
+            description = "keep the index the alias pointed to before a new one replaces it",
+            converter = BooleanConverter.class
+    )
+    private boolean keepOldIndex = false;
+
+    @Parameter(
+            names = {"--bulk-actions"},
+            description = "number of documents that triggers a bulk request"
+    )
+    private int bulkActions = 1000;
+
+    @Parameter(
+            names = {"--bulk-size"},
+            description = "size in megabytes that triggers a bulk request"
+    )
+    private int bulkSizeMb = 5;
+
+    @Parameter(
+            names = {"--flush-interval"},
+            description = "seconds after which a pending bulk request is sent anyway"
+    )
+    private int flushInterval = 5;
+
+    @Parameter(
+            names = {"--concurrent-bulks"},
+            description = "number of bulk requests allowed to be in flight"
+    )
+    private int concurrentBulks = 2;
+
+    @Parameter(
+            names = {"--bulk-retries"},
+            description = "number of times a document rejected by elasticsearch is sent again"
+    )
+    private int bulkRetries = 3;
+
+    @Parameter(
+            names = {"--decompression-threads"},
+            description = "threads decompressing a bzip2 dump in parallel, 0 to decompress it sequentially"
+    )
+    private int decompressionThreads = Runtime.getRuntime().availableProcessors() / 2;
+
+    @Parameter(
+            names = {"--checkpoint"},
+            description = "file where the progress of the ingestion is periodically recorded",
+            converter = FileConverter.class
+    )
+    private File checkpointPath;
+
+    @Parameter(
+            names = {"--checkpoint-interval"},
+            description = "seconds between two checkpoints"
+    )
+    private int checkpointInterval = 300;
+
+    @Parameter(
+            names = {"--resume"},
+            description = "skip the pages recorded in the checkpoint file, needs --rebuild-index or --append",
+            converter = BooleanConverter.class
+    )
+    private boolean resume = false;
+
+    @Parameter(
+            names = {"--incremental"},
+            description = "only index the new and changed pages of the dump, implies --append",
+            converter = BooleanConverter.class
+    )
+    private boolean incremental = false;
+
+    @Parameter(
+            names = {"--metrics-interval"},
+            description = "seconds between two progress lines, 0 to disable them"
+    )
+    private int metricsInterval = 30;
+
+    @Parameter(
+            names = {"--dump-enriched"},
+            description = "also write the enriched pages to this folder, it can later be given as --input",
+            converter = FileConverter.class
+    )
+    private File dumpEnrichedPath;
+
+    @Parameter(
+            names = {"--content-storage"},
+            description = "how the page documents store the enriched pages: json, smile (deflated, inline) or dump " +
+                    "(a reference into --dump-enriched, or into the enriched dump given as --input)"
+    )
+    private String contentStorage = "json";
+
+    @Parameter(
+            names = {"--facet-terms"},
+            description = "number of section titles and categories kept in the facet summary of a new index, " +
+                    "0 to skip the summary"
+    )
+    private int facetTerms = 1000;
+
+    @Parameter(
+            names = {"--facets-file"},
+            description = "also write the facet summary to this json file",
+            converter = FileConverter.class
+    )
+    private File facetsPath;
+
+    @Parameter(
+            names = {"--only-pages"},
+            description = "only index the pages listed in this file, e.g. a --deferred file, needs --rebuild-index or --append",
+            converter = FileConverter.class
+    )
+    private File onlyPagesPath;
+
+    @ParametersDelegate
+    private final PageSelectionOptions pages = new PageSelectionOptions();
+
     public int run(String[] args) {
         final JCommander commander = new JCommander(this);
         int exitCode = 0;
         try {
             commander.parse(args);
+            if(resume && checkpointPath == null){
+                throw new ParameterException("--resume needs a --checkpoint file");
+            }
+            // without them the pages would go to the live index, not to the one they belong to
+            if((resume || onlyPagesPath != null) && rebuildIndex == null && !append){
+                throw new ParameterException(
+                        "--resume and --only-pages need --rebuild-index <name> for a new index, or --append"
+                );
+            }
+            final boolean enrichedInput = inputPath.isDirectory();
+            if(enrichedInput && (checkpointPath != null || dumpEnrichedPath != null)){
+                throw new ParameterException("--checkpoint and --dump-enriched need a wikipedia dump as input");
+            }
+            pages.validate();
+            final ElasticsearchPageProcessor.ContentStorage storage;
+            try {
+                storage = ElasticsearchPageProcessor.ContentStorage.valueOf(contentStorage.toUpperCase(Locale.ROOT));
+            } catch (IllegalArgumentException e) {
+                throw new ParameterException(contentStorage + " is not a content storage, use json, smile or dump");
+            }
+            if(storage == ElasticsearchPageProcessor.ContentStorage.DUMP && !enrichedInput
+                    && dumpEnrichedPath == null){
+                throw new ParameterException(
+                        "--content-storage dump needs --dump-enriched or an enriched dump as input"
+                );
+            }
+            final boolean appending = append || resume || incremental || onlyPagesPath != null || rebuildIndex != null;
+            if(appending && facetsPath != null){
+                throw new ParameterException("--facets-file needs a new index, the counts only cover a single run");
+            }
             final ElasticSearchIndexCreator creator = new ElasticSearchIndexCreator(
                     new String[]{this.elasticsearchMachine},
-                    append
+                    appending,
+                    rebuildIndex
             );
-            final ProcessorReport rep = creator.export(new URL("http://en.wikipedia.org/wiki/"), inputPath); // careful, needs trailing slash
-            System.out.println(rep);
+            creator.setContentStorage(storage);
+            creator.setPublishing(replicas, refreshInterval, optimize, !keepOldIndex);
+            if(checkpointPath != null){
+                creator.setCheckpointer(new Checkpointer(checkpointPath, resume), checkpointInterval);
+            }
+            creator.setIncremental(incremental);
+            creator.setMetricsInterval(metricsInterval);
+            if(dumpEnrichedPath != null){
+                creator.setEnrichedDump(dumpEnrichedPath);
+            }
+            creator.configureBulk(bulkActions, bulkSizeMb, flushInterval, concurrentBulks, bulkRetries);
+            creator.setDecompressionThreads(decompressionThreads);
+            if(!appending && facetTerms > 0){
+                creator.setFacetSummary(facetTerms, facetsPath);
+            }
+            final PageFilter filter = pages.configure(creator, enrichedInput);
+            if(onlyPagesPath != null){
+                creator.setOnlyPages(PageBudget.readPageIds(onlyPagesPath));
+            }
+            if(enrichedInput){
+                creator.exportEnriched(inputPath);
+            } else {
+                final ProcessorReport rep = creator.export(new URL("http://en.wikipedia.org/wiki/"), inputPath); // careful, needs trailing slash
+                System.out.println(rep);
+                if(filter != null){
+                    System.out.println(filter);
+                }
+            }
+            System.out.println(creator.getMetrics().summary());
             exitCode = 0;
         } catch(IOException ie) {
             System.err.println(ie.getMessage());
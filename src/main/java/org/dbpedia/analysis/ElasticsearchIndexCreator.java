@@ -1,12 +1,14 @@
 package org.dbpedia.analysis;
 
-import com.machinelinking.util.FileUtil;
 import com.machinelinking.wikimedia.ProcessorReport;
-import com.machinelinking.wikimedia.WikiDumpMultiThreadProcessor;
 import org.apache.commons.io.IOUtils;
+import org.codehaus.jackson.map.ObjectMapper;
+import org.elasticsearch.action.admin.indices.alias.IndicesAliasesRequestBuilder;
 import org.elasticsearch.action.admin.indices.exists.indices.IndicesExistsResponse;
 import org.elasticsearch.client.Client;
+import org.elasticsearch.client.IndicesAdminClient;
 import org.elasticsearch.client.transport.TransportClient;
+import org.elasticsearch.common.settings.ImmutableSettings;
 import org.elasticsearch.common.transport.InetSocketTransportAddress;
 import org.xml.sax.SAXException;
 
@@ -14,38 +16,176 @@ import java.io.BufferedInputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.net.URL;
 import java.nio.charset.Charset;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
- * <strong>IndexCreator</strong> populates an elasticsearch index with sections data from wikipedia
+ * <strong>IndexCreator</strong> populates an elasticsearch index with sections data from wikipedia.
+ * The index is searched through the <code>jsonpedia</code> alias. A new index is built as a versioned index with
+ * refresh disabled and no replicas, and once it is loaded the alias is moved to it in a single atomic step, so that
+ * searches keep hitting the previous index for the whole rebuild.
  */
-public class ElasticSearchIndexCreator extends WikiDumpMultiThreadProcessor<ElasticsearchPageProcessor> {
+public class ElasticSearchIndexCreator extends EnrichingIndexCreator<ElasticsearchPageProcessor> {
 
-    private static final String indexName = "jsonpedia";
+    private static final String aliasName = "jsonpedia";
     private static final String sectionTypeName = "section";
     private static final String pageTypeName = "page";
 
     private final Client client;
+    private final String indexName;
+    private final boolean rebuilding;
+    private int replicas = 1;
+    private String refreshInterval = "1s";
+    private int optimizeSegments = 0;
+    private boolean deleteOldIndices = true;
+    private ElasticsearchPageProcessor.ContentStorage contentStorage = ElasticsearchPageProcessor.ContentStorage.JSON;
+    private BulkIngester ingester;
+
+    private int bulkActions = 1000;
+    private int bulkSizeMb = 5;
+    private int flushIntervalSeconds = 5;
+    private int concurrentRequests = 2;
+    private int maxRetries = 3;
+    private int decompressionThreads = Runtime.getRuntime().availableProcessors() / 2;
+
+    private Checkpointer checkpointer;
+    private int checkpointInterval;
+
+    private final IngestMetrics metrics = new IngestMetrics("elasticsearch");
+    private int metricsInterval = 30;
+    private File enrichedDump;
+    private String enrichedGeneration;
+    private final List<EnrichedDumpWriter> dumpWriters = new CopyOnWriteArrayList<>();
+
+    private boolean incremental = false;
+    private final AtomicLong unchangedPages = new AtomicLong();
+    private boolean flushed = false;
+
+    private FacetCounter facets;
+    private int facetTerms;
+    private File facetsFile;
+
+
+    /**
+     * Flushing the bulk ingester waits for elasticsearch to acknowledge every document added so far, not for the
+     * ones the workers keep adding meanwhile. The enriched dumps are flushed first, the documents stored with
+     * {@link ElasticsearchPageProcessor.ContentStorage#DUMP} point to records that must be on disk.
+     */
+    private final Checkpointer.Commit flushIngester = new Checkpointer.Commit() {
+        @Override
+        public void commit() throws IOException {
+            for(EnrichedDumpWriter writer: dumpWriters){
+                writer.flush();
+            }
+            try {
+                ingester.flush();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("interrupted while flushing the bulk ingester");
+            }
+        }
+    };
 
     public ProcessorReport export(URL pagePrefix, InputStream is) throws IOException {
         final BufferedInputStream bis =
                 is instanceof BufferedInputStream ? (BufferedInputStream) is: new BufferedInputStream(is);
 
+        boolean complete = false;
         try {
             final ProcessorReport report = super.process(
                     pagePrefix,
                     bis,
                     super.getBestNumberOfThreads()
             );
+            complete = true;
             return report;
         } catch (SAXException|IOException exc){
             throw new RuntimeException(exc);
+        } finally {
+            finish(complete);
         }
     }
 
     public ProcessorReport export(URL pagePrefix, File input) throws IOException {
-        return this.export(pagePrefix, FileUtil.openDecompressedInputStream(input));
+        final InputStream is = ParallelBZip2InputStream.open(input, decompressionThreads, metrics);
+        final ProcessorReport report = this.export(pagePrefix, is);
+        if(is instanceof ParallelBZip2InputStream){
+            System.out.println(is);
+        }
+        return report;
+    }
+
+    /**
+     * Index the pages of an enriched dump written by an earlier run, without enriching them again.
+     * Checkpoints are not supported, the chunks are read in parallel and pages do not come in id order.
+     * @param dumpDir directory holding the enriched dump chunks
+     */
+    public void exportEnriched(File dumpDir) throws IOException {
+        final EnrichedDumpReader reader = new EnrichedDumpReader(dumpDir);
+        initProcess();
+        final List<ElasticsearchPageProcessor> processors = new ArrayList<>();
+        for(int i = 0; i < super.getBestNumberOfThreads(); i++){
+            processors.add(initProcessor(i));
+        }
+        boolean complete = false;
+        try {
+            reader.read(processors, metrics);
+            complete = true;
+        } finally {
+            for(ElasticsearchPageProcessor processor: processors){
+                finalizeProcessor(processor);
+            }
+            finalizeProcess(null);
+            finish(complete);
+        }
+    }
+
+    /**
+     * Also write every enriched page to an enriched dump, must be called before exporting.
+     * @param dumpDir directory where every worker writes its chunks
+     */
+    public void setEnrichedDump(File dumpDir) {
+        this.enrichedDump = dumpDir;
+    }
+
+    /**
+     * How the page documents store the enriched pages, must be called before exporting.
+     * {@link ElasticsearchPageProcessor.ContentStorage#DUMP} needs an enriched dump, written with
+     * {@link #setEnrichedDump(File)} or read by {@link #exportEnriched(File)}, which must be kept along the index.
+     */
+    public void setContentStorage(ElasticsearchPageProcessor.ContentStorage contentStorage) {
+        this.contentStorage = contentStorage;
+    }
+
+    /**
+     * Count the section titles and categories while indexing, and publish the most frequent ones as the
+     * {@link FacetCounter#SUMMARY_ID} document of the {@link FacetCounter#SUMMARY_TYPE} type once the pages are
+     * indexed. The counts only cover the pages of this run, so it is meant for new indexes.
+     * Must be called before exporting.
+     * @param terms number of terms kept for each facet
+     * @param file also write the summary to this file, or null
+     */
+    public void setFacetSummary(int terms, File file) {
+        this.facets = new FacetCounter();
+        this.facetTerms = terms;
+        this.facetsFile = file;
+    }
+
+    /**
+     * @param decompressionThreads number of threads decompressing a bzip2 dump, 0 to decompress it sequentially
+     */
+    public void setDecompressionThreads(int decompressionThreads) {
+        this.decompressionThreads = decompressionThreads;
     }
 
     public String getFromClasspath(String resourcePath) throws IOException {
@@ -58,9 +198,20 @@ public class ElasticSearchIndexCreator extends WikiDumpMultiThreadProcessor<Elas
 
     /**
      * @param elasticsearchCluster list of host:port urls for the elasticsearch machines
-     * @param append append to the index instead of deleting it
+     * @param append append to the index behind the alias instead of building a new one
      */
     public ElasticSearchIndexCreator(String[] elasticsearchCluster, boolean append) throws IOException {
+        this(elasticsearchCluster, append, null);
+    }
+
+    /**
+     * @param elasticsearchCluster list of host:port urls for the elasticsearch machines
+     * @param append append to the index behind the alias instead of building a new one
+     * @param rebuildIndex existing versioned index to write to and then move the alias to, e.g. to resume an
+     *                     interrupted rebuild; null to build a new one or to append to the alias
+     */
+    public ElasticSearchIndexCreator(String[] elasticsearchCluster, boolean append, String rebuildIndex)
+            throws IOException {
         super();
         TransportClient cl = new TransportClient();
         for(String c: elasticsearchCluster){
@@ -81,46 +232,309 @@ public class ElasticSearchIndexCreator extends WikiDumpMultiThreadProcessor<Elas
         }
         this.client = cl;
 
-        if(!append){
-            final IndicesExistsResponse res = client.admin().indices().prepareExists(indexName).execute().actionGet();
-            if (res.isExists()) {
-                this.client.admin().indices()
-                        .prepareDelete(indexName)
-                        .execute()
-                        .actionGet();
+        if(rebuildIndex != null){
+            final IndicesExistsResponse res =
+                    client.admin().indices().prepareExists(rebuildIndex).execute().actionGet();
+            if(!res.isExists()){
+                throw new IOException(String.format("the index %s does not exist", rebuildIndex));
             }
-
-            String settings = getFromClasspath("org/dbpedia/analysis/settings.json");
-
+            this.indexName = rebuildIndex;
+            this.rebuilding = true;
+        } else if(append){
+            this.indexName = aliasName;
+            this.rebuilding = false;
+        } else {
+            this.indexName = aliasName + "_" + new SimpleDateFormat("yyyyMMddHHmmss").format(new Date());
+            this.rebuilding = true;
             this.client.admin().indices()
                     .prepareCreate(indexName)
-                    .setSource(settings)
+                    .setSource(bulkLoadSettings(getFromClasspath("org/dbpedia/analysis/settings.json")))
                     .execute()
                     .actionGet();
             this.client.admin().indices()
                     .prepareFlush(indexName)
                     .execute()
                     .actionGet();
+            System.out.println(String.format(
+                    "building %s, an interrupted run can be resumed with --rebuild-index %s", indexName, indexName
+            ));
         }
     }
 
+    /**
+     * Nothing needs to be searchable or replicated while the dump is loaded: refreshes are disabled and the
+     * replicas are only built once, from the loaded index.
+     * @param source settings and mappings of the index
+     */
+    @SuppressWarnings("unchecked")
+    private static String bulkLoadSettings(String source) throws IOException {
+        final ObjectMapper mapper = new ObjectMapper();
+        final Map<String, Object> index = mapper.readValue(source, Map.class);
+        Map<String, Object> settings = (Map<String, Object>) index.get("settings");
+        if(settings == null){
+            settings = new LinkedHashMap<>();
+            index.put("settings", settings);
+        }
+        Map<String, Object> indexSettings = (Map<String, Object>) settings.get("index");
+        if(indexSettings == null){
+            indexSettings = new LinkedHashMap<>();
+            settings.put("index", indexSettings);
+        }
+        indexSettings.put("refresh_interval", "-1");
+        indexSettings.put("number_of_replicas", 0);
+        return mapper.writeValueAsString(index);
+    }
+
+    /**
+     * Settings the new index gets once it is loaded, before the alias is moved to it. Must be called before
+     * exporting.
+     * @param replicas number of replicas of the index
+     * @param refreshInterval refresh interval of the index, e.g. <code>1s</code>
+     * @param optimizeSegments merge the index down to this many segments, 0 to skip it
+     * @param deleteOldIndices delete the indices the alias pointed to before
+     */
+    public void setPublishing(int replicas, String refreshInterval, int optimizeSegments, boolean deleteOldIndices) {
+        this.replicas = replicas;
+        this.refreshInterval = refreshInterval;
+        this.optimizeSegments = optimizeSegments;
+        this.deleteOldIndices = deleteOldIndices;
+    }
+
+    /**
+     * @return the index written to, the alias when appending
+     */
+    public String getIndexName() {
+        return indexName;
+    }
+
+    /**
+     * Give the new index its production settings and move the alias to it. The previous index is swapped out in
+     * the same request; only an index created before the alias existed, and named like it, has to be deleted first.
+     */
+    private void publishIndex() {
+        final IndicesAdminClient indices = client.admin().indices();
+        indices.prepareUpdateSettings(indexName)
+                .setSettings(ImmutableSettings.settingsBuilder()
+                        .put("index.refresh_interval", refreshInterval)
+                        .put("index.number_of_replicas", replicas))
+                .execute()
+                .actionGet();
+        if(optimizeSegments > 0){
+            indices.prepareOptimize(indexName)
+                    .setMaxNumSegments(optimizeSegments)
+                    .execute()
+                    .actionGet();
+        }
+        indices.prepareRefresh(indexName).execute().actionGet();
+        client.admin().cluster().prepareHealth(indexName).setWaitForYellowStatus().execute().actionGet();
+
+        final List<String> oldIndices = new ArrayList<>();
+        final Iterator<String> aliased = indices.prepareGetAliases(aliasName).execute().actionGet()
+                .getAliases().keysIt();
+        final boolean aliasExists = aliased.hasNext();
+        while(aliased.hasNext()){
+            final String index = aliased.next();
+            if(!index.equals(indexName)){
+                oldIndices.add(index);
+            }
+        }
+        // deleting the alias name would delete the indices behind it, only a plain index is deleted here
+        if(!aliasExists && indices.prepareExists(aliasName).execute().actionGet().isExists()){
+            System.out.println(String.format("deleting the %s index, it is replaced by an alias", aliasName));
+            indices.prepareDelete(aliasName).execute().actionGet();
+        }
+
+        final IndicesAliasesRequestBuilder swap = indices.prepareAliases();
+        for(String index: oldIndices){
+            swap.removeAlias(index, aliasName);
+        }
+        swap.addAlias(indexName, aliasName).execute().actionGet();
+        System.out.println(String.format("%s now points to %s", aliasName, indexName));
+
+        if(deleteOldIndices){
+            for(String index: oldIndices){
+                indices.prepareDelete(index).execute().actionGet();
+                System.out.println("deleted " + index);
+            }
+        }
+    }
+
+    /**
+     * Configure the bulk ingestion shared by all the workers, must be called before exporting.
+     * @param bulkActions number of documents that triggers a bulk
+     * @param bulkSizeMb size in megabytes that triggers a bulk
+     * @param flushIntervalSeconds max age of a bulk before it is sent
+     * @param concurrentRequests number of bulks allowed to be in flight
+     * @param maxRetries number of times a rejected document is sent again
+     */
+    public void configureBulk(int bulkActions, int bulkSizeMb, int flushIntervalSeconds,
+                              int concurrentRequests, int maxRetries) {
+        this.bulkActions = bulkActions;
+        this.bulkSizeMb = bulkSizeMb;
+        this.flushIntervalSeconds = flushIntervalSeconds;
+        this.concurrentRequests = concurrentRequests;
+        this.maxRetries = maxRetries;
+    }
+
+    /**
+     * Record checkpoints while ingesting, must be called before exporting.
+     * @param checkpointer checkpoint file the workers report to
+     * @param intervalSeconds seconds between two checkpoints
+     */
+    public void setCheckpointer(Checkpointer checkpointer, int intervalSeconds) {
+        this.checkpointer = checkpointer;
+        this.checkpointInterval = intervalSeconds;
+    }
+
+    /**
+     * @param metricsInterval seconds between two progress lines, 0 to disable them
+     */
+    public void setMetricsInterval(int metricsInterval) {
+        this.metricsInterval = metricsInterval;
+    }
+
+    /**
+     * @return the metrics of the ingestion, they are available through JMX while it runs
+     */
+    public IngestMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Only index the pages of the dump that are new or changed since they were indexed, must be called before
+     * exporting. The documents of a changed page are deleted before its new content is added.
+     */
+    public void setIncremental(boolean incremental) {
+        this.incremental = incremental;
+    }
+
     @Override
     public void initProcess() {
-
+        if(enrichedDump != null){
+            try {
+                enrichedGeneration = EnrichedDumpWriter.newGeneration(enrichedDump);
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
+        ingester = new BulkIngester(
+                client, bulkActions, bulkSizeMb, flushIntervalSeconds, concurrentRequests, maxRetries
+        );
+        if(checkpointer != null){
+            checkpointer.start(checkpointInterval, flushIngester);
+        }
+        metrics.gauge("bulk_pending", new IngestMetrics.Gauge() {
+            @Override
+            public long value() {
+                return ingester.getPending();
+            }
+        });
+        startHeavyLane(checkpointer);
+        metrics.start(metricsInterval);
     }
 
     @Override
     public ElasticsearchPageProcessor initProcessor(int i) {
-        return new ElasticsearchPageProcessor(client, indexName, pageTypeName, sectionTypeName);
+        final ElasticsearchPageProcessor processor = createWorker(i);
+        if(checkpointer != null){
+            processor.setCheckpointer(checkpointer);
+        }
+        return processor;
+    }
+
+    /**
+     * Build a processor, only the workers report to the checkpointer.
+     */
+    @Override
+    protected ElasticsearchPageProcessor createProcessor(int i) {
+        final ElasticsearchPageProcessor processor =
+                new ElasticsearchPageProcessor(client, ingester, indexName, pageTypeName, sectionTypeName);
+        processor.setContentStorage(contentStorage);
+        processor.setIncremental(incremental);
+        processor.setMetrics(metrics);
+        if(facets != null){
+            processor.setFacetCounter(new FacetCounter());
+        }
+        if(enrichedDump != null){
+            try {
+                final EnrichedDumpWriter writer = new EnrichedDumpWriter(enrichedDump, enrichedGeneration, i);
+                dumpWriters.add(writer);
+                processor.setDumpWriter(writer);
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
+        return processor;
     }
 
     @Override
     public void finalizeProcessor(ElasticsearchPageProcessor pageProcessor) {
+        unchangedPages.addAndGet(pageProcessor.getUnchangedPages());
+        if(facets != null){
+            synchronized (facets) {
+                facets.merge(pageProcessor.getFacetCounter());
+            }
+        }
+        pageProcessor.release();
+    }
 
+    private void publishFacets() throws IOException {
+        final byte[] summary = facets.summary(facetTerms);
+        client.prepareIndex(indexName, FacetCounter.SUMMARY_TYPE, FacetCounter.SUMMARY_ID)
+                .setSource(summary)
+                .execute()
+                .actionGet();
+        if(facetsFile != null){
+            facets.writeSummary(facetsFile, facetTerms);
+        }
+        System.out.println(facets);
     }
 
     @Override
     public void finalizeProcess(ProcessorReport processorReport) {
-        client.close();
+        try {
+            finishHeavyLane();
+            if(checkpointer != null){
+                checkpointer.finish(flushIngester);
+            }
+            ingester.close();
+            System.out.println(ingester);
+            if(facets != null){
+                publishFacets();
+            }
+            if(incremental){
+                System.out.println("incremental: " + unchangedPages.get() + " unchanged pages skipped");
+            }
+            flushed = true;
+        } catch (IOException e) {
+            e.printStackTrace();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            metrics.stop();
+        }
+    }
+
+    /**
+     * Publish a new index once the whole dump is in it, and close the client. An index whose load failed is left
+     * as it is, behind the previous one, to be resumed.
+     * @param complete whether every page of the dump was processed
+     */
+    public void finish(boolean complete) {
+        try {
+            if(rebuilding){
+                if(complete && flushed){
+                    publishIndex();
+                } else {
+                    System.err.println(String.format(
+                            "%s is not complete, the %s alias is left on the previous index; resume it with "
+                                    + "--rebuild-index %s --resume",
+                            indexName, aliasName, indexName
+                    ));
+                }
+            }
+        } finally {
+            client.close();
+        }
     }
 }
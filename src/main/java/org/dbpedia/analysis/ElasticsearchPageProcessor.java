@@ -2,209 +2,238 @@ package org.dbpedia.analysis;
 
 import com.machinelinking.enricher.WikiEnricher;
 import com.machinelinking.enricher.WikiEnricherFactory;
-import com.machinelinking.parser.DocumentSource;
-import com.machinelinking.serializer.JSONSerializer;
-import com.machinelinking.util.JSONUtils;
-import com.machinelinking.wikimedia.PageProcessor;
-import com.machinelinking.wikimedia.WikiPage;
 import org.codehaus.jackson.JsonNode;
-import org.codehaus.jackson.map.ObjectMapper;
-import org.codehaus.jackson.util.TokenBuffer;
-import org.elasticsearch.action.bulk.BulkRequestBuilder;
-import org.elasticsearch.action.bulk.BulkResponse;
+import org.elasticsearch.action.get.GetResponse;
+import org.elasticsearch.action.index.IndexRequest;
 import org.elasticsearch.client.Client;
+import org.elasticsearch.index.get.GetField;
+import org.elasticsearch.index.query.QueryBuilders;
 import org.elasticsearch.common.xcontent.XContentBuilder;
 import java.io.IOException;
-import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
 
 import static org.elasticsearch.common.xcontent.XContentFactory.*;
 
-public class ElasticsearchPageProcessor implements PageProcessor {
+public class ElasticsearchPageProcessor extends EnrichingPageProcessor {
+    /**
+     * How the enriched page is stored in the page document.
+     */
+    public enum ContentStorage {
+        /**
+         * As json, in the <code>content</code> field.
+         */
+        JSON,
+        /**
+         * As deflated smile, see {@link PageContentCodec}, in the <code>content_smile</code> binary field.
+         */
+        SMILE,
+        /**
+         * Not in the index: the <code>content_blob</code> field holds the location of the page in the enriched dump
+         * written along the index, or read from, see {@link EnrichedDumpReader#readRecord(java.io.File, String)}.
+         */
+        DUMP
+    }
 
     private static String indexName;
     private static String sectionTypeName;
     private static String pageTypeName;
 
-    private long processedPages = 0;
-    private long errorPages = 0;
-    private final ObjectMapper mapper = new ObjectMapper();
-
     private Client client;
+    private final BulkIngester ingester;
+    private ContentStorage contentStorage = ContentStorage.JSON;
+    private PageContentCodec codec;
 
-    public ElasticsearchPageProcessor(Client client, String indexName, String pageTypeName, String sectionTypeName){
+    public ElasticsearchPageProcessor(Client client, BulkIngester ingester,
+                                      String indexName, String pageTypeName, String sectionTypeName){
         this.pageTypeName = pageTypeName;
         this.sectionTypeName = sectionTypeName;
         this.indexName = indexName;
         this.client = client;
+        this.ingester = ingester;
     }
 
-    /**
-     * Get all the links from the given json node
-     * Both external links and internal references in wikipedia have the same json format in jsonpedia.
-     */
-    private Link[] getLinks(JsonNode l) throws IOException {
-        if(l.isMissingNode()){
-            return new Link[]{};
-        }
-
-        Link[] links = mapper.readValue(l, Link[].class);
-        if(links == null){
-            return new Link[]{};
-        }
-        return links;
+    public void setContentStorage(ContentStorage contentStorage) {
+        this.contentStorage = contentStorage;
     }
 
     /**
-     * addLinks add every link in l that belongs to the current section in the json builder
+     * addLinks add the links of a section in the json builder
      * @param outName name of the key for the json document (e.g.: links or references)
-     * @param l list of all links
-     * @param currentSection current section
+     * @param l links of the current section
      * @param b json builder
      */
-    private void addLinks(String outName, Link[] l, int currentSection, XContentBuilder b) throws IOException {
+    private static void addLinks(String outName, Link[] l, XContentBuilder b) throws IOException {
         b.startArray(outName);
         for(Link li: l){
-            if(li.section_idx != currentSection){
-                continue;
-            }
             b.startObject();
-            if(li.description == null || li.description == ""){
-                if(outName == "links"){
-                    li.description = "__MISSING__";
-                } else {
-                    li.description = li.url;
-                }
-            }
-            b.field("name", li.description);
+            b.field("name", li.indexedName(!outName.equals("links")));
             b.field("url", li.url);
             b.endObject();
         }
         b.endArray();
     }
 
-
-    /**
-     * Get all the ancestors of the given section.
-     * @return an array containing the names of all the ancestors
-     */
-    private String[] getAncestors(JsonNode sections, JsonNode currentSection) throws IOException {
-        Integer[] ancestors = mapper.readValue(currentSection.path("ancestors"), Integer[].class);
-        if(ancestors == null){
-            return new String[]{};
-        }
-        String[] ancestors_str = new String[ancestors.length];
-        for(int i = 0; i < ancestors.length; i++){
-            ancestors_str[i] = sections.path(ancestors[i]).path("title").getTextValue().trim();
-        }
-        return ancestors_str;
-    }
-
-    private boolean indexPage(JsonNode root, WikiPage page) throws IOException {
-        String pageTitle = page.getTitle();
-        int id = page.getId();
+    private IndexRequest pageRequest(EnrichedPage enriched, int id, String pageTitle, String contentHash)
+            throws IOException {
         XContentBuilder b = jsonBuilder()
                 .startObject()
                     .field("title", pageTitle)
                     .field("page_id", id)
-                    .rawField("content", mapper.writeValueAsBytes(root))
-                .endObject();
-        return client.prepareIndex(indexName, pageTypeName).setSource(b).execute().actionGet().isCreated();
+                    .field("content_hash", contentHash)
+                    .field("content_bytes", enriched.getContent().length);
+        switch (contentStorage) {
+            case SMILE:
+                if(codec == null){
+                    codec = new PageContentCodec();
+                }
+                b.field("content_smile", codec.encode(enriched.getContent()));
+                break;
+            case DUMP:
+                if(dumpLocation() == null){
+                    throw new IOException(pageTitle + " is not in an enriched dump");
+                }
+                b.field("content_blob", dumpLocation());
+                break;
+            default:
+                b.rawField("content", enriched.getContent());
+        }
+        b.endObject();
+        return client.prepareIndex(indexName, pageTypeName, pageDocumentId(id))
+                .setRouting(pageRouting(id))
+                .setSource(b)
+                .request();
     }
 
     /**
-     * indexes a single page into elasticsearch
-     * @param root root of the json tree
+     * builds the section documents of a single page
+     * @param enriched the enriched page
+     * @param requests the index requests of the sections are added here
      * @throws java.io.IOException
      */
-    private boolean indexSections(JsonNode root, WikiPage page) throws IOException {
-        String pageTitle = page.getTitle();
-        int pageId = page.getId();
-        JsonNode sections = root.path("sections");
-        Link[] links = getLinks(root.path("links"));
-        Link[] references = getLinks(root.path("references"));
+    private void sectionRequests(EnrichedPage enriched, int pageId, String pageTitle, List<IndexRequest> requests)
+            throws IOException {
+        JsonNode sections = enriched.getSections();
 
         if (sections.isMissingNode()) {
             throw new IOException("sections were expected in the json document"); //TODO: specify some other type of exception
         }
 
-        String[] cats = mapper.readValue(root.path("categories").path("content"), String[].class);
-        if(cats == null){
-            cats = new String[]{};
-        }
+        String[] cats = enriched.getCategories();
 
-        XContentBuilder b;
-        BulkRequestBuilder bulkRequest = client.prepareBulk();
-
-        JsonNode currentSection = sections.path(0);
-
-        int currentSectionIdx = 1;
-        while(!currentSection.isMissingNode()){
-            b = jsonBuilder().startObject();
-            b.field("page_id", pageId);
-            b.field("page_title", pageTitle);
-            b.field("page_categories", cats);
-            b.field("section_title", currentSection.path("title").getTextValue());
-            String[] ancestors = getAncestors(sections, currentSection);
-            b.field("ancestors", ancestors);
-            addLinks("links", links, currentSectionIdx, b);
-            addLinks("references", references, currentSectionIdx, b);
-            currentSection = sections.path(currentSectionIdx);
-            b.endObject();
-            bulkRequest.add(client.prepareIndex(indexName, sectionTypeName).setSource(b));
+        for(int i = 0; i < enriched.getSectionCount(); i++){
+            XContentBuilder b = sectionDocument(pageId, pageTitle, cats, enriched, i);
+            requests.add(
+                    client.prepareIndex(indexName, sectionTypeName, sectionDocumentId(pageId, i))
+                            .setRouting(pageRouting(pageId))
+                            .setSource(b)
+                            .request()
+            );
+        }
+    }
 
-            // next section
-            currentSectionIdx++;
+    /**
+     * builds the document of a single section, the json of the section node is stored in section_content so that
+     * extractors do not need to fetch and scan the whole page
+     * @param position position of the section in the sections array
+     */
+    static XContentBuilder sectionDocument(int pageId, String pageTitle, String[] cats,
+                                           EnrichedPage enriched, int position) throws IOException {
+        XContentBuilder b = jsonBuilder().startObject();
+        b.field("page_id", pageId);
+        b.field("page_title", pageTitle);
+        b.field("page_categories", cats);
+        b.field("section_idx", position);
+        b.field("section_title", enriched.getSectionTitle(position));
+        b.field("ancestors", enriched.getAncestors(position));
+        addLinks("links", enriched.getSectionLinks(position), b);
+        addLinks("references", enriched.getSectionReferences(position), b);
+        final byte[] content = enriched.getSectionContent(position);
+        if(content != null){
+            b.rawField("section_content", content);
         }
+        return b.endObject();
+    }
 
-        if(bulkRequest.numberOfActions() > 1){
-            BulkResponse bulkResponse = bulkRequest.execute().actionGet();
-            return !bulkResponse.hasFailures();
+    @Override
+    protected WikiEnricher createEnricher() {
+        return WikiEnricherFactory.getInstance().createFullyConfiguredInstance(
+                WikiEnricherFactory.Extractors,
+                WikiEnricherFactory.Structure
+        );
+    }
+
+    @Override
+    protected boolean indexEnrichedPage(int pageId, String title, String contentHash, EnrichedPage enriched)
+            throws IOException {
+        final List<IndexRequest> requests = new ArrayList<>(enriched.getSectionCount() + 1);
+        requests.add(pageRequest(enriched, pageId, title, contentHash));
+        sectionRequests(enriched, pageId, title, requests);
+        countFacets(enriched);
+        recordStage(IngestMetrics.Stage.DOCUMENT, documentStart());
+
+        // blocks while all the bulks are in flight
+        final long sinkStart = System.nanoTime();
+        for(IndexRequest request: requests){
+            ingester.add(request);
         }
+        recordStage(IngestMetrics.Stage.SINK, sinkStart);
         return true;
     }
 
+    /**
+     * Realtime get of the page document, it also sees the pages sent by this run and not yet refreshed.
+     */
     @Override
-    public void processPage(String pagePrefix, String threadId, WikiPage page) {
-        try {
-            TokenBuffer buffer = JSONUtils.createJSONBuffer();
-            final JSONSerializer serializer = new JSONSerializer(buffer);
-
-            final WikiEnricher enricher = WikiEnricherFactory.getInstance().createFullyConfiguredInstance(
-                    WikiEnricherFactory.Extractors,
-                    WikiEnricherFactory.Structure
-            );
+    protected String indexedContentHash(int pageId) throws IOException {
+        final GetResponse response = client.prepareGet(indexName, pageTypeName, pageDocumentId(pageId))
+                .setRouting(pageRouting(pageId))
+                .setFields("content_hash")
+                .execute()
+                .actionGet();
+        if(!response.isExists()){
+            return null;
+        }
+        final GetField hash = response.getField("content_hash");
+        return hash == null ? "" : (String) hash.getValue();
+    }
 
-            enricher.enrichEntity(
-                    new DocumentSource(
-                            new URL(pagePrefix), // not used
-                            page.getContent()
-                    ),
-                    serializer
-            );
-            final JsonNode root = JSONUtils.bufferToJSONNode(buffer);
-            boolean successPage = indexPage(root, page);
-            boolean successSections = indexSections(root, page);
-            if(successPage && successSections){
-                processedPages++;
-            } else {
-                errorPages++;
-            }
-            if((processedPages + errorPages) % 100 == 0){
-                System.out.println("*************************************************");
-            }
-        } catch(Exception e) {
-            e.printStackTrace();
-            errorPages++;
+    /**
+     * The page document and the first sections are overwritten by id, only the sections the new page does not
+     * have anymore are deleted. A page not indexed anymore loses all its documents.
+     */
+    @Override
+    protected void deletePage(int pageId, int sections) throws IOException {
+        if(sections < 0){
+            client.prepareDeleteByQuery(indexName)
+                    .setTypes(pageTypeName, sectionTypeName)
+                    .setRouting(pageRouting(pageId))
+                    .setQuery(QueryBuilders.termQuery("page_id", pageId))
+                    .execute()
+                    .actionGet();
+            return;
         }
+        client.prepareDeleteByQuery(indexName)
+                .setTypes(sectionTypeName)
+                .setRouting(pageRouting(pageId))
+                .setQuery(QueryBuilders.boolQuery()
+                        .must(QueryBuilders.termQuery("page_id", pageId))
+                        .must(QueryBuilders.rangeQuery("section_idx").gte(sections)))
+                .execute()
+                .actionGet();
     }
 
     @Override
-    public long getProcessedPages() {
-        return processedPages;
+    public void release() {
+        super.release();
+        if(codec != null){
+            codec.close();
+            codec = null;
+        }
     }
 
     @Override
-    public long getErrorPages() {
-        return errorPages;
+    protected void pageFailed(String title, Exception e) {
+        e.printStackTrace();
     }
 }
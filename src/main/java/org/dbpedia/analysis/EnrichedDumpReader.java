@@ -0,0 +1,410 @@
+package org.dbpedia.analysis;
+
+import org.codehaus.jackson.JsonParser;
+import org.codehaus.jackson.JsonToken;
+import org.codehaus.jackson.smile.SmileFactory;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.FileInputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * <strong>EnrichedDumpReader</strong> reads back the chunks written by {@link EnrichedDumpWriter}.
+ * Every processor runs on its own thread and takes whole chunks from a shared queue, each chunk is memory mapped
+ * and its records are inflated and handed to the processor one at a time.
+ * Only the records listed in the <code>.idx</code> file of a chunk are read, a chunk cut short by a crash is
+ * read up to its last complete record.
+ * A page written by several runs is only read from the latest generation holding it. The chunks of dumps written
+ * before generations existed are at the top of the directory, and older than any generation.
+ */
+public class EnrichedDumpReader {
+    private static final SmileFactory SMILE = new SmileFactory();
+
+    private final List<Chunk> chunks = new ArrayList<>();
+    private final int generations;
+
+    /**
+     * @param dir directory holding the chunks
+     * @throws IOException if the directory holds no chunk
+     */
+    public EnrichedDumpReader(File dir) throws IOException {
+        final File[] generationDirs = dir.listFiles(new FileFilter() {
+            @Override
+            public boolean accept(File file) {
+                return file.isDirectory() && EnrichedDumpWriter.generationNumber(file.getName()) >= 0;
+            }
+        });
+        if(generationDirs == null){
+            throw new IOException(String.format("%s does not contain an enriched dump", dir));
+        }
+        Arrays.sort(generationDirs, new Comparator<File>() {
+            @Override
+            public int compare(File a, File b) {
+                return Integer.compare(
+                        EnrichedDumpWriter.generationNumber(a.getName()),
+                        EnrichedDumpWriter.generationNumber(b.getName())
+                );
+            }
+        });
+        addChunks(dir, null, 0);
+        for(int i = 0; i < generationDirs.length; i++){
+            addChunks(generationDirs[i], generationDirs[i].getName(), i + 1);
+        }
+        if(chunks.isEmpty()){
+            throw new IOException(String.format("%s does not contain an enriched dump", dir));
+        }
+        this.generations = generationDirs.length + 1;
+    }
+
+    private void addChunks(File dir, String generation, int order) {
+        final File[] files = dir.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File d, String name) {
+                return name.endsWith(EnrichedDumpWriter.CHUNK_SUFFIX);
+            }
+        });
+        if(files == null){
+            return;
+        }
+        Arrays.sort(files);
+        for(File file: files){
+            final String name = file.getName().substring(
+                    0, file.getName().length() - EnrichedDumpWriter.CHUNK_SUFFIX.length()
+            );
+            chunks.add(new Chunk(file, generation == null ? name : generation + "/" + name, order));
+        }
+    }
+
+    /**
+     * A chunk file, with its name in the record locations and the order of its generation.
+     */
+    private static class Chunk {
+        private final File file;
+        private final String name;
+        private final int generation;
+
+        private Chunk(File file, String name, int generation) {
+            this.file = file;
+            this.name = name;
+            this.generation = generation;
+        }
+    }
+
+    /**
+     * The page ids and offsets of the complete records of a chunk.
+     */
+    private static class ChunkIndex {
+        private final int[] pageIds;
+        private final long[] offsets;
+
+        private ChunkIndex(int[] pageIds, long[] offsets) {
+            this.pageIds = pageIds;
+            this.offsets = offsets;
+        }
+    }
+
+    /**
+     * A page read from a chunk, valid until the next page of the same chunk is read.
+     */
+    public static class Record {
+        private final int pageId;
+        private final String title;
+        private final String contentHash;
+        private final long contentBytes;
+        private final JsonParser enriched;
+        private final String location;
+
+        private Record(int pageId, String title, String contentHash, long contentBytes, JsonParser enriched,
+                       String location) {
+            this.pageId = pageId;
+            this.title = title;
+            this.contentHash = contentHash;
+            this.contentBytes = contentBytes;
+            this.enriched = enriched;
+            this.location = location;
+        }
+
+        public int getPageId() {
+            return pageId;
+        }
+
+        public String getTitle() {
+            return title;
+        }
+
+        public String getContentHash() {
+            return contentHash;
+        }
+
+        /**
+         * @return size in bytes of the wikitext the page was enriched from
+         */
+        public long getContentBytes() {
+            return contentBytes;
+        }
+
+        /**
+         * @return parser over the enriched page, positioned before its root object
+         */
+        public JsonParser getEnriched() {
+            return enriched;
+        }
+
+        /**
+         * @return where the record is in the dump, see {@link #readRecord(File, String)}
+         */
+        public String getLocation() {
+            return location;
+        }
+    }
+
+    /**
+     * Hand every page of the dump to one of the processors, returns once all of them are done.
+     * @param metrics inflating the records is recorded as decompression
+     */
+    public void read(List<? extends EnrichingPageProcessor> processors, final IngestMetrics metrics)
+            throws IOException {
+        final BitSet[] replaced = replacedPages();
+        final Queue<Chunk> queue = new ConcurrentLinkedQueue<>(chunks);
+        final ExecutorService workers = Executors.newFixedThreadPool(processors.size());
+        try {
+            final List<Future<Void>> done = new ArrayList<>();
+            for(final EnrichingPageProcessor processor: processors){
+                done.add(workers.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws IOException {
+                        final Inflater inflater = new Inflater();
+                        try {
+                            Chunk chunk;
+                            while((chunk = queue.poll()) != null){
+                                readChunk(chunk, replaced == null ? null : replaced[chunk.generation], processor,
+                                        inflater, metrics);
+                            }
+                        } finally {
+                            inflater.end();
+                        }
+                        return null;
+                    }
+                }));
+            }
+            for(Future<Void> f: done){
+                f.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted while reading the enriched dump", e);
+        } catch (ExecutionException e) {
+            throw new IOException("cannot read the enriched dump", e.getCause());
+        } finally {
+            workers.shutdownNow();
+        }
+    }
+
+    /**
+     * @return for every generation, the pages a later generation holds too; null if there is a single generation
+     */
+    private BitSet[] replacedPages() throws IOException {
+        boolean single = true;
+        for(Chunk chunk: chunks){
+            single &= chunk.generation == chunks.get(0).generation;
+        }
+        if(single){
+            return null;
+        }
+        final BitSet[] replaced = new BitSet[generations];
+        final BitSet later = new BitSet();
+        for(int generation = generations - 1; generation >= 0; generation--){
+            replaced[generation] = (BitSet) later.clone();
+            for(Chunk chunk: chunks){
+                if(chunk.generation == generation){
+                    for(int pageId: readIndex(chunk.file).pageIds){
+                        if(pageId >= 0){
+                            later.set(pageId);
+                        }
+                    }
+                }
+            }
+        }
+        return replaced;
+    }
+
+    /**
+     * Read the index of a chunk, without the records a crash left incomplete.
+     */
+    private static ChunkIndex readIndex(File chunk) throws IOException {
+        final String path = chunk.getPath();
+        final File idx = new File(
+                path.substring(0, path.length() - EnrichedDumpWriter.CHUNK_SUFFIX.length())
+                        + EnrichedDumpWriter.INDEX_SUFFIX
+        );
+        int records = (int) (idx.length() / 12);
+        final int[] pageIds = new int[records];
+        final long[] offsets = new long[records];
+        try (InputStream is = new FileInputStream(idx)) {
+            final DataInputStream in = new DataInputStream(new BufferedInputStream(is));
+            for(int i = 0; i < records; i++){
+                pageIds[i] = in.readInt();
+                offsets[i] = in.readLong();
+            }
+        }
+        // the chunk is written before its index, but the buffers of both may have been flushed at any point
+        try (RandomAccessFile file = new RandomAccessFile(chunk, "r")) {
+            final long size = file.length();
+            while(records > 0){
+                final long offset = offsets[records - 1];
+                if(offset + 4 <= size){
+                    file.seek(offset);
+                    if(offset + 4 + file.readInt() <= size){
+                        break;
+                    }
+                }
+                records--;
+            }
+        }
+        return new ChunkIndex(Arrays.copyOf(pageIds, records), Arrays.copyOf(offsets, records));
+    }
+
+    /**
+     * Read a single record of a dump, the page is inflated while it is parsed.
+     * @param dir directory holding the chunks
+     * @param location location of the record, see {@link EnrichedDumpWriter#write(int, String, String, long, byte[])}
+     * @return the record, its parser must be closed once the page is read
+     */
+    public static Record readRecord(File dir, String location) throws IOException {
+        final int colon = location.lastIndexOf(':');
+        if(colon < 0){
+            throw new IOException(String.format("%s is not the location of an enriched page", location));
+        }
+        final File chunk = new File(dir, location.substring(0, colon) + EnrichedDumpWriter.CHUNK_SUFFIX);
+        final long offset;
+        try {
+            offset = Long.parseLong(location.substring(colon + 1));
+        } catch (NumberFormatException e) {
+            throw new IOException(String.format("%s is not the location of an enriched page", location), e);
+        }
+
+        final byte[] compressed;
+        try (RandomAccessFile file = new RandomAccessFile(chunk, "r")) {
+            file.seek(offset);
+            compressed = new byte[file.readInt()];
+            file.readFully(compressed);
+        }
+        return parseRecord(
+                SMILE.createJsonParser(new InflaterInputStream(new ByteArrayInputStream(compressed))), location
+        );
+    }
+
+    /**
+     * @param replaced pages to skip, a later generation holds them; null to read every page
+     */
+    private void readChunk(Chunk chunk, BitSet replaced, EnrichingPageProcessor processor, Inflater inflater,
+                           IngestMetrics metrics) throws IOException {
+        final ChunkIndex index = readIndex(chunk.file);
+        try (FileChannel channel = FileChannel.open(chunk.file.toPath(), StandardOpenOption.READ)) {
+            final long size = channel.size();
+            final MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            byte[] compressed = new byte[1 << 16];
+            byte[] page = new byte[1 << 18];
+
+            for(int i = 0; i < index.offsets.length; i++){
+                if(replaced != null && index.pageIds[i] >= 0 && replaced.get(index.pageIds[i])){
+                    continue;
+                }
+                final long offset = index.offsets[i];
+                map.position((int) offset);
+                final int length = map.getInt();
+                if(compressed.length < length){
+                    compressed = new byte[Math.max(length, compressed.length * 2)];
+                }
+                map.get(compressed, 0, length);
+
+                final long start = System.nanoTime();
+                inflater.reset();
+                inflater.setInput(compressed, 0, length);
+                int n = 0;
+                try {
+                    while(!inflater.finished()){
+                        if(n == page.length){
+                            page = Arrays.copyOf(page, page.length * 2);
+                        }
+                        final int inflated = inflater.inflate(page, n, page.length - n);
+                        if(inflated == 0 && (inflater.needsInput() || inflater.needsDictionary())){
+                            throw new EOFException("truncated record in " + chunk.file);
+                        }
+                        n += inflated;
+                    }
+                } catch (DataFormatException e) {
+                    throw new IOException("corrupted record in " + chunk.file, e);
+                }
+                metrics.record(IngestMetrics.Stage.DECOMPRESSION, start, n);
+
+                processor.processEnriched(parseRecord(
+                        SMILE.createJsonParser(page, 0, n), EnrichedDumpWriter.location(chunk.name, offset)
+                ));
+            }
+        }
+    }
+
+    /**
+     * Read the fields written before the page, and leave the parser on the page field.
+     */
+    private static Record parseRecord(JsonParser parser, String location) throws IOException {
+        if(parser.nextToken() != JsonToken.START_OBJECT){
+            throw new IOException("a smile object was expected for an enriched page");
+        }
+        int pageId = -1;
+        String title = null;
+        String contentHash = null;
+        long contentBytes = 0;
+        while(parser.nextToken() == JsonToken.FIELD_NAME){
+            final String field = parser.getCurrentName();
+            if(field.equals("page")){
+                return new Record(pageId, title, contentHash, contentBytes, parser, location);
+            }
+            parser.nextToken();
+            switch (field) {
+                case "id":
+                    pageId = parser.getIntValue();
+                    break;
+                case "title":
+                    title = parser.getText();
+                    break;
+                case "content_hash":
+                    contentHash = parser.getText();
+                    break;
+                case "content_bytes":
+                    contentBytes = parser.getLongValue();
+                    break;
+                default:
+                    parser.skipChildren();
+            }
+        }
+        throw new IOException("enriched page without a page field");
+    }
+}
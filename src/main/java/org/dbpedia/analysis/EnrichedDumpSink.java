@@ -0,0 +1,52 @@
+package org.dbpedia.analysis;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * <strong>EnrichedDumpSink</strong> writes the pages to an enriched dump, every sink thread to chunks of its own.
+ * The dump can be read back with {@link EnrichedDumpReader}.
+ */
+public class EnrichedDumpSink implements PageSink {
+    private final File dir;
+    private String generation;
+
+    /**
+     * @param dir directory holding the chunks of all the threads
+     */
+    public EnrichedDumpSink(File dir) {
+        this.dir = dir;
+    }
+
+    @Override
+    public String getName() {
+        return "dump";
+    }
+
+    @Override
+    public void open() throws IOException {
+        generation = EnrichedDumpWriter.newGeneration(dir);
+    }
+
+    @Override
+    public Writer createWriter(int thread) throws IOException {
+        final EnrichedDumpWriter writer = new EnrichedDumpWriter(dir, generation, thread);
+        return new Writer() {
+            @Override
+            public boolean write(int pageId, String title, String contentHash, long contentBytes,
+                                 EnrichedPage enriched) throws IOException {
+                writer.write(pageId, title, contentHash, contentBytes, enriched.getContent());
+                return true;
+            }
+
+            @Override
+            public void close() throws IOException {
+                writer.close();
+            }
+        };
+    }
+
+    @Override
+    public void close(boolean complete) {
+    }
+}
@@ -0,0 +1,233 @@
+package org.dbpedia.analysis;
+
+import org.codehaus.jackson.JsonFactory;
+import org.codehaus.jackson.JsonGenerator;
+import org.codehaus.jackson.JsonParser;
+import org.codehaus.jackson.smile.SmileFactory;
+import org.codehaus.jackson.smile.SmileGenerator;
+import org.codehaus.jackson.util.TokenBuffer;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * <strong>EnrichedDumpWriter</strong> writes the enriched pages of a worker to chunk files, so that indexes can be
+ * rebuilt later without running jsonpedia again.
+ * Every record of a chunk is a 4 bytes length followed by a deflated smile object holding the page id, title,
+ * content hash and size, and the enriched page itself. Next to every <code>.chunk</code> file an <code>.idx</code>
+ * file lists the page id and offset of each record. Each worker writes its own chunks, no locking is needed.
+ * Every run writes to a new generation, a directory of the dump: the chunks of an earlier run, which an index may
+ * point to, are never overwritten, and readers keep the record of the latest generation when a page is in several.
+ * The location of a record, <code>generation/chunk:offset</code>, can be stored elsewhere to read the page back
+ * alone, see {@link EnrichedDumpReader#readRecord(File, String)}.
+ */
+public class EnrichedDumpWriter implements Closeable {
+    public static final String CHUNK_SUFFIX = ".chunk";
+    public static final String INDEX_SUFFIX = ".idx";
+    public static final String GENERATION_PREFIX = "generation-";
+
+    /**
+     * Chunks are memory mapped when read, so they are kept well below 2GB.
+     */
+    public static final long DEFAULT_CHUNK_BYTES = 256L << 20;
+
+    private static final JsonFactory JSON = new JsonFactory();
+
+    private final File dir;
+    private final String generation;
+    private final int worker;
+    private final long chunkBytes;
+    private final SmileFactory smile = createSmileFactory();
+    private final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+    private final ByteArrayOutputStream record = new ByteArrayOutputStream(1 << 16);
+
+    private int chunk = -1;
+    private String chunkName;
+    private long offset;
+    private DataOutputStream data;
+    private DataOutputStream index;
+
+    /**
+     * @param dir directory of the dump
+     * @param generation generation the worker writes to, see {@link #newGeneration(File)}
+     * @param worker number of the worker, part of the chunk file names
+     */
+    public EnrichedDumpWriter(File dir, String generation, int worker) throws IOException {
+        this(dir, generation, worker, DEFAULT_CHUNK_BYTES);
+    }
+
+    public EnrichedDumpWriter(File dir, String generation, int worker, long chunkBytes) throws IOException {
+        this.dir = new File(dir, generation);
+        if(!this.dir.isDirectory()){
+            throw new IOException(String.format("%s is not a generation of the enriched dump %s", generation, dir));
+        }
+        this.generation = generation;
+        this.worker = worker;
+        this.chunkBytes = chunkBytes;
+        nextChunk();
+    }
+
+    /**
+     * Create the directory of a new generation, called once per run before its writers are created.
+     * @param dir directory of the dump, created if needed
+     * @return the name of the generation, after the ones already in the dump
+     */
+    public static synchronized String newGeneration(File dir) throws IOException {
+        if(!dir.isDirectory() && !dir.mkdirs()){
+            throw new IOException(String.format("cannot create the enriched dump directory %s", dir));
+        }
+        int last = -1;
+        final String[] names = dir.list();
+        if(names != null){
+            for(String name: names){
+                last = Math.max(last, generationNumber(name));
+            }
+        }
+        final String generation = String.format("%s%05d", GENERATION_PREFIX, last + 1);
+        if(!new File(dir, generation).mkdir()){
+            throw new IOException(String.format("cannot create the generation %s of %s", generation, dir));
+        }
+        return generation;
+    }
+
+    /**
+     * @return the number of a generation directory, -1 if the name is not one
+     */
+    static int generationNumber(String name) {
+        if(!name.startsWith(GENERATION_PREFIX)){
+            return -1;
+        }
+        try {
+            return Integer.parseInt(name.substring(GENERATION_PREFIX.length()));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Names and string values are written in full, readers do not need to track back references.
+     */
+    static SmileFactory createSmileFactory() {
+        final SmileFactory smile = new SmileFactory();
+        smile.configure(SmileGenerator.Feature.CHECK_SHARED_NAMES, false);
+        smile.configure(SmileGenerator.Feature.CHECK_SHARED_STRING_VALUES, false);
+        return smile;
+    }
+
+    /**
+     * @return the location of a record, as stored next to the page
+     */
+    static String location(String chunkName, long offset) {
+        return chunkName + ":" + offset;
+    }
+
+    private void nextChunk() throws IOException {
+        closeChunk();
+        chunk++;
+        chunkName = String.format("enriched-%03d-%05d", worker, chunk);
+        data = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(new File(dir, chunkName + CHUNK_SUFFIX)), 1 << 16
+        ));
+        index = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(new File(dir, chunkName + INDEX_SUFFIX))
+        ));
+        offset = 0;
+    }
+
+    /**
+     * Append an enriched page to the current chunk.
+     * @param contentBytes size of the page wikitext in bytes
+     * @param buffer the enriched json of the page
+     * @return the location of the record
+     */
+    public String write(int pageId, String title, String contentHash, long contentBytes, TokenBuffer buffer)
+            throws IOException {
+        final JsonGenerator generator = startRecord(pageId, title, contentHash, contentBytes);
+        buffer.serialize(generator);
+        return endRecord(pageId, generator);
+    }
+
+    /**
+     * Append an enriched page to the current chunk.
+     * @param contentBytes size of the page wikitext in bytes
+     * @param json the enriched page as json, see {@link EnrichedPage#getContent()}
+     * @return the location of the record
+     */
+    public String write(int pageId, String title, String contentHash, long contentBytes, byte[] json)
+            throws IOException {
+        final JsonGenerator generator = startRecord(pageId, title, contentHash, contentBytes);
+        final JsonParser parser = JSON.createJsonParser(json);
+        parser.nextToken();
+        generator.copyCurrentStructure(parser);
+        parser.close();
+        return endRecord(pageId, generator);
+    }
+
+    /**
+     * @return the generator of a new record, positioned where the page goes
+     */
+    private JsonGenerator startRecord(int pageId, String title, String contentHash, long contentBytes)
+            throws IOException {
+        record.reset();
+        deflater.reset();
+        final DeflaterOutputStream deflated = new DeflaterOutputStream(record, deflater, 1 << 13);
+        final JsonGenerator generator = smile.createJsonGenerator(deflated);
+        generator.writeStartObject();
+        generator.writeNumberField("id", pageId);
+        generator.writeStringField("title", title);
+        generator.writeStringField("content_hash", contentHash);
+        generator.writeNumberField("content_bytes", contentBytes);
+        // the page comes last, readers hand the parser over once they reach it
+        generator.writeFieldName("page");
+        return generator;
+    }
+
+    private synchronized String endRecord(int pageId, JsonGenerator generator) throws IOException {
+        generator.writeEndObject();
+        generator.close();
+
+        if(offset > 0 && offset + 4 + record.size() > chunkBytes){
+            nextChunk();
+        }
+        final String location = location(generation + "/" + chunkName, offset);
+        data.writeInt(record.size());
+        record.writeTo(data);
+        index.writeInt(pageId);
+        index.writeLong(offset);
+        offset += 4 + record.size();
+        return location;
+    }
+
+    private void closeChunk() throws IOException {
+        if(data != null){
+            data.close();
+            index.close();
+            data = null;
+            index = null;
+        }
+    }
+
+    /**
+     * Write the buffered records to the chunk files, so that their locations can be stored elsewhere.
+     * May be called by another thread than the one writing the records.
+     */
+    public synchronized void flush() throws IOException {
+        if(data != null){
+            data.flush();
+            index.flush();
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        closeChunk();
+        deflater.end();
+    }
+}
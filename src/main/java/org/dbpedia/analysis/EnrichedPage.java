@@ -0,0 +1,339 @@
+package org.dbpedia.analysis;
+
+import org.codehaus.jackson.JsonEncoding;
+import org.codehaus.jackson.JsonGenerator;
+import org.codehaus.jackson.JsonNode;
+import org.codehaus.jackson.JsonParser;
+import org.codehaus.jackson.JsonToken;
+import org.codehaus.jackson.map.ObjectMapper;
+import org.codehaus.jackson.node.MissingNode;
+import org.codehaus.jackson.util.TokenBuffer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * <strong>EnrichedPage</strong> holds what the indexes need from the jsonpedia output of a page.
+ * It is read with a single pass over the enriched tokens: the whole document is copied to raw json bytes
+ * while only the small sections, links, references and categories subtrees are materialized.
+ * Links and references are grouped by section once, so each section only reads its own.
+ * While copying <code>wikitext-json</code> the byte range of every section node is recorded, so that the json of
+ * a single section can be stored without parsing the page again.
+ */
+public class EnrichedPage {
+    private static final Link[] NO_LINKS = new Link[]{};
+
+    private final byte[] content;
+    private final JsonNode sections;
+    private final Link[] links;
+    private final Link[] references;
+    private final String[] categories;
+
+    private final String[] sectionTitles;
+    private final Link[][] linksBySection;
+    private final Link[][] referencesBySection;
+    private final SectionNode[] sectionNodes;
+
+    /**
+     * A section node of <code>wikitext-json</code> and its byte range in the content.
+     */
+    private static class SectionNode {
+        private final String title;
+        private final int start;
+        private final int end;
+
+        SectionNode(String title, int start, int end) {
+            this.title = title;
+            this.start = start;
+            this.end = end;
+        }
+    }
+
+    private EnrichedPage(byte[] content, JsonNode sections, Link[] links, Link[] references, String[] categories,
+                         List<SectionNode> nodes) {
+        this.content = content;
+        this.sections = sections;
+        this.links = links;
+        this.references = references;
+        this.categories = categories;
+
+        this.sectionTitles = new String[sections.size()];
+        for(int i = 0; i < sectionTitles.length; i++){
+            sectionTitles[i] = sections.path(i).path("title").getTextValue();
+        }
+        this.sectionNodes = matchSectionNodes(sectionTitles, nodes);
+        // section_idx 0 is the text before the first section, the section at position i has section_idx i + 1
+        this.linksBySection = bySection(links, sectionTitles.length + 1);
+        this.referencesBySection = bySection(references, sectionTitles.length + 1);
+    }
+
+    /**
+     * Both the sections array and the section nodes are in document order, so they are matched by position.
+     * If their numbers differ the nodes are matched by title instead, each node at most once.
+     */
+    private static SectionNode[] matchSectionNodes(String[] titles, List<SectionNode> nodes) {
+        Collections.sort(nodes, new Comparator<SectionNode>() {
+            @Override
+            public int compare(SectionNode a, SectionNode b) {
+                return Integer.compare(a.start, b.start);
+            }
+        });
+        final SectionNode[] matched = new SectionNode[titles.length];
+        if(nodes.size() == titles.length){
+            return nodes.toArray(matched);
+        }
+        final List<SectionNode> unmatched = new ArrayList<>(nodes);
+        for(int i = 0; i < titles.length; i++){
+            for(int j = 0; titles[i] != null && j < unmatched.size(); j++){
+                final String title = unmatched.get(j).title;
+                if(title != null && title.trim().equals(titles[i].trim())){
+                    matched[i] = unmatched.remove(j);
+                    break;
+                }
+            }
+        }
+        return matched;
+    }
+
+    /**
+     * Group the links by section_idx with a counting sort, links outside of any section are dropped.
+     */
+    private static Link[][] bySection(Link[] links, int buckets) {
+        final int[] counts = new int[buckets];
+        for(Link l: links){
+            if(l.section_idx != null && l.section_idx >= 0 && l.section_idx < buckets){
+                counts[l.section_idx]++;
+            }
+        }
+
+        final Link[][] bySection = new Link[buckets][];
+        for(int i = 0; i < buckets; i++){
+            bySection[i] = counts[i] == 0 ? NO_LINKS : new Link[counts[i]];
+            counts[i] = 0;
+        }
+        for(Link l: links){
+            if(l.section_idx != null && l.section_idx >= 0 && l.section_idx < buckets){
+                bySection[l.section_idx][counts[l.section_idx]++] = l;
+            }
+        }
+        return bySection;
+    }
+
+    /**
+     * Read the enriched page from the buffer filled by the enricher.
+     */
+    public static EnrichedPage read(TokenBuffer buffer, ObjectMapper mapper) throws IOException {
+        return read(buffer.asParser(), mapper);
+    }
+
+    /**
+     * Read the enriched page from a parser positioned before the root object.
+     */
+    public static EnrichedPage read(JsonParser parser, ObjectMapper mapper) throws IOException {
+        if(parser.nextToken() != JsonToken.START_OBJECT){
+            throw new IOException("a json object was expected for the enriched page");
+        }
+
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final JsonGenerator generator = mapper.getJsonFactory().createJsonGenerator(out, JsonEncoding.UTF8);
+        JsonNode sections = MissingNode.getInstance();
+        Link[] links = new Link[]{};
+        Link[] references = new Link[]{};
+        String[] categories = new String[]{};
+        final List<SectionNode> sectionNodes = new ArrayList<>();
+
+        generator.writeStartObject();
+        while(parser.nextToken() == JsonToken.FIELD_NAME){
+            final String field = parser.getCurrentName();
+            parser.nextToken();
+            generator.writeFieldName(field);
+            switch (field) {
+                case "sections":
+                    sections = readSubtree(parser, generator, mapper);
+                    break;
+                case "links":
+                    links = toLinks(readSubtree(parser, generator, mapper), mapper);
+                    break;
+                case "references":
+                    references = toLinks(readSubtree(parser, generator, mapper), mapper);
+                    break;
+                case "categories":
+                    categories = toCategories(readSubtree(parser, generator, mapper), mapper);
+                    break;
+                case "wikitext-json":
+                    copySectionNodes(parser, generator, out, sectionNodes);
+                    break;
+                default:
+                    generator.copyCurrentStructure(parser);
+            }
+        }
+        generator.writeEndObject();
+        generator.close();
+        parser.close();
+
+        return new EnrichedPage(out.toByteArray(), sections, links, references, categories, sectionNodes);
+    }
+
+    /**
+     * Copy the value the parser is on to the generator, and record the byte range of every object with a
+     * <code>section</code> type. Offsets are taken after flushing the generator, so they are offsets in out.
+     */
+    private static void copySectionNodes(JsonParser parser, JsonGenerator generator, ByteArrayOutputStream out,
+                                         List<SectionNode> nodes) throws IOException {
+        switch (parser.getCurrentToken()) {
+            case START_OBJECT:
+                generator.writeStartObject();
+                generator.flush();
+                final int start = out.size() - 1;
+                boolean section = false;
+                String title = null;
+                while(parser.nextToken() == JsonToken.FIELD_NAME){
+                    final String field = parser.getCurrentName();
+                    generator.writeFieldName(field);
+                    if(parser.nextToken() == JsonToken.VALUE_STRING){
+                        if(field.equals("__type")){
+                            section = parser.getText().equals("section");
+                        } else if(field.equals("title")){
+                            title = parser.getText();
+                        }
+                    }
+                    copySectionNodes(parser, generator, out, nodes);
+                }
+                generator.writeEndObject();
+                if(section){
+                    generator.flush();
+                    nodes.add(new SectionNode(title, start, out.size()));
+                }
+                break;
+            case START_ARRAY:
+                generator.writeStartArray();
+                while(parser.nextToken() != JsonToken.END_ARRAY){
+                    copySectionNodes(parser, generator, out, nodes);
+                }
+                generator.writeEndArray();
+                break;
+            default:
+                generator.copyCurrentEvent(parser);
+        }
+    }
+
+    /**
+     * Materialize the value the parser is on and copy it to the generator.
+     */
+    private static JsonNode readSubtree(JsonParser parser, JsonGenerator generator, ObjectMapper mapper)
+            throws IOException {
+        final JsonNode node = mapper.readTree(parser);
+        if(node == null){
+            generator.writeNull();
+            return MissingNode.getInstance();
+        }
+        mapper.writeTree(generator, node);
+        return node;
+    }
+
+    /**
+     * Both external links and internal references in wikipedia have the same json format in jsonpedia.
+     */
+    private static Link[] toLinks(JsonNode l, ObjectMapper mapper) throws IOException {
+        if(l.isMissingNode()){
+            return new Link[]{};
+        }
+
+        Link[] links = mapper.readValue(l, Link[].class);
+        if(links == null){
+            return new Link[]{};
+        }
+        return links;
+    }
+
+    private static String[] toCategories(JsonNode c, ObjectMapper mapper) throws IOException {
+        String[] cats = mapper.readValue(c.path("content"), String[].class);
+        if(cats == null){
+            return new String[]{};
+        }
+        return cats;
+    }
+
+    /**
+     * @return the whole enriched page as utf-8 json
+     */
+    public byte[] getContent() {
+        return content;
+    }
+
+    /**
+     * @return the sections array, a missing node if the page has none
+     */
+    public JsonNode getSections() {
+        return sections;
+    }
+
+    public Link[] getLinks() {
+        return links;
+    }
+
+    public Link[] getReferences() {
+        return references;
+    }
+
+    public String[] getCategories() {
+        return categories;
+    }
+
+    /**
+     * @return number of sections in the page
+     */
+    public int getSectionCount() {
+        return sectionTitles.length;
+    }
+
+    /**
+     * @param position position of the section in the sections array
+     */
+    public String getSectionTitle(int position) {
+        return sectionTitles[position];
+    }
+
+    /**
+     * Get the titles of all the ancestors of the given section.
+     * @param position position of the section in the sections array
+     */
+    public String[] getAncestors(int position) {
+        final JsonNode ancestors = sections.path(position).path("ancestors");
+        final String[] titles = new String[ancestors.size()];
+        for(int i = 0; i < titles.length; i++){
+            titles[i] = sectionTitles[ancestors.path(i).getIntValue()].trim();
+        }
+        return titles;
+    }
+
+    /**
+     * @param position position of the section in the sections array
+     * @return the json of the section node in <code>wikitext-json</code>, null if it was not found
+     */
+    public byte[] getSectionContent(int position) {
+        final SectionNode node = sectionNodes[position];
+        return node == null ? null : Arrays.copyOfRange(content, node.start, node.end);
+    }
+
+    /**
+     * @param position position of the section in the sections array
+     * @return the links found in the given section
+     */
+    public Link[] getSectionLinks(int position) {
+        return linksBySection[position + 1];
+    }
+
+    /**
+     * @param position position of the section in the sections array
+     * @return the references found in the given section
+     */
+    public Link[] getSectionReferences(int position) {
+        return referencesBySection[position + 1];
+    }
+}
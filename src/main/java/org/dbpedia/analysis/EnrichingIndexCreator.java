@@ -0,0 +1,103 @@
+package org.dbpedia.analysis;
+
+import com.machinelinking.wikimedia.WikiDumpMultiThreadProcessor;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * <strong>EnrichingIndexCreator</strong> chooses, for the creators built on {@link EnrichingPageProcessor}, which
+ * pages are processed and where: the filter skipping pages before they are enriched, the lane of the heavy pages,
+ * the budget deferring the pages over it, and the pages to process at all. None of them is set by default.
+ */
+public abstract class EnrichingIndexCreator<P extends EnrichingPageProcessor> extends WikiDumpMultiThreadProcessor<P> {
+    private PageFilter filter;
+    private HeavyPageLane heavyLane;
+    private final List<P> laneProcessors = new ArrayList<>();
+    private PageBudget budget;
+    private int[] onlyPages;
+
+    /**
+     * Skip the pages rejected by a filter before enriching them, must be called before exporting.
+     */
+    public void setPageFilter(PageFilter filter) {
+        this.filter = filter;
+    }
+
+    /**
+     * Process the pages with a long wikitext on a lane of their own, must be called before exporting.
+     */
+    public void setHeavyLane(HeavyPageLane heavyLane) {
+        this.heavyLane = heavyLane;
+    }
+
+    /**
+     * Defer the pages over budget instead of processing them, must be called before exporting.
+     * The budget is closed once the pages are processed.
+     */
+    public void setPageBudget(PageBudget budget) {
+        this.budget = budget;
+    }
+
+    /**
+     * Only process the given pages, e.g. the ones deferred by an earlier run. Must be called before exporting.
+     * @param pageIds sorted page ids, see {@link PageBudget#readPageIds}
+     */
+    public void setOnlyPages(int[] pageIds) {
+        this.onlyPages = pageIds;
+    }
+
+    /**
+     * Build a processor, for the workers as well as for the heavy lane.
+     * @param i number of the processor, its enriched dump chunks are named after it
+     */
+    protected abstract P createProcessor(int i);
+
+    /**
+     * Build a worker, it filters the pages and hands the heavy ones over.
+     */
+    protected P createWorker(int i) {
+        final P processor = createSelectingProcessor(i);
+        processor.setPageFilter(filter);
+        processor.setHeavyLane(heavyLane);
+        return processor;
+    }
+
+    private P createSelectingProcessor(int i) {
+        final P processor = createProcessor(i);
+        processor.setPageBudget(budget);
+        processor.setOnlyPages(onlyPages);
+        return processor;
+    }
+
+    /**
+     * Start the heavy lane if there is one, its processors are numbered after the workers.
+     * @param checkpointer the lane reports the pages it is done with, or null
+     */
+    protected void startHeavyLane(Checkpointer checkpointer) {
+        if(heavyLane != null){
+            for(int i = 0; i < heavyLane.getThreads(); i++){
+                laneProcessors.add(createSelectingProcessor(super.getBestNumberOfThreads() + i));
+            }
+            heavyLane.start(laneProcessors, checkpointer);
+        }
+    }
+
+    /**
+     * Wait for the heavy pages, the dump report does not count them, and close the page budget.
+     */
+    protected void finishHeavyLane() throws IOException, InterruptedException {
+        if(heavyLane != null){
+            heavyLane.finish();
+            for(P processor: laneProcessors){
+                finalizeProcessor(processor);
+            }
+            System.out.println(heavyLane);
+        }
+        if(budget != null){
+            budget.close();
+            System.out.println(budget);
+        }
+    }
+}
@@ -0,0 +1,582 @@
+package org.dbpedia.analysis;
+
+import com.machinelinking.enricher.WikiEnricher;
+import com.machinelinking.parser.DocumentSource;
+import com.machinelinking.serializer.JSONSerializer;
+import com.machinelinking.util.JSONUtils;
+import com.machinelinking.wikimedia.PageProcessor;
+import com.machinelinking.wikimedia.WikiPage;
+import org.codehaus.jackson.JsonParser;
+import org.codehaus.jackson.map.ObjectMapper;
+import org.codehaus.jackson.util.TokenBuffer;
+
+import java.io.IOException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <strong>EnrichingPageProcessor</strong> runs jsonpedia over a page and hands the enriched json to an index.
+ * A processor is owned by a single worker thread, so the enricher is built on the first page and then
+ * reused for every following page until {@link #release()} is called.
+ * Pages already enriched by an earlier run can be indexed from an {@link EnrichedDumpReader} instead.
+ * A {@link PageFilter} can skip the pages not worth enriching.
+ * The length of the wikitext is the estimated cost of a page: heavy pages can be handed to a {@link HeavyPageLane},
+ * and pages over a {@link PageBudget} are deferred instead of indexed.
+ * When the budget bounds the enrichment time the enricher runs on a thread of its own: a page still running once
+ * the budget is spent is abandoned, along with its thread and enricher, and the worker goes on with a new one.
+ */
+public abstract class EnrichingPageProcessor implements PageProcessor {
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    /**
+     * Enrichment threads are daemons, an abandoned page must not keep the jvm alive.
+     */
+    private static final ThreadFactory ENRICHMENT_THREADS = new ThreadFactory() {
+        private final AtomicLong threads = new AtomicLong();
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            final Thread thread = new Thread(runnable, "enrichment-" + threads.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    };
+
+    private static final int RUNNING = 0;
+    private static final int DONE = 1;
+    private static final int ABANDONED = 2;
+
+    /**
+     * How often a page over time checks whether it can be abandoned, once the budget has no room for it.
+     */
+    private static final long ABANDON_RETRY_MILLIS = 100;
+
+    private long processedPages = 0;
+    private long errorPages = 0;
+    private long skippedPages = 0;
+    private long unchangedPages = 0;
+    private long deferredPages = 0;
+    private long filteredPages = 0;
+
+    private WikiEnricher enricher;
+    private ExecutorService enrichment;
+    private long resumeFrom = -1;
+    private AtomicLong lastPage;
+    private boolean incremental = false;
+    private MessageDigest digest;
+    private EnrichedDumpWriter dumpWriter;
+    private FacetCounter facetCounter;
+    private PageFilter filter;
+    private HeavyPageLane heavyLane;
+    private PageBudget budget;
+    private int[] onlyPages;
+
+    private final ObjectMapper mapper = new ObjectMapper();
+    private IngestMetrics metrics = new IngestMetrics("processor");
+    private long pageBytes;
+    private long documentStart;
+    private String dumpLocation;
+    private boolean indexedBefore;
+
+    /**
+     * Build the enricher pipeline used by this processor, called once per worker.
+     */
+    protected abstract WikiEnricher createEnricher();
+
+    /**
+     * Index an enriched page.
+     * @param pageId id of the wikipedia page
+     * @param title title of the wikipedia page
+     * @param contentHash hash of the page wikitext, to be stored with the page
+     * @param enriched what the index needs from the enriched json of the page
+     * @return true if the page has been fully indexed
+     */
+    protected abstract boolean indexEnrichedPage(int pageId, String title, String contentHash, EnrichedPage enriched)
+            throws IOException;
+
+    /**
+     * Used in incremental mode, by default nothing is indexed before and every page is new.
+     * @return the content hash stored for the page, null if the page is not in the index
+     */
+    protected String indexedContentHash(int pageId) throws IOException {
+        return null;
+    }
+
+    /**
+     * Delete the documents of a page that indexing its new content will not overwrite, in incremental mode.
+     * Only called for the pages {@link #indexedContentHash(int)} finds, once the new content is enriched, by default
+     * none.
+     * @param sections number of sections of the new content, -1 if the page is not indexed anymore
+     */
+    protected void deletePage(int pageId, int sections) throws IOException {
+    }
+
+    /**
+     * Documents have deterministic ids, so that indexing a page again overwrites its documents, and pages can be
+     * fetched by id from their section documents.
+     */
+    static String pageDocumentId(int pageId) {
+        return Integer.toString(pageId);
+    }
+
+    /**
+     * @param position position of the section in the sections array
+     */
+    static String sectionDocumentId(int pageId, int position) {
+        return pageId + "_" + position;
+    }
+
+    /**
+     * A page and its sections are routed by page id, so they live on the same shard.
+     */
+    static String pageRouting(int pageId) {
+        return Integer.toString(pageId);
+    }
+
+    /**
+     * Called whenever a page fails, by default the error is only counted.
+     */
+    protected void pageFailed(String title, Exception e) {
+    }
+
+    /**
+     * Publish the progress of this processor to the checkpointer, and skip the pages it has already recorded.
+     */
+    public void setCheckpointer(Checkpointer checkpointer) {
+        this.resumeFrom = checkpointer.getResumeFrom();
+        this.lastPage = checkpointer.register();
+    }
+
+    /**
+     * @param metrics metrics shared with the other workers
+     */
+    public void setMetrics(IngestMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * Record a stage of the page being processed, started at <code>startNanos</code> and ending now.
+     */
+    protected void recordStage(IngestMetrics.Stage stage, long startNanos) {
+        metrics.record(stage, startNanos, pageBytes);
+    }
+
+    /**
+     * @return when the document stage of the page being processed started, reading the enriched json included
+     */
+    protected long documentStart() {
+        return documentStart;
+    }
+
+    /**
+     * @return where the page being processed is in an enriched dump, written by this processor or read from;
+     * null if it is in none
+     */
+    protected String dumpLocation() {
+        return dumpLocation;
+    }
+
+    /**
+     * @return size in bytes of the wikitext of the page being processed
+     */
+    protected long pageBytes() {
+        return pageBytes;
+    }
+
+    /**
+     * In incremental mode pages whose content hash matches the indexed one are not processed at all,
+     * the other pages already in the index replace their documents once they are enriched again.
+     */
+    public void setIncremental(boolean incremental) {
+        this.incremental = incremental;
+    }
+
+    /**
+     * Also write the enriched pages to a dump, so that indexes can be rebuilt without enriching them again.
+     * The writer is closed by {@link #release()}.
+     */
+    public void setDumpWriter(EnrichedDumpWriter dumpWriter) {
+        this.dumpWriter = dumpWriter;
+    }
+
+    /**
+     * Count the section titles and categories of the indexed pages, the counter must only be used by this processor
+     * until it is released.
+     */
+    public void setFacetCounter(FacetCounter facetCounter) {
+        this.facetCounter = facetCounter;
+    }
+
+    /**
+     * @return the facet counter of this processor, null if facets are not counted
+     */
+    public FacetCounter getFacetCounter() {
+        return facetCounter;
+    }
+
+    /**
+     * Called by the indexes once the documents of a page are built.
+     */
+    protected void countFacets(EnrichedPage enriched) {
+        if(facetCounter != null){
+            facetCounter.count(enriched);
+        }
+    }
+
+    /**
+     * Skip the pages rejected by a filter before enriching them, the filter is shared by all the workers.
+     */
+    public void setPageFilter(PageFilter filter) {
+        this.filter = filter;
+    }
+
+    /**
+     * Hand the heavy pages over to a lane instead of enriching them, the processors of the lane must not have one.
+     */
+    public void setHeavyLane(HeavyPageLane heavyLane) {
+        this.heavyLane = heavyLane;
+    }
+
+    /**
+     * Defer the pages over budget instead of indexing them, the budget is shared by all the workers.
+     */
+    public void setPageBudget(PageBudget budget) {
+        this.budget = budget;
+    }
+
+    /**
+     * Only process the given pages, e.g. the ones deferred by an earlier run.
+     * @param pageIds sorted page ids, see {@link PageBudget#readPageIds(java.io.File)}
+     */
+    public void setOnlyPages(int[] pageIds) {
+        this.onlyPages = pageIds;
+    }
+
+    /**
+     * Release the enricher pipeline and the dump writer, the processor must not be used anymore.
+     */
+    public void release() {
+        enricher = null;
+        if(enrichment != null){
+            enrichment.shutdown();
+            enrichment = null;
+        }
+        if(dumpWriter != null){
+            try {
+                dumpWriter.close();
+            } catch (IOException e) {
+                System.err.println("cannot close the enriched dump: " + e.getMessage());
+            }
+            dumpWriter = null;
+        }
+    }
+
+    @Override
+    public void processPage(String pagePrefix, String threadId, WikiPage page) {
+        if(page.getId() <= resumeFrom || !isSelected(page.getId())){
+            skippedPages++;
+            return;
+        }
+        if(filter != null && filter.reject(page.getTitle(), page.getContent()) != null){
+            filteredPages++;
+            try {
+                dropIndexed(page.getId());
+            } catch(IOException e) {
+                failed(page.getTitle(), e);
+            }
+            publishProgress(page.getId());
+            return;
+        }
+
+        try {
+            // the length of the wikitext is known before paying for the enrichment
+            final int chars = page.getContent().length();
+            if(budget != null && budget.isTooBig(chars)){
+                defer(page, PageBudget.SIZE, chars, 0);
+                dropIndexed(page.getId());
+                publishProgress(page.getId());
+                return;
+            }
+            if(heavyLane != null && heavyLane.isHeavy(chars)){
+                heavyLane.submit(pagePrefix, threadId, page);
+                publishProgress(page.getId());
+                return;
+            }
+
+            final byte[] content = page.getContent().getBytes(StandardCharsets.UTF_8);
+            pageBytes = content.length;
+            // the xml is parsed by the dump reader, only the pages coming out of it can be counted
+            metrics.count(IngestMetrics.Stage.PARSE, pageBytes);
+
+            final String contentHash = contentHash(content);
+            if(isUnchanged(page.getId(), contentHash)){
+                return;
+            }
+
+            if(enricher == null){
+                enricher = createEnricher();
+            }
+
+            final long start = System.nanoTime();
+            final TokenBuffer buffer = budget != null && budget.getMaxPageMillis() > 0
+                    ? enrichWithin(budget.getMaxPageMillis(), pagePrefix, page.getContent())
+                    : enrich(enricher, pagePrefix, page.getContent());
+            if(buffer == null){
+                defer(page, PageBudget.TIME, chars, (System.nanoTime() - start) / 1000000);
+                publishProgress(page.getId());
+                return;
+            }
+            recordStage(IngestMetrics.Stage.ENRICHMENT, start);
+
+            dumpLocation = dumpWriter == null
+                    ? null : dumpWriter.write(page.getId(), page.getTitle(), contentHash, pageBytes, buffer);
+            index(page.getId(), page.getTitle(), contentHash, buffer.asParser());
+        } catch(Exception e) {
+            failed(page.getTitle(), e);
+        }
+        publishProgress(page.getId());
+    }
+
+    /**
+     * Index a page read back from an enriched dump.
+     */
+    public void processEnriched(EnrichedDumpReader.Record record) {
+        if(record.getPageId() <= resumeFrom || !isSelected(record.getPageId())){
+            skippedPages++;
+            return;
+        }
+
+        try {
+            pageBytes = record.getContentBytes();
+            dumpLocation = record.getLocation();
+            metrics.count(IngestMetrics.Stage.PARSE, pageBytes);
+            if(isUnchanged(record.getPageId(), record.getContentHash())){
+                return;
+            }
+            index(record.getPageId(), record.getTitle(), record.getContentHash(), record.getEnriched());
+        } catch(Exception e) {
+            failed(record.getTitle(), e);
+        }
+        publishProgress(record.getPageId());
+    }
+
+    /**
+     * Index a page enriched and read by another processor, see {@link FanOutPageProcessor}.
+     * Checkpoints and incremental mode are left to that processor.
+     * @param contentBytes size in bytes of the wikitext of the page
+     * @return true if the page has been fully indexed
+     */
+    public boolean processEnrichedPage(int pageId, String title, String contentHash, long contentBytes,
+                                       EnrichedPage enriched) {
+        try {
+            pageBytes = contentBytes;
+            dumpLocation = null;
+            indexedBefore = false;
+            documentStart = System.nanoTime();
+            return index(pageId, title, contentHash, enriched);
+        } catch(Exception e) {
+            failed(title, e);
+            return false;
+        }
+    }
+
+    private static TokenBuffer enrich(WikiEnricher enricher, String pagePrefix, String content) throws Exception {
+        // the buffer holds a single page, a new one (and its serializer) is the only reset needed
+        final TokenBuffer buffer = JSONUtils.createJSONBuffer();
+        enricher.enrichEntity(
+                new DocumentSource(
+                        new URL(pagePrefix), // not used
+                        content
+                ),
+                new JSONSerializer(buffer)
+        );
+        return buffer;
+    }
+
+    /**
+     * Enrich a page on the enrichment thread, waiting at most <code>maxMillis</code>. jsonpedia cannot be
+     * interrupted: a page over time keeps its thread and enricher until it is done, the next page gets new ones.
+     * While the budget has no room for one more abandoned enrichment the page is waited for, and indexed if it
+     * gets done first.
+     * @return the enriched page, null if it is over time
+     */
+    private TokenBuffer enrichWithin(long maxMillis, final String pagePrefix, final String content) throws Exception {
+        if(enrichment == null){
+            enrichment = Executors.newSingleThreadExecutor(ENRICHMENT_THREADS);
+        }
+        final WikiEnricher pageEnricher = enricher;
+        // the task and the worker agree on whether the page is done or abandoned, exactly one of them wins
+        final AtomicInteger state = new AtomicInteger(RUNNING);
+        final Future<TokenBuffer> future = enrichment.submit(new Callable<TokenBuffer>() {
+            @Override
+            public TokenBuffer call() throws Exception {
+                try {
+                    return enrich(pageEnricher, pagePrefix, content);
+                } finally {
+                    if(!state.compareAndSet(RUNNING, DONE)){
+                        budget.abandonedDone();
+                    }
+                }
+            }
+        });
+        long wait = maxMillis;
+        while(true){
+            try {
+                return future.get(wait, TimeUnit.MILLISECONDS);
+            } catch (TimeoutException e) {
+                if(budget.abandon()){
+                    if(state.compareAndSet(RUNNING, ABANDONED)){
+                        enrichment.shutdown();
+                        enrichment = null;
+                        enricher = null;
+                        return null;
+                    }
+                    // done meanwhile, the result is ready
+                    budget.keep();
+                }
+                wait = ABANDON_RETRY_MILLIS;
+            } catch (ExecutionException e) {
+                throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+            }
+        }
+    }
+
+    private boolean isSelected(int pageId) {
+        return onlyPages == null || Arrays.binarySearch(onlyPages, pageId) >= 0;
+    }
+
+    private void defer(WikiPage page, String reason, int chars, long millis) throws IOException {
+        budget.defer(page.getId(), page.getTitle(), reason, chars, millis);
+        deferredPages++;
+        metrics.pageFailed("deferred, over the " + reason + " budget");
+    }
+
+    /**
+     * In incremental mode, count the page if it is unchanged. The documents of a changed page are only replaced
+     * once it is enriched, a page failing meanwhile keeps them.
+     * @return true if the page does not need to be indexed
+     */
+    private boolean isUnchanged(int pageId, String contentHash) throws IOException {
+        indexedBefore = false;
+        if(!incremental){
+            return false;
+        }
+        final String indexedHash = indexedContentHash(pageId);
+        if(contentHash.equals(indexedHash)){
+            unchangedPages++;
+            publishProgress(pageId);
+            return true;
+        }
+        indexedBefore = indexedHash != null;
+        return false;
+    }
+
+    /**
+     * In incremental mode, delete the documents of a page that is not indexed anymore, e.g. because it became a
+     * redirect or grew over the size budget.
+     */
+    private void dropIndexed(int pageId) throws IOException {
+        if(incremental && indexedContentHash(pageId) != null){
+            deletePage(pageId, -1);
+        }
+    }
+
+    private void index(int pageId, String title, String contentHash, JsonParser parser) throws IOException {
+        documentStart = System.nanoTime();
+        index(pageId, title, contentHash, EnrichedPage.read(parser, mapper));
+    }
+
+    private boolean index(int pageId, String title, String contentHash, EnrichedPage enriched) throws IOException {
+        if(indexedBefore){
+            deletePage(pageId, enriched.getSectionCount());
+            indexedBefore = false;
+        }
+        if(indexEnrichedPage(pageId, title, contentHash, enriched)){
+            processedPages++;
+            metrics.pageDone();
+            return true;
+        }
+        errorPages++;
+        metrics.pageFailed("incomplete page");
+        return false;
+    }
+
+    private void failed(String title, Exception e) {
+        pageFailed(title, e);
+        errorPages++;
+        metrics.pageFailed(e);
+    }
+
+    private void publishProgress(int pageId) {
+        if(lastPage != null){
+            lastPage.set(pageId);
+        }
+    }
+
+    /**
+     * @return hex encoded SHA-1 of the wikitext of a page
+     */
+    private String contentHash(byte[] content) throws NoSuchAlgorithmException {
+        if(digest == null){
+            digest = MessageDigest.getInstance("SHA-1");
+        }
+        final byte[] hash = digest.digest(content);
+        final char[] hex = new char[hash.length * 2];
+        for(int i = 0; i < hash.length; i++){
+            hex[2 * i] = HEX[(hash[i] >> 4) & 0xF];
+            hex[2 * i + 1] = HEX[hash[i] & 0xF];
+        }
+        return new String(hex);
+    }
+
+    @Override
+    public long getProcessedPages() {
+        return processedPages;
+    }
+
+    @Override
+    public long getErrorPages() {
+        return errorPages;
+    }
+
+    /**
+     * @return number of pages not processed because they were already in the index, or not selected
+     */
+    public long getSkippedPages() {
+        return skippedPages;
+    }
+
+    /**
+     * @return number of pages skipped by the page filter
+     */
+    public long getFilteredPages() {
+        return filteredPages;
+    }
+
+    /**
+     * @return number of pages not indexed because they were over budget
+     */
+    public long getDeferredPages() {
+        return deferredPages;
+    }
+
+    /**
+     * @return number of pages not processed because their content did not change, in incremental mode
+     */
+    public long getUnchangedPages() {
+        return unchangedPages;
+    }
+}
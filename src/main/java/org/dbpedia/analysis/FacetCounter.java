@@ -0,0 +1,250 @@
+package org.dbpedia.analysis;
+
+import org.codehaus.jackson.JsonEncoding;
+import org.codehaus.jackson.JsonFactory;
+import org.codehaus.jackson.JsonGenerator;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.PriorityQueue;
+import java.util.Set;
+
+/**
+ * <strong>FacetCounter</strong> counts the section titles and page categories of the indexed sections, so that
+ * the top level facets of the explorer are read from a small summary instead of being computed by the index on
+ * every request. Values are lowercased like the terms of the lowercase analyzer, and a value is counted once per
+ * section document, so the counts match the terms facets of the section type.
+ * A counter is owned by a single worker, the counters of the workers are merged once they are done.
+ */
+public class FacetCounter {
+    /**
+     * The summary is published as a document of this type and id, next to the pages and sections.
+     */
+    public static final String SUMMARY_TYPE = "summary";
+    public static final String SUMMARY_ID = "facets";
+
+    private static final JsonFactory JSON = new JsonFactory();
+
+    private final TermCounts sectionTitles = new TermCounts();
+    private final TermCounts categories = new TermCounts();
+    private long pages = 0;
+    private long sections = 0;
+    private long untitledSections = 0;
+    private long uncategorizedSections = 0;
+
+    /**
+     * Count the sections of a page.
+     */
+    public void count(EnrichedPage page) {
+        final int sectionCount = page.getSectionCount();
+        pages++;
+        sections += sectionCount;
+        for(int i = 0; i < sectionCount; i++){
+            final String title = page.getSectionTitle(i);
+            if(title == null || title.isEmpty()){
+                untitledSections++;
+            } else {
+                sectionTitles.add(title.toLowerCase(Locale.ROOT), 1);
+            }
+        }
+
+        final String[] cats = page.getCategories();
+        if(cats.length == 0){
+            uncategorizedSections += sectionCount;
+            return;
+        }
+        final Set<String> seen = new HashSet<>(cats.length * 2);
+        for(String cat: cats){
+            final String term = cat.toLowerCase(Locale.ROOT);
+            // every section of the page holds every category of the page
+            if(!term.isEmpty() && seen.add(term)){
+                categories.add(term, sectionCount);
+            }
+        }
+    }
+
+    /**
+     * Add the counts of another counter to this one.
+     */
+    public void merge(FacetCounter other) {
+        sectionTitles.addAll(other.sectionTitles);
+        categories.addAll(other.categories);
+        pages += other.pages;
+        sections += other.sections;
+        untitledSections += other.untitledSections;
+        uncategorizedSections += other.uncategorizedSections;
+    }
+
+    public long getPages() {
+        return pages;
+    }
+
+    public long getSections() {
+        return sections;
+    }
+
+    /**
+     * The summary holds, for each field, a facet shaped like an elasticsearch terms facet of the section type.
+     * @param size number of terms kept for each field, the most frequent ones
+     * @return the json of the summary
+     */
+    public byte[] summary(int size) throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final JsonGenerator g = JSON.createJsonGenerator(out, JsonEncoding.UTF8);
+        g.writeStartObject();
+        g.writeNumberField("pages", pages);
+        g.writeNumberField("sections", sections);
+        g.writeObjectFieldStart("facets");
+        writeFacet(g, "section_title", sectionTitles, untitledSections, size);
+        writeFacet(g, "page_categories", categories, uncategorizedSections, size);
+        g.writeEndObject();
+        g.writeEndObject();
+        g.close();
+        return out.toByteArray();
+    }
+
+    /**
+     * Write the summary to a file.
+     */
+    public void writeSummary(File file, int size) throws IOException {
+        Files.write(file.toPath(), summary(size));
+    }
+
+    private static void writeFacet(JsonGenerator g, String field, TermCounts counts, long missing, int size)
+            throws IOException {
+        final int[] top = counts.top(size);
+        long topTotal = 0;
+        g.writeObjectFieldStart(field);
+        g.writeStringField("_type", "terms");
+        g.writeNumberField("missing", missing);
+        g.writeNumberField("total", counts.total);
+        g.writeArrayFieldStart("terms");
+        for(int slot: top){
+            g.writeStartObject();
+            g.writeStringField("term", counts.terms[slot]);
+            g.writeNumberField("count", counts.counts[slot]);
+            g.writeEndObject();
+            topTotal += counts.counts[slot];
+        }
+        g.writeEndArray();
+        g.writeNumberField("other", counts.total - topTotal);
+        g.writeEndObject();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("facets: %d pages, %d sections, %d section titles, %d categories",
+                pages, sections, sectionTitles.size, categories.size);
+    }
+
+    /**
+     * Open addressing table from terms to counts. Terms and counts live in parallel arrays, so counting a term
+     * that is already in the table does not allocate anything.
+     */
+    private static class TermCounts {
+        private String[] terms = new String[1024];
+        private long[] counts = new long[1024];
+        private int size = 0;
+        private long total = 0;
+
+        void add(String term, long count) {
+            int slot = slot(terms, term);
+            if(terms[slot] == null){
+                if(2 * (size + 1) > terms.length){
+                    grow();
+                    slot = slot(terms, term);
+                }
+                terms[slot] = term;
+                size++;
+            }
+            counts[slot] += count;
+            total += count;
+        }
+
+        void addAll(TermCounts other) {
+            for(int i = 0; i < other.terms.length; i++){
+                if(other.terms[i] != null){
+                    add(other.terms[i], other.counts[i]);
+                }
+            }
+        }
+
+        /**
+         * @return the slot holding the term, or the empty slot where it belongs
+         */
+        private static int slot(String[] table, String term) {
+            final int mask = table.length - 1;
+            int slot = mix(term.hashCode()) & mask;
+            while(table[slot] != null && !table[slot].equals(term)){
+                slot = (slot + 1) & mask;
+            }
+            return slot;
+        }
+
+        private static int mix(int hash) {
+            hash *= 0x9E3779B9;
+            return hash ^ (hash >>> 16);
+        }
+
+        private void grow() {
+            final String[] oldTerms = terms;
+            final long[] oldCounts = counts;
+            terms = new String[oldTerms.length * 2];
+            counts = new long[oldTerms.length * 2];
+            for(int i = 0; i < oldTerms.length; i++){
+                if(oldTerms[i] != null){
+                    final int slot = slot(terms, oldTerms[i]);
+                    terms[slot] = oldTerms[i];
+                    counts[slot] = oldCounts[i];
+                }
+            }
+        }
+
+        /**
+         * @return the slots of the most frequent terms, by decreasing count and then by term
+         */
+        int[] top(int n) {
+            if(n <= 0){
+                return new int[0];
+            }
+            final Comparator<Integer> byCount = new Comparator<Integer>() {
+                @Override
+                public int compare(Integer a, Integer b) {
+                    final int c = Long.compare(counts[b], counts[a]);
+                    return c != 0 ? c : terms[a].compareTo(terms[b]);
+                }
+            };
+            // the head of the queue is the least frequent of the terms kept so far
+            final PriorityQueue<Integer> kept = new PriorityQueue<>(n + 1, new Comparator<Integer>() {
+                @Override
+                public int compare(Integer a, Integer b) {
+                    return byCount.compare(b, a);
+                }
+            });
+            for(int i = 0; i < terms.length; i++){
+                if(terms[i] == null){
+                    continue;
+                }
+                if(kept.size() < n){
+                    kept.add(i);
+                } else if(byCount.compare(i, kept.peek()) < 0){
+                    kept.poll();
+                    kept.add(i);
+                }
+            }
+            final Integer[] slots = kept.toArray(new Integer[kept.size()]);
+            Arrays.sort(slots, byCount);
+            final int[] top = new int[slots.length];
+            for(int i = 0; i < slots.length; i++){
+                top[i] = slots[i];
+            }
+            return top;
+        }
+    }
+}
@@ -0,0 +1,179 @@
+package org.dbpedia.analysis;
+
+import com.machinelinking.wikimedia.ProcessorReport;
+import org.xml.sax.SAXException;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * <strong>FanOutIndexCreator</strong> decompresses, parses and enriches a wikipedia dump once, and writes every
+ * page to several sinks, e.g. an elasticsearch index, a lucene index and an enriched dump.
+ * Each sink has its own bounded queue and threads, a slow sink only holds the workers back once its queue is full.
+ * Sinks build new indexes: checkpoints and incremental mode are not supported.
+ */
+public class FanOutIndexCreator extends EnrichingIndexCreator<FanOutPageProcessor> {
+    private final List<SinkQueue> queues = new ArrayList<>();
+
+    private int decompressionThreads = Runtime.getRuntime().availableProcessors() / 2;
+    private final IngestMetrics metrics = new IngestMetrics("fanout");
+    private int metricsInterval = 30;
+
+    /**
+     * Add a sink, must be called before exporting.
+     * @param threads number of threads writing to the sink
+     * @param queueSize number of pages waiting for the sink before the workers wait for it
+     */
+    public void addSink(PageSink sink, int threads, int queueSize) {
+        queues.add(new SinkQueue(sink, threads, queueSize));
+    }
+
+    public ProcessorReport export(URL pagePrefix, InputStream is) throws IOException {
+        final BufferedInputStream bis =
+                is instanceof BufferedInputStream ? (BufferedInputStream) is: new BufferedInputStream(is);
+
+        boolean complete = false;
+        try {
+            final ProcessorReport report = super.process(
+                    pagePrefix,
+                    bis,
+                    super.getBestNumberOfThreads()
+            );
+            complete = true;
+            return report;
+        } catch (SAXException|IOException exc){
+            throw new RuntimeException(exc);
+        } finally {
+            finishSinks(complete);
+        }
+    }
+
+    public ProcessorReport export(URL pagePrefix, File input) throws IOException {
+        final InputStream is = ParallelBZip2InputStream.open(input, decompressionThreads, metrics);
+        final ProcessorReport report = this.export(pagePrefix, is);
+        if(is instanceof ParallelBZip2InputStream){
+            System.out.println(is);
+        }
+        return report;
+    }
+
+    /**
+     * Write the pages of an enriched dump written by an earlier run to the sinks, without enriching them again.
+     * @param dumpDir directory holding the enriched dump chunks
+     */
+    public void exportEnriched(File dumpDir) throws IOException {
+        final EnrichedDumpReader reader = new EnrichedDumpReader(dumpDir);
+        initProcess();
+        final List<FanOutPageProcessor> processors = new ArrayList<>();
+        for(int i = 0; i < super.getBestNumberOfThreads(); i++){
+            processors.add(initProcessor(i));
+        }
+        boolean complete = false;
+        try {
+            reader.read(processors, metrics);
+            complete = true;
+        } finally {
+            for(FanOutPageProcessor processor: processors){
+                finalizeProcessor(processor);
+            }
+            finalizeProcess(null);
+            finishSinks(complete);
+        }
+    }
+
+    /**
+     * @param decompressionThreads number of threads decompressing a bzip2 dump, 0 to decompress it sequentially
+     */
+    public void setDecompressionThreads(int decompressionThreads) {
+        this.decompressionThreads = decompressionThreads;
+    }
+
+    /**
+     * @param metricsInterval seconds between two progress lines, 0 to disable them
+     */
+    public void setMetricsInterval(int metricsInterval) {
+        this.metricsInterval = metricsInterval;
+    }
+
+    /**
+     * @return the metrics of the workers, the sink stage is the time they waited for the sink queues
+     */
+    public IngestMetrics getMetrics() {
+        return metrics;
+    }
+
+    @Override
+    public void initProcess() {
+        try {
+            for(final SinkQueue queue: queues){
+                queue.start();
+                metrics.gauge(queue.getName(), new IngestMetrics.Gauge() {
+                    @Override
+                    public long value() {
+                        return queue.getDepth();
+                    }
+                });
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        startHeavyLane(null);
+        metrics.start(metricsInterval);
+    }
+
+    @Override
+    public FanOutPageProcessor initProcessor(int i) {
+        return createWorker(i);
+    }
+
+    @Override
+    protected FanOutPageProcessor createProcessor(int i) {
+        final FanOutPageProcessor processor = new FanOutPageProcessor(queues);
+        processor.setMetrics(metrics);
+        return processor;
+    }
+
+    @Override
+    public void finalizeProcessor(FanOutPageProcessor pageProcessor) {
+        pageProcessor.release();
+    }
+
+    @Override
+    public void finalizeProcess(ProcessorReport processorReport) {
+        try {
+            // the lane queues pages for the sinks, it is done before them
+            finishHeavyLane();
+        } catch (IOException e) {
+            e.printStackTrace();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        }
+        metrics.stop();
+    }
+
+    /**
+     * Wait for the sinks to write the queued pages and close them.
+     * @param complete whether every page of the dump was processed, the sinks only publish a complete index
+     */
+    private void finishSinks(boolean complete) {
+        for(SinkQueue queue: queues){
+            try {
+                queue.finish(complete);
+            } catch (IOException e) {
+                e.printStackTrace();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+        for(SinkQueue queue: queues){
+            System.out.println(queue);
+        }
+    }
+}
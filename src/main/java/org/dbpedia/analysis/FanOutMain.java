@@ -0,0 +1,183 @@
+package org.dbpedia.analysis;
+
+import com.beust.jcommander.JCommander;
+import com.beust.jcommander.Parameter;
+import com.beust.jcommander.ParameterException;
+import com.beust.jcommander.ParametersDelegate;
+import com.beust.jcommander.converters.BooleanConverter;
+import com.beust.jcommander.converters.FileConverter;
+import com.machinelinking.wikimedia.ProcessorReport;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URL;
+
+/**
+ * Builds an elasticsearch index, a lucene index and an enriched dump from a single pass over a dump, see
+ * {@link FanOutIndexCreator}.
+ */
+public class FanOutMain {
+    @Parameter(
+            names = {"--input", "-i"},
+            description = "path to the input dump, or to a folder written with --dump-enriched",
+            converter = FileConverter.class,
+            required = true
+    )
+    private File inputPath;
+
+    @Parameter(
+            names = {"--elasticsearch", "-e"},
+            description = "host:port elasticsearch machine, its index is created from scratch"
+    )
+    private String elasticsearchMachine;
+
+    @Parameter(
+            names = {"--lucene", "-l"},
+            description = "path to the folder where a new lucene index will be stored",
+            converter = FileConverter.class
+    )
+    private File lucenePath;
+
+    @Parameter(
+            names = {"--dump-enriched"},
+            description = "write the enriched pages to this folder, it can later be given as --input",
+            converter = FileConverter.class
+    )
+    private File dumpEnrichedPath;
+
+    @Parameter(
+            names = {"--elasticsearch-threads"},
+            description = "threads writing to the elasticsearch index"
+    )
+    private int elasticsearchThreads = 2;
+
+    @Parameter(
+            names = {"--lucene-threads"},
+            description = "threads writing to the lucene index"
+    )
+    private int luceneThreads = 2;
+
+    @Parameter(
+            names = {"--dump-threads"},
+            description = "threads writing the enriched dump, each to chunks of its own"
+    )
+    private int dumpThreads = 1;
+
+    @Parameter(
+            names = {"--sink-queue"},
+            description = "number of pages waiting for a sink before the workers wait for it"
+    )
+    private int sinkQueue = 128;
+
+    @Parameter(
+            names = {"--bulk"},
+            description = "use the bulk ingestion writer profile for the lucene index",
+            converter = BooleanConverter.class
+    )
+    private boolean bulk = false;
+
+    @Parameter(
+            names = {"--decompression-threads"},
+            description = "threads decompressing a bzip2 dump in parallel, 0 to decompress it sequentially"
+    )
+    private int decompressionThreads = Runtime.getRuntime().availableProcessors() / 2;
+
+    @Parameter(
+            names = {"--metrics-interval"},
+            description = "seconds between two progress lines, 0 to disable them"
+    )
+    private int metricsInterval = 30;
+
+    @Parameter(
+            names = {"--facet-terms"},
+            description = "number of section titles and categories kept in the facet summary of the indexes, " +
+                    "0 to skip the summary"
+    )
+    private int facetTerms = 1000;
+
+    @ParametersDelegate
+    private final PageSelectionOptions pages = new PageSelectionOptions();
+
+    public int run(String[] args) {
+        final JCommander commander = new JCommander(this);
+        int exitCode = 0;
+        try {
+            commander.parse(args);
+            if(elasticsearchMachine == null && lucenePath == null && dumpEnrichedPath == null){
+                throw new ParameterException("at least one of --elasticsearch, --lucene and --dump-enriched is needed");
+            }
+            final boolean enrichedInput = inputPath.isDirectory();
+            pages.validate();
+            if(enrichedInput && dumpEnrichedPath != null){
+                throw new ParameterException("--dump-enriched needs a wikipedia dump as input");
+            }
+
+            final FanOutIndexCreator creator = new FanOutIndexCreator();
+            final PageFilter filter = pages.configure(creator, enrichedInput);
+            ElasticSearchIndexCreator elasticsearch = null;
+            LuceneIndexCreator lucene = null;
+            if(elasticsearchMachine != null){
+                elasticsearch = new ElasticSearchIndexCreator(new String[]{elasticsearchMachine}, false);
+                elasticsearch.setMetricsInterval(metricsInterval);
+                if(facetTerms > 0){
+                    elasticsearch.setFacetSummary(facetTerms, null);
+                }
+                creator.addSink(
+                        new ProcessorSink<>("elasticsearch", elasticsearch), elasticsearchThreads, sinkQueue
+                );
+            }
+            if(lucenePath != null){
+                lucene = new LuceneIndexCreator(
+                        lucenePath.getPath(), false, bulk ? LuceneIndexProfile.bulk() : LuceneIndexProfile.defaults()
+                );
+                lucene.setMetricsInterval(metricsInterval);
+                if(facetTerms > 0){
+                    lucene.setFacetSummary(facetTerms, null);
+                }
+                creator.addSink(new ProcessorSink<>("lucene", lucene), luceneThreads, sinkQueue);
+            }
+            if(dumpEnrichedPath != null){
+                creator.addSink(new EnrichedDumpSink(dumpEnrichedPath), dumpThreads, sinkQueue);
+            }
+            creator.setDecompressionThreads(decompressionThreads);
+            creator.setMetricsInterval(metricsInterval);
+
+            if(enrichedInput){
+                creator.exportEnriched(inputPath);
+            } else {
+                final ProcessorReport rep = creator.export(new URL("http://en.wikipedia.org/wiki/"), inputPath); // careful, needs trailing slash
+                System.out.println(rep);
+                if(filter != null){
+                    System.out.println(filter);
+                }
+            }
+            System.out.println(creator.getMetrics().summary());
+            if(elasticsearch != null){
+                System.out.println(elasticsearch.getMetrics().summary());
+            }
+            if(lucene != null){
+                System.out.println(lucene.getMetrics().summary());
+            }
+            exitCode = 0;
+        } catch(IOException ie) {
+            System.err.println(ie.getMessage());
+            commander.usage();
+            exitCode = 1;
+        } catch(ParameterException px) {
+            System.err.println(px.getMessage());
+            commander.usage();
+            exitCode = 2;
+        }
+
+        return exitCode;
+    }
+
+    public static void main(String[] args){
+        try {
+            System.exit(new FanOutMain().run(args));
+        } catch (Throwable t) {
+            t.printStackTrace();
+            System.exit(1);
+        }
+    }
+}
@@ -0,0 +1,54 @@
+package org.dbpedia.analysis;
+
+import com.machinelinking.enricher.WikiEnricher;
+import com.machinelinking.enricher.WikiEnricherFactory;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.List;
+
+/**
+ * <strong>FanOutPageProcessor</strong> enriches and reads every page once, and queues it for every sink of a
+ * {@link FanOutIndexCreator}. The time spent waiting for room in the queues is recorded as the sink stage.
+ * The sinks build new indexes, so the processor has no incremental mode.
+ */
+public class FanOutPageProcessor extends EnrichingPageProcessor {
+    private final List<SinkQueue> queues;
+
+    public FanOutPageProcessor(List<SinkQueue> queues) {
+        this.queues = queues;
+    }
+
+    /**
+     * Every sink gets the same enriched page, as the indexes would enrich it themselves.
+     */
+    @Override
+    protected WikiEnricher createEnricher() {
+        return WikiEnricherFactory.getInstance().createFullyConfiguredInstance(
+                WikiEnricherFactory.Extractors,
+                WikiEnricherFactory.Structure
+        );
+    }
+
+    @Override
+    protected boolean indexEnrichedPage(int pageId, String title, String contentHash, EnrichedPage enriched)
+            throws IOException {
+        recordStage(IngestMetrics.Stage.DOCUMENT, documentStart());
+        final long start = System.nanoTime();
+        try {
+            for(SinkQueue queue: queues){
+                queue.put(pageId, title, contentHash, pageBytes(), enriched);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while queueing " + title);
+        }
+        recordStage(IngestMetrics.Stage.SINK, start);
+        return true;
+    }
+
+    @Override
+    protected void pageFailed(String title, Exception e) {
+        e.printStackTrace();
+    }
+}
@@ -0,0 +1,175 @@
+package org.dbpedia.analysis;
+
+import com.machinelinking.wikimedia.WikiPage;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <strong>HeavyPageLane</strong> processes the pages with a long wikitext on threads of its own, so that a few
+ * huge list and table pages do not hold the workers, and the dump reader behind them, while small pages keep
+ * flowing. The workers hand the heavy pages over and only wait once the lane queue is full.
+ * The lane reports to the checkpointer as a worker of its own: while a page is in the lane the checkpoint stays
+ * before it, even if the workers are already past it.
+ */
+public class HeavyPageLane {
+    /**
+     * Tells a lane thread that no page will follow.
+     */
+    private static final Page END = new Page(null, null, null);
+
+    private final int heavyPageChars;
+    private final BlockingQueue<Page> queue;
+    private final int threads;
+    private final List<Thread> running = new ArrayList<>();
+
+    private final TreeSet<Integer> inFlight = new TreeSet<>();
+    private AtomicLong lastPage;
+    private long heavyPages = 0;
+    private long maxMillis = 0;
+    private long totalMillis = 0;
+
+    private final AtomicLong fullWaits = new AtomicLong();
+    private final AtomicLong fullNanos = new AtomicLong();
+
+    /**
+     * A page handed over by a worker.
+     */
+    private static class Page {
+        private final String pagePrefix;
+        private final String threadId;
+        private final WikiPage page;
+
+        Page(String pagePrefix, String threadId, WikiPage page) {
+            this.pagePrefix = pagePrefix;
+            this.threadId = threadId;
+            this.page = page;
+        }
+    }
+
+    /**
+     * @param heavyPageChars pages with a longer wikitext go to the lane
+     * @param threads number of threads processing the heavy pages
+     * @param capacity number of heavy pages waiting before the workers wait for the lane
+     */
+    public HeavyPageLane(int heavyPageChars, int threads, int capacity) {
+        this.heavyPageChars = heavyPageChars;
+        this.threads = threads;
+        this.queue = new ArrayBlockingQueue<>(capacity);
+    }
+
+    /**
+     * @return number of threads of the lane, the creator builds a processor for each of them
+     */
+    public int getThreads() {
+        return threads;
+    }
+
+    /**
+     * @param chars length of the wikitext of a page
+     */
+    public boolean isHeavy(int chars) {
+        return chars > heavyPageChars;
+    }
+
+    /**
+     * Start a thread for every processor. The processors must not report to the checkpointer themselves,
+     * the lane does it for them.
+     * @param checkpointer checkpointer of the workers, or null
+     */
+    public void start(List<? extends EnrichingPageProcessor> processors, Checkpointer checkpointer) {
+        if(checkpointer != null){
+            lastPage = checkpointer.register();
+            lastPage.set(Long.MAX_VALUE);
+        }
+        for(int i = 0; i < processors.size(); i++){
+            final EnrichingPageProcessor processor = processors.get(i);
+            final Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    drain(processor);
+                }
+            }, "heavy-lane-" + i);
+            thread.start();
+            running.add(thread);
+        }
+    }
+
+    /**
+     * Queue a heavy page, waits while the queue is full. The page is tracked before this returns, so the worker
+     * can publish its progress right after.
+     */
+    public void submit(String pagePrefix, String threadId, WikiPage page) throws InterruptedException {
+        synchronized (this) {
+            inFlight.add(page.getId());
+            publishProgress();
+        }
+        final Page heavy = new Page(pagePrefix, threadId, page);
+        if(!queue.offer(heavy)){
+            final long start = System.nanoTime();
+            queue.put(heavy);
+            fullWaits.incrementAndGet();
+            fullNanos.addAndGet(System.nanoTime() - start);
+        }
+    }
+
+    private void drain(EnrichingPageProcessor processor) {
+        try {
+            Page heavy;
+            while((heavy = queue.take()) != END){
+                final long start = System.nanoTime();
+                try {
+                    processor.processPage(heavy.pagePrefix, heavy.threadId, heavy.page);
+                } finally {
+                    done(heavy.page.getId(), (System.nanoTime() - start) / 1000000);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private synchronized void done(int pageId, long millis) {
+        inFlight.remove(pageId);
+        publishProgress();
+        heavyPages++;
+        totalMillis += millis;
+        maxMillis = Math.max(maxMillis, millis);
+    }
+
+    /**
+     * Every page before the oldest one in flight has been handed to the index, an idle lane holds nothing back.
+     */
+    private void publishProgress() {
+        if(lastPage != null){
+            lastPage.set(inFlight.isEmpty() ? Long.MAX_VALUE : inFlight.first() - 1L);
+        }
+    }
+
+    /**
+     * Wait for the queued pages to be processed, must be called once the workers are done.
+     * The processors are then left to the creator to finalize.
+     */
+    public void finish() throws InterruptedException {
+        for(int i = 0; i < running.size(); i++){
+            queue.put(END);
+        }
+        for(Thread thread: running){
+            thread.join();
+        }
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format(
+                "heavy lane: %d pages over %d chars, %.1fs on average, %.1fs at most, %d threads, " +
+                        "queue full %d times for %.1fs",
+                heavyPages, heavyPageChars, heavyPages == 0 ? 0 : totalMillis / 1e3 / heavyPages, maxMillis / 1e3,
+                threads, fullWaits.get(), fullNanos.get() / 1e9
+        );
+    }
+}
@@ -0,0 +1,398 @@
+package org.dbpedia.analysis;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <strong>IngestMetrics</strong> collects the throughput and latency of every stage of an ingestion,
+ * the depth of the queues between them and the failed pages by exception class.
+ * The metrics are shared by all the workers, exposed through JMX while the ingestion runs and
+ * printed as a log line every few seconds.
+ * Apart from decompression, where bytes are decompressed bytes, the bytes of a stage are the utf-8 bytes of the
+ * wikitext of the pages it handled, so that the stages can be compared with each other.
+ */
+public class IngestMetrics implements IngestMetricsMBean {
+
+    public enum Stage {
+        DECOMPRESSION("decompression"),
+        PARSE("parse"),
+        ENRICHMENT("enrichment"),
+        DOCUMENT("document"),
+        SINK("sink");
+
+        private final String label;
+
+        Stage(String label) {
+            this.label = label;
+        }
+
+        @Override
+        public String toString() {
+            return label;
+        }
+    }
+
+    /**
+     * Current value of something outside of the metrics, e.g. the size of a queue.
+     */
+    public interface Gauge {
+        long value();
+    }
+
+    /**
+     * JMX view of a single stage.
+     */
+    public interface StageMBean {
+        long getCount();
+
+        long getBytes();
+
+        double getPerSecond();
+
+        double getBytesPerSecond();
+
+        double getMeanMillis();
+
+        double getMedianMillis();
+
+        double getP90Millis();
+
+        double getP99Millis();
+
+        double getMaxMillis();
+    }
+
+    private final String name;
+    private final long startNanos = System.nanoTime();
+    private final Map<Stage, StageMetrics> stages = new EnumMap<>(Stage.class);
+    private final ConcurrentMap<String, AtomicLong> errors = new ConcurrentHashMap<>();
+    private final Map<String, Gauge> gauges = new ConcurrentSkipListMap<>();
+    private final AtomicLong pages = new AtomicLong();
+    private final AtomicLong failedPages = new AtomicLong();
+
+    private final List<ObjectName> registered = new ArrayList<>();
+    private ScheduledExecutorService reporter;
+    private long lastReportPages = 0;
+    private long lastReportNanos = startNanos;
+
+    /**
+     * @param name name of the ingestion, used in the JMX object names
+     */
+    public IngestMetrics(String name) {
+        this.name = name;
+        for(Stage stage: Stage.values()){
+            stages.put(stage, new StageMetrics());
+        }
+    }
+
+    /**
+     * Record a stage that started at <code>startNanos</code> and ends now.
+     */
+    public void record(Stage stage, long startNanos, long bytes) {
+        stages.get(stage).record(System.nanoTime() - startNanos, bytes);
+    }
+
+    /**
+     * Count the bytes going through a stage whose latency cannot be observed.
+     */
+    public void count(Stage stage, long bytes) {
+        stages.get(stage).count(bytes);
+    }
+
+    public void pageDone() {
+        pages.incrementAndGet();
+    }
+
+    public void pageFailed(Throwable e) {
+        pageFailed(e.getClass().getName());
+    }
+
+    /**
+     * @param type kind of error, the exception class name for exceptions
+     */
+    public void pageFailed(String type) {
+        pages.incrementAndGet();
+        failedPages.incrementAndGet();
+        AtomicLong counter = errors.get(type);
+        if(counter == null){
+            final AtomicLong created = new AtomicLong();
+            counter = errors.putIfAbsent(type, created);
+            if(counter == null){
+                counter = created;
+            }
+        }
+        counter.incrementAndGet();
+    }
+
+    public void gauge(String gaugeName, Gauge gauge) {
+        gauges.put(gaugeName, gauge);
+    }
+
+    /**
+     * Wrap a stream so that the time spent reading it is recorded for the given stage.
+     */
+    public InputStream meter(InputStream in, final Stage stage) {
+        return new FilterInputStream(in) {
+            @Override
+            public int read() throws IOException {
+                final long start = System.nanoTime();
+                final int b = super.read();
+                record(stage, start, b < 0 ? 0 : 1);
+                return b;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                final long start = System.nanoTime();
+                final int n = super.read(b, off, len);
+                record(stage, start, Math.max(n, 0));
+                return n;
+            }
+        };
+    }
+
+    /**
+     * Register the metrics in the platform MBean server and print a log line every <code>intervalSeconds</code>.
+     * @param intervalSeconds seconds between two log lines, 0 to disable them
+     */
+    public void start(long intervalSeconds) {
+        final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            final String prefix = "org.dbpedia.analysis:type=IngestMetrics,name=" + ObjectName.quote(name);
+            register(server, new ObjectName(prefix), new StandardMBean(this, IngestMetricsMBean.class));
+            for(Map.Entry<Stage, StageMetrics> e: stages.entrySet()){
+                register(
+                        server,
+                        new ObjectName(prefix + ",stage=" + e.getKey()),
+                        new StandardMBean(e.getValue(), StageMBean.class)
+                );
+            }
+        } catch (JMException e) {
+            System.err.println("ingest metrics are not available through JMX: " + e.getMessage());
+        }
+
+        if(intervalSeconds > 0){
+            reporter = Executors.newSingleThreadScheduledExecutor();
+            reporter.scheduleAtFixedRate(new Runnable() {
+                @Override
+                public void run() {
+                    System.out.println(logLine());
+                }
+            }, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+        }
+    }
+
+    private void register(MBeanServer server, ObjectName objectName, Object mbean) throws JMException {
+        if(server.isRegistered(objectName)){
+            server.unregisterMBean(objectName);
+        }
+        server.registerMBean(mbean, objectName);
+        registered.add(objectName);
+    }
+
+    /**
+     * Stop the log lines and remove the metrics from JMX, they can still be read and printed.
+     */
+    public void stop() {
+        if(reporter != null){
+            reporter.shutdown();
+        }
+        final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        for(ObjectName objectName: registered){
+            try {
+                server.unregisterMBean(objectName);
+            } catch (JMException e) {
+                // already gone
+            }
+        }
+        registered.clear();
+    }
+
+    private double elapsedSeconds() {
+        return (System.nanoTime() - startNanos) / 1e9;
+    }
+
+    @Override
+    public long getPages() {
+        return pages.get();
+    }
+
+    @Override
+    public long getErrors() {
+        return failedPages.get();
+    }
+
+    @Override
+    public double getPagesPerSecond() {
+        return pages.get() / elapsedSeconds();
+    }
+
+    @Override
+    public Map<String, Long> getErrorsByClass() {
+        final Map<String, Long> byClass = new TreeMap<>();
+        for(Map.Entry<String, AtomicLong> e: errors.entrySet()){
+            byClass.put(e.getKey(), e.getValue().get());
+        }
+        return byClass;
+    }
+
+    @Override
+    public Map<String, Long> getQueueDepths() {
+        final Map<String, Long> depths = new TreeMap<>();
+        for(Map.Entry<String, Gauge> e: gauges.entrySet()){
+            depths.put(e.getKey(), e.getValue().value());
+        }
+        return depths;
+    }
+
+    public StageMBean getStage(Stage stage) {
+        return stages.get(stage);
+    }
+
+    /**
+     * @return a single line with the page rate since the previous line and the latency of the busiest stages
+     */
+    public synchronized String logLine() {
+        final long now = System.nanoTime();
+        final long total = pages.get();
+        final double rate = (total - lastReportPages) / ((now - lastReportNanos) / 1e9);
+        lastReportPages = total;
+        lastReportNanos = now;
+
+        final StringBuilder line = new StringBuilder(String.format(
+                "ingest: %d pages (%.1f/s), %d errors", total, rate, failedPages.get()
+        ));
+        for(Stage stage: new Stage[]{Stage.ENRICHMENT, Stage.DOCUMENT, Stage.SINK}){
+            final StageMetrics s = stages.get(stage);
+            line.append(String.format(
+                    " | %s p50 %.1fms p99 %.1fms", stage, s.getMedianMillis(), s.getP99Millis()
+            ));
+        }
+        if(!gauges.isEmpty()){
+            line.append(" | queues ").append(getQueueDepths());
+        }
+        return line.toString();
+    }
+
+    /**
+     * @return a table with the throughput and latency percentiles of every stage, followed by the errors
+     */
+    public String summary() {
+        final StringBuilder out = new StringBuilder();
+        out.append(String.format(
+                "%-14s %10s %10s %10s %8s %9s %9s %9s %9s %9s%n",
+                "stage", "count", "MB", "count/s", "MB/s", "mean ms", "p50 ms", "p90 ms", "p99 ms", "max ms"
+        ));
+        for(Map.Entry<Stage, StageMetrics> e: stages.entrySet()){
+            final StageMetrics s = e.getValue();
+            out.append(String.format(
+                    "%-14s %10d %10.1f %10.1f %8.1f %9.2f %9.2f %9.2f %9.2f %9.2f%n",
+                    e.getKey(), s.getCount(), s.getBytes() / 1048576.0, s.getPerSecond(),
+                    s.getBytesPerSecond() / 1048576.0, s.getMeanMillis(), s.getMedianMillis(),
+                    s.getP90Millis(), s.getP99Millis(), s.getMaxMillis()
+            ));
+        }
+        out.append(String.format(
+                "%d pages in %.1fs (%.1f/s), %d errors", pages.get(), elapsedSeconds(), getPagesPerSecond(),
+                failedPages.get()
+        ));
+
+        final List<Map.Entry<String, Long>> byClass = new ArrayList<>(getErrorsByClass().entrySet());
+        Collections.sort(byClass, new Comparator<Map.Entry<String, Long>>() {
+            @Override
+            public int compare(Map.Entry<String, Long> a, Map.Entry<String, Long> b) {
+                return b.getValue().compareTo(a.getValue());
+            }
+        });
+        for(Map.Entry<String, Long> e: byClass){
+            out.append(String.format("%n  %8d %s", e.getValue(), e.getKey()));
+        }
+        return out.toString();
+    }
+
+    @Override
+    public String toString() {
+        return summary();
+    }
+
+    private class StageMetrics implements StageMBean {
+        private final LatencyHistogram latency = new LatencyHistogram();
+        private final AtomicLong count = new AtomicLong();
+        private final AtomicLong bytes = new AtomicLong();
+
+        void record(long nanos, long n) {
+            latency.record(nanos / 1000);
+            count(n);
+        }
+
+        void count(long n) {
+            count.incrementAndGet();
+            bytes.addAndGet(n);
+        }
+
+        @Override
+        public long getCount() {
+            return count.get();
+        }
+
+        @Override
+        public long getBytes() {
+            return bytes.get();
+        }
+
+        @Override
+        public double getPerSecond() {
+            return count.get() / elapsedSeconds();
+        }
+
+        @Override
+        public double getBytesPerSecond() {
+            return bytes.get() / elapsedSeconds();
+        }
+
+        @Override
+        public double getMeanMillis() {
+            return latency.getMean() / 1000;
+        }
+
+        @Override
+        public double getMedianMillis() {
+            return latency.getPercentile(0.5) / 1000.0;
+        }
+
+        @Override
+        public double getP90Millis() {
+            return latency.getPercentile(0.9) / 1000.0;
+        }
+
+        @Override
+        public double getP99Millis() {
+            return latency.getPercentile(0.99) / 1000.0;
+        }
+
+        @Override
+        public double getMaxMillis() {
+            return latency.getMax() / 1000.0;
+        }
+    }
+}
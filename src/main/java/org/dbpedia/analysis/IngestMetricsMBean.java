@@ -0,0 +1,24 @@
+package org.dbpedia.analysis;
+
+import java.util.Map;
+
+/**
+ * JMX view of {@link IngestMetrics}.
+ */
+public interface IngestMetricsMBean {
+    long getPages();
+
+    long getErrors();
+
+    double getPagesPerSecond();
+
+    /**
+     * @return number of failed pages by exception class
+     */
+    Map<String, Long> getErrorsByClass();
+
+    /**
+     * @return current depth of every queue between the stages
+     */
+    Map<String, Long> getQueueDepths();
+}
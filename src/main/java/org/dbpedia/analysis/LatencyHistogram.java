@@ -0,0 +1,90 @@
+package org.dbpedia.analysis;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * <strong>LatencyHistogram</strong> counts latencies in microseconds into log-linear buckets:
+ * every power of two is split in 8 linear buckets, so a percentile is off by at most 12.5%.
+ * Recording is lock free and can be shared by all the workers.
+ */
+public class LatencyHistogram {
+    private static final int SUB_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BITS;
+    private static final int BUCKETS = (64 - SUB_BITS) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong sum = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    private static int bucket(long micros) {
+        if(micros < SUB_BUCKETS){
+            return (int) micros;
+        }
+        final int exp = 63 - Long.numberOfLeadingZeros(micros);
+        final int sub = (int) ((micros >>> (exp - SUB_BITS)) & (SUB_BUCKETS - 1));
+        return (exp - SUB_BITS + 1) * SUB_BUCKETS + sub;
+    }
+
+    /**
+     * @return the largest value counted in the given bucket
+     */
+    private static long upperBound(int bucket) {
+        if(bucket < SUB_BUCKETS){
+            return bucket;
+        }
+        final int shift = bucket / SUB_BUCKETS - 1;
+        final long lower = (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << shift;
+        return lower + (1L << shift) - 1;
+    }
+
+    public void record(long micros) {
+        if(micros < 0){
+            micros = 0;
+        }
+        counts.incrementAndGet(bucket(micros));
+        count.incrementAndGet();
+        sum.addAndGet(micros);
+        long current;
+        while(micros > (current = max.get()) && !max.compareAndSet(current, micros)){
+            // another thread raised the max, check again
+        }
+    }
+
+    public long getCount() {
+        return count.get();
+    }
+
+    /**
+     * @return mean latency in microseconds, 0 if nothing was recorded
+     */
+    public double getMean() {
+        final long n = count.get();
+        return n == 0 ? 0 : (double) sum.get() / n;
+    }
+
+    public long getMax() {
+        return max.get();
+    }
+
+    /**
+     * @param quantile between 0 and 1, e.g. 0.99
+     * @return the latency in microseconds below which the given fraction of the values falls
+     */
+    public long getPercentile(double quantile) {
+        final long n = count.get();
+        if(n == 0){
+            return 0;
+        }
+        final long target = Math.max(1, (long) Math.ceil(quantile * n));
+        long seen = 0;
+        for(int i = 0; i < BUCKETS; i++){
+            seen += counts.get(i);
+            if(seen >= target){
+                return Math.min(upperBound(i), max.get());
+            }
+        }
+        return max.get();
+    }
+}
@@ -4,5 +4,16 @@ public class Link {
     public String url;
     public String description;
     public Integer section_idx;
+
+    /**
+     * @param reference references fall back to their url, links to a placeholder
+     * @return the name the indexes store for this link
+     */
+    public String indexedName(boolean reference) {
+        if(description == null || description.isEmpty()){
+            return reference ? url : "__MISSING__";
+        }
+        return description;
+    }
 }
 
@@ -1,12 +1,20 @@
 package org.dbpedia.analysis;
 
-import com.machinelinking.util.FileUtil;
 import com.machinelinking.wikimedia.ProcessorReport;
-import com.machinelinking.wikimedia.WikiDumpMultiThreadProcessor;
+import org.apache.commons.io.FileUtils;
 import org.apache.lucene.analysis.Analyzer;
 import org.apache.lucene.analysis.miscellaneous.PerFieldAnalyzerWrapper;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.StoredField;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexReader;
 import org.apache.lucene.index.IndexWriter;
 import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.MultiReader;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.IndexSearcher;
 import org.apache.lucene.store.Directory;
 import org.apache.lucene.store.FSDirectory;
 import org.apache.lucene.util.Version;
@@ -19,15 +27,57 @@ import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.URL;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * <strong>IndexCreator</strong> populates a lucene index with data coming form the jsonpedia processing of a wikipedia dump.
  */
-public class LuceneIndexCreator extends WikiDumpMultiThreadProcessor<LuceneIndexPageProcessor> {
+public class LuceneIndexCreator extends EnrichingIndexCreator<LuceneIndexPageProcessor> {
 
     private IndexWriter indexWriter;
+    private final Analyzer analyzer;
+    private final IndexWriterConfig.OpenMode openMode;
+    private final LuceneIndexProfile profile;
+    private final File shardsPath;
+    private int decompressionThreads = Runtime.getRuntime().availableProcessors() / 2;
+
+    private int shards = 0;
+    private boolean mergeShards = true;
+    private IndexWriter[] shardWriters = new IndexWriter[0];
+
+    private Checkpointer checkpointer;
+    private int checkpointInterval;
+
+    private final IngestMetrics metrics = new IngestMetrics("lucene");
+    private int metricsInterval = 30;
+    private File enrichedDump;
+    private String enrichedGeneration;
+
+    private boolean incremental = false;
+    private IndexReader indexed;
+    private final AtomicLong unchangedPages = new AtomicLong();
+
+    private FacetCounter facets;
+    private int facetTerms;
+    private File facetsFile;
+
+
+    /**
+     * Commits the main writer and every shard.
+     */
+    private final Checkpointer.Commit commitWriters = new Checkpointer.Commit() {
+        @Override
+        public void commit() throws IOException {
+            for(IndexWriter shardWriter: shardWriters){
+                shardWriter.commit();
+            }
+            indexWriter.commit();
+        }
+    };
 
 
     public ProcessorReport export(URL pagePrefix, InputStream is) throws IOException {
@@ -47,7 +97,113 @@ public class LuceneIndexCreator extends WikiDumpMultiThreadProcessor<LuceneIndex
     }
 
     public ProcessorReport export(URL pagePrefix, File input) throws IOException {
-        return this.export(pagePrefix, FileUtil.openDecompressedInputStream(input));
+        final InputStream is = ParallelBZip2InputStream.open(input, decompressionThreads, metrics);
+        final ProcessorReport report = this.export(pagePrefix, is);
+        if(is instanceof ParallelBZip2InputStream){
+            System.out.println(is);
+        }
+        return report;
+    }
+
+    /**
+     * Index the pages of an enriched dump written by an earlier run, without enriching them again.
+     * Checkpoints are not supported, the chunks are read in parallel and pages do not come in id order.
+     * @param dumpDir directory holding the enriched dump chunks
+     */
+    public void exportEnriched(File dumpDir) throws IOException {
+        final EnrichedDumpReader reader = new EnrichedDumpReader(dumpDir);
+        initProcess();
+        final List<LuceneIndexPageProcessor> processors = new ArrayList<>();
+        for(int i = 0; i < super.getBestNumberOfThreads(); i++){
+            processors.add(initProcessor(i));
+        }
+        try {
+            reader.read(processors, metrics);
+        } finally {
+            for(LuceneIndexPageProcessor processor: processors){
+                finalizeProcessor(processor);
+            }
+            finalizeProcess(null);
+        }
+    }
+
+    /**
+     * Also write every enriched page to an enriched dump, must be called before exporting.
+     * @param dumpDir directory where every worker writes its chunks
+     */
+    public void setEnrichedDump(File dumpDir) {
+        this.enrichedDump = dumpDir;
+    }
+
+    /**
+     * Count the section titles and categories while indexing, and add the most frequent ones to the main index as
+     * the {@link FacetCounter#SUMMARY_ID} document of the {@link FacetCounter#SUMMARY_TYPE} type once the pages are
+     * indexed. The counts only cover the pages of this run, so it is meant for new indexes.
+     * Must be called before exporting.
+     * @param terms number of terms kept for each facet
+     * @param file also write the summary to this file, or null
+     */
+    public void setFacetSummary(int terms, File file) {
+        this.facets = new FacetCounter();
+        this.facetTerms = terms;
+        this.facetsFile = file;
+    }
+
+    /**
+     * @param decompressionThreads number of threads decompressing a bzip2 dump, 0 to decompress it sequentially
+     */
+    public void setDecompressionThreads(int decompressionThreads) {
+        this.decompressionThreads = decompressionThreads;
+    }
+
+    /**
+     * Record checkpoints while ingesting, must be called before exporting.
+     * When the checkpointer resumes a run the index is appended to and the sections of every page are deleted
+     * before being added again, so that the pages indexed after the last checkpoint are not duplicated.
+     * @param checkpointer checkpoint file the workers report to
+     * @param intervalSeconds seconds between two checkpoints
+     */
+    public void setCheckpointer(Checkpointer checkpointer, int intervalSeconds) {
+        this.checkpointer = checkpointer;
+        this.checkpointInterval = intervalSeconds;
+    }
+
+    /**
+     * @param metricsInterval seconds between two progress lines, 0 to disable them
+     */
+    public void setMetricsInterval(int metricsInterval) {
+        this.metricsInterval = metricsInterval;
+    }
+
+    /**
+     * @return the metrics of the ingestion, they are available through JMX while it runs
+     */
+    public IngestMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Only index the pages of the dump that are new or changed since they were indexed, must be called before
+     * exporting. The documents of a changed page are deleted before its new content is added.
+     */
+    public void setIncremental(boolean incremental) {
+        this.incremental = incremental;
+    }
+
+    private boolean isResuming() {
+        return checkpointer != null && checkpointer.getResumeFrom() >= 0;
+    }
+
+    /**
+     * Give each shard its own directory and writer while ingesting, pages are spread over the shards by id.
+     * A resumed run must use the same number of shards as the interrupted one.
+     * Must be called before exporting.
+     * @param shards number of shards, 0 to have all the workers share the main writer
+     * @param mergeShards add the shards to the main index at the end instead of leaving them as separate indexes
+     */
+    public void setShards(int shards, boolean mergeShards) {
+        this.shards = shards;
+        this.mergeShards = mergeShards;
     }
 
     /**
@@ -57,49 +213,213 @@ public class LuceneIndexCreator extends WikiDumpMultiThreadProcessor<LuceneIndex
      * @throws java.io.IOException if indexPath is not a valid folder
      */
     public LuceneIndexCreator(String indexPath, boolean appendToIndex) throws IOException {
+        this(indexPath, appendToIndex, LuceneIndexProfile.defaults());
+    }
+
+    /**
+     *
+     * @param indexPath path to the index folder
+     * @param appendToIndex if set to false this will delete the old index instead of appending to it
+     * @param profile writer settings used while ingesting
+     * @throws java.io.IOException if indexPath is not a valid folder
+     */
+    public LuceneIndexCreator(String indexPath, boolean appendToIndex, LuceneIndexProfile profile) throws IOException {
         super();
-        Map<String,Analyzer> perField = new HashMap<>();
-        perField.put("wikipedia_page", new LowercaseAnalyzer());
-        perField.put("wikipedia_category", new LowercaseAnalyzer());
-        PerFieldAnalyzerWrapper aWrapper = new PerFieldAnalyzerWrapper(new KStemAnalyzer(), perField);
+        this.profile = profile;
+        this.analyzer = createAnalyzer();
 
-        IndexWriterConfig iwc = new IndexWriterConfig(Version.LUCENE_48, aWrapper);
         File f = new File(indexPath);
         if(!f.isDirectory()){
             throw new IOException(String.format("%s is not a valid location for a index directory", indexPath));
         }
+        this.shardsPath = new File(f.getAbsoluteFile().getParentFile(), f.getName() + "-shards");
 
-        IndexWriterConfig.OpenMode op;
-        Directory dir = FSDirectory.open(f);
         if(appendToIndex){
-            op = IndexWriterConfig.OpenMode.CREATE_OR_APPEND;
+            openMode = IndexWriterConfig.OpenMode.CREATE_OR_APPEND;
         } else {
-            op = IndexWriterConfig.OpenMode.CREATE;
+            openMode = IndexWriterConfig.OpenMode.CREATE;
+        }
+        indexWriter = createWriter(FSDirectory.open(f), openMode, super.getBestNumberOfThreads());
+    }
+
+    /**
+     * @return the analyzer of the section fields, the keyword fields are lowercased and the rest go through kstem
+     */
+    public static Analyzer createAnalyzer() {
+        Map<String,Analyzer> perField = new HashMap<>();
+        final Analyzer lowercase = new LowercaseAnalyzer();
+        for(String field: LuceneIndexPageProcessor.KEYWORD_FIELDS){
+            perField.put(field, lowercase);
         }
-        iwc.setOpenMode(op);
-        indexWriter = new IndexWriter(dir, iwc);
+        return new PerFieldAnalyzerWrapper(new KStemAnalyzer(), perField);
+    }
+
+    private IndexWriter createWriter(Directory dir, IndexWriterConfig.OpenMode mode, int workers) throws IOException {
+        IndexWriterConfig iwc = new IndexWriterConfig(Version.LUCENE_48, analyzer);
+        iwc.setOpenMode(mode);
+        profile.apply(iwc, workers);
+        return new IndexWriter(dir, iwc);
+    }
+
+    private File shardPath(int shard) {
+        return new File(shardsPath, String.format("shard-%03d", shard));
     }
 
     @Override
     public void initProcess() {
+        try {
+            if(enrichedDump != null){
+                enrichedGeneration = EnrichedDumpWriter.newGeneration(enrichedDump);
+            }
+            shardWriters = new IndexWriter[shards];
+            for(int shard = 0; shard < shards; shard++){
+                final File path = shardPath(shard);
+                if(!path.isDirectory() && !path.mkdirs()){
+                    throw new IOException(String.format("cannot create the shard directory %s", path));
+                }
+                // shards that are merged at the end only hold the documents of this run,
+                // unless it resumes a run that was interrupted before merging them
+                final IndexWriterConfig.OpenMode mode =
+                        mergeShards && !isResuming() ? IndexWriterConfig.OpenMode.CREATE : openMode;
+                shardWriters[shard] = createWriter(FSDirectory.open(path), mode, super.getBestNumberOfThreads());
+            }
+            if(incremental){
+                indexed = openIndexed();
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        if(checkpointer != null){
+            checkpointer.start(checkpointInterval, commitWriters);
+        }
+        metrics.gauge("ram_buffer_mb", new IngestMetrics.Gauge() {
+            @Override
+            public long value() {
+                long bytes = indexWriter.ramSizeInBytes();
+                for(IndexWriter shardWriter: shardWriters){
+                    bytes += shardWriter.ramSizeInBytes();
+                }
+                return bytes >> 20;
+            }
+        });
+        startHeavyLane(checkpointer);
+        metrics.start(metricsInterval);
+    }
 
+    /**
+     * Open a point in time reader over the writers holding pages indexed before this run.
+     */
+    private IndexReader openIndexed() throws IOException {
+        final List<IndexReader> readers = new ArrayList<>();
+        readers.add(DirectoryReader.open(indexWriter, false));
+        if(!mergeShards || isResuming()){
+            for(IndexWriter shardWriter: shardWriters){
+                readers.add(DirectoryReader.open(shardWriter, false));
+            }
+        }
+        return new MultiReader(readers.toArray(new IndexReader[readers.size()]));
     }
 
     @Override
     public LuceneIndexPageProcessor initProcessor(int i) {
-        return new LuceneIndexPageProcessor(indexWriter);
+        final LuceneIndexPageProcessor processor = createWorker(i);
+        if(checkpointer != null){
+            processor.setCheckpointer(checkpointer);
+        }
+        return processor;
+    }
+
+    /**
+     * Build a processor, only the workers report to the checkpointer.
+     */
+    @Override
+    protected LuceneIndexPageProcessor createProcessor(int i) {
+        final LuceneIndexPageProcessor processor = new LuceneIndexPageProcessor(
+                shards == 0 ? new IndexWriter[]{indexWriter} : shardWriters,
+                shards == 0 ? null : indexWriter,
+                indexed == null ? null : new IndexSearcher(indexed),
+                isResuming()
+        );
+        processor.setIncremental(incremental);
+        processor.setMetrics(metrics);
+        if(facets != null){
+            processor.setFacetCounter(new FacetCounter());
+        }
+        if(enrichedDump != null){
+            try {
+                processor.setDumpWriter(new EnrichedDumpWriter(enrichedDump, enrichedGeneration, i));
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
+        return processor;
     }
 
     @Override
     public void finalizeProcessor(LuceneIndexPageProcessor luceneIndexPageProcessor) {
+        unchangedPages.addAndGet(luceneIndexPageProcessor.getUnchangedPages());
+        if(facets != null){
+            synchronized (facets) {
+                facets.merge(luceneIndexPageProcessor.getFacetCounter());
+            }
+        }
+        luceneIndexPageProcessor.release();
+    }
 
+    private void publishFacets() throws IOException {
+        final byte[] summary = facets.summary(facetTerms);
+        final Document doc = new Document();
+        doc.add(new StringField(LuceneIndexPageProcessor.TYPE_FIELD, FacetCounter.SUMMARY_TYPE, Field.Store.YES));
+        doc.add(new StringField(LuceneIndexPageProcessor.ID_FIELD, FacetCounter.SUMMARY_ID, Field.Store.YES));
+        doc.add(new StoredField(LuceneIndexPageProcessor.SOURCE_FIELD, summary));
+        indexWriter.updateDocument(new Term(LuceneIndexPageProcessor.ID_FIELD, FacetCounter.SUMMARY_ID), doc);
+        if(facetsFile != null){
+            facets.writeSummary(facetsFile, facetTerms);
+        }
+        System.out.println(facets);
     }
 
     @Override
     public void finalizeProcess(ProcessorReport processorReport) {
         try{
+            finishHeavyLane();
+        } catch(IOException e) {
+            e.printStackTrace();
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        // the gauges read the writers, which are closed below
+        metrics.stop();
+        try{
+            if(checkpointer != null){
+                checkpointer.finish(commitWriters);
+            }
+            if(indexed != null){
+                indexed.close();
+                System.out.println("incremental: " + unchangedPages.get() + " unchanged pages skipped");
+            }
+
+            final List<Directory> shardDirectories = new ArrayList<>();
+            for(IndexWriter shardWriter: shardWriters){
+                shardDirectories.add(shardWriter.getDirectory());
+                shardWriter.commit();
+                shardWriter.close();
+            }
+            if(mergeShards && !shardDirectories.isEmpty()){
+                indexWriter.addIndexes(shardDirectories.toArray(new Directory[shardDirectories.size()]));
+                FileUtils.deleteDirectory(shardsPath);
+            }
+
+            if(facets != null){
+                publishFacets();
+            }
+            if(profile.getForceMergeSegments() > 0){
+                indexWriter.forceMerge(profile.getForceMergeSegments());
+            }
             indexWriter.commit();
             indexWriter.close();
-        } catch(IOException e) {}
+        } catch(IOException e) {
+            e.printStackTrace();
+        }
     }
 }
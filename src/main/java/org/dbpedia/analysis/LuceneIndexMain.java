@@ -3,6 +3,7 @@ package org.dbpedia.analysis;
 import com.beust.jcommander.JCommander;
 import com.beust.jcommander.Parameter;
 import com.beust.jcommander.ParameterException;
+import com.beust.jcommander.ParametersDelegate;
 import com.beust.jcommander.converters.FileConverter;
 import com.beust.jcommander.converters.BooleanConverter;
 import com.machinelinking.wikimedia.ProcessorReport;
@@ -18,7 +19,7 @@ import java.util.concurrent.TimeoutException;
 public class LuceneIndexMain {
     @Parameter(
             names = {"--input", "-i"},
-            description = "path to the input dump",
+            description = "path to the input dump, or to a folder written with --dump-enriched",
             converter = FileConverter.class,
             required = true
     )
@@ -39,18 +40,212 @@ public class LuceneIndexMain {
     )
     private boolean append = false;
 
+    @Parameter(
+            names = {"--decompression-threads"},
+            description = "threads decompressing a bzip2 dump in parallel, 0 to decompress it sequentially"
+    )
+    private int decompressionThreads = Runtime.getRuntime().availableProcessors() / 2;
+
+    @Parameter(
+            names = {"--bulk"},
+            description = "use the bulk ingestion writer profile instead of the lucene defaults",
+            converter = BooleanConverter.class
+    )
+    private boolean bulk = false;
+
+    @Parameter(
+            names = {"--ram-buffer"},
+            description = "RAM buffer size in megabytes"
+    )
+    private Double ramBufferMb;
+
+    @Parameter(
+            names = {"--max-thread-states"},
+            description = "number of concurrent indexing thread states, 0 to match the number of workers"
+    )
+    private Integer maxThreadStates;
+
+    @Parameter(
+            names = {"--merge-threads"},
+            description = "number of concurrent merge threads"
+    )
+    private Integer mergeThreads;
+
+    @Parameter(
+            names = {"--max-merges"},
+            description = "number of pending merges before indexing threads are stalled"
+    )
+    private Integer maxMerges;
+
+    @Parameter(
+            names = {"--segments-per-tier"},
+            description = "segments allowed per tier by the merge policy"
+    )
+    private Double segmentsPerTier;
+
+    @Parameter(
+            names = {"--compound-files"},
+            description = "write compound files (true/false)",
+            arity = 1
+    )
+    private Boolean compoundFiles;
+
+    @Parameter(
+            names = {"--force-merge"},
+            description = "merge the index down to this many segments at the end, 0 to skip it"
+    )
+    private int forceMerge = 0;
+
+    @Parameter(
+            names = {"--shards"},
+            description = "number of shards written in parallel while ingesting, 0 to share a single writer"
+    )
+    private int shards = 0;
+
+    @Parameter(
+            names = {"--keep-shards"},
+            description = "leave the shards as separate indexes next to the output instead of merging them",
+            converter = BooleanConverter.class
+    )
+    private boolean keepShards = false;
+
+    @Parameter(
+            names = {"--checkpoint"},
+            description = "file where the progress of the ingestion is periodically recorded",
+            converter = FileConverter.class
+    )
+    private File checkpointPath;
+
+    @Parameter(
+            names = {"--checkpoint-interval"},
+            description = "seconds between two checkpoints"
+    )
+    private int checkpointInterval = 300;
+
+    @Parameter(
+            names = {"--resume"},
+            description = "skip the pages recorded in the checkpoint file, implies --append",
+            converter = BooleanConverter.class
+    )
+    private boolean resume = false;
+
+    @Parameter(
+            names = {"--incremental"},
+            description = "only index the new and changed pages of the dump, implies --append",
+            converter = BooleanConverter.class
+    )
+    private boolean incremental = false;
+
+    @Parameter(
+            names = {"--metrics-interval"},
+            description = "seconds between two progress lines, 0 to disable them"
+    )
+    private int metricsInterval = 30;
+
+    @Parameter(
+            names = {"--dump-enriched"},
+            description = "also write the enriched pages to this folder, it can later be given as --input",
+            converter = FileConverter.class
+    )
+    private File dumpEnrichedPath;
+
+    @Parameter(
+            names = {"--facet-terms"},
+            description = "number of section titles and categories kept in the facet summary of a new index, " +
+                    "0 to skip the summary"
+    )
+    private int facetTerms = 1000;
+
+    @Parameter(
+            names = {"--facets-file"},
+            description = "also write the facet summary to this json file",
+            converter = FileConverter.class
+    )
+    private File facetsPath;
+
+    @Parameter(
+            names = {"--only-pages"},
+            description = "only index the pages listed in this file, e.g. a --deferred file, implies --append",
+            converter = FileConverter.class
+    )
+    private File onlyPagesPath;
+
+    @ParametersDelegate
+    private final PageSelectionOptions pages = new PageSelectionOptions();
+
+    private LuceneIndexProfile createProfile() {
+        final LuceneIndexProfile profile = bulk ? LuceneIndexProfile.bulk() : LuceneIndexProfile.defaults();
+        if(ramBufferMb != null){
+            profile.setRamBufferMb(ramBufferMb);
+        }
+        if(maxThreadStates != null){
+            profile.setMaxThreadStates(maxThreadStates);
+        }
+        if(mergeThreads != null){
+            profile.setMaxMergeThreads(mergeThreads);
+        }
+        if(maxMerges != null){
+            profile.setMaxMerges(maxMerges);
+        }
+        if(segmentsPerTier != null){
+            profile.setSegmentsPerTier(segmentsPerTier);
+        }
+        if(compoundFiles != null){
+            profile.setCompoundFiles(compoundFiles);
+        }
+        return profile.setForceMergeSegments(forceMerge);
+    }
+
 
     public int run(String[] args) {
         final JCommander commander = new JCommander(this);
         int exitCode = 0;
         try {
             commander.parse(args);
+            if(resume && checkpointPath == null){
+                throw new ParameterException("--resume needs a --checkpoint file");
+            }
+            final boolean enrichedInput = inputPath.isDirectory();
+            if(enrichedInput && (checkpointPath != null || dumpEnrichedPath != null)){
+                throw new ParameterException("--checkpoint and --dump-enriched need a wikipedia dump as input");
+            }
+            pages.validate();
+            final boolean appending = append || resume || incremental || onlyPagesPath != null;
+            if(appending && facetsPath != null){
+                throw new ParameterException("--facets-file needs a new index, the counts only cover a single run");
+            }
             final LuceneIndexCreator c = new LuceneIndexCreator(
                     this.outputPath.getPath(),
-                    append
+                    appending,
+                    createProfile()
             );
-            final ProcessorReport rep = c.export(new URL("http://en.wikipedia.org/"), inputPath);
-            System.out.println(rep);
+            if(checkpointPath != null){
+                c.setCheckpointer(new Checkpointer(checkpointPath, resume), checkpointInterval);
+            }
+            c.setIncremental(incremental);
+            c.setMetricsInterval(metricsInterval);
+            if(dumpEnrichedPath != null){
+                c.setEnrichedDump(dumpEnrichedPath);
+            }
+            c.setDecompressionThreads(decompressionThreads);
+            if(!appending && facetTerms > 0){
+                c.setFacetSummary(facetTerms, facetsPath);
+            }
+            c.setShards(shards, !keepShards);
+            final PageFilter filter = pages.configure(c, enrichedInput);
+            if(onlyPagesPath != null){
+                c.setOnlyPages(PageBudget.readPageIds(onlyPagesPath));
+            }
+            if(enrichedInput){
+                c.exportEnriched(inputPath);
+            } else {
+                final ProcessorReport rep = c.export(new URL("http://en.wikipedia.org/"), inputPath);
+                System.out.println(rep);
+                if(filter != null){
+                    System.out.println(filter);
+                }
+            }
+            System.out.println(c.getMetrics().summary());
             exitCode = 0;
         } catch(IOException ie) {
             System.err.println(ie.getMessage());
@@ -2,151 +2,318 @@ package org.dbpedia.analysis;
 
 import com.machinelinking.enricher.WikiEnricher;
 import com.machinelinking.enricher.WikiEnricherFactory;
-import com.machinelinking.parser.DocumentSource;
-import com.machinelinking.serializer.JSONSerializer;
-import com.machinelinking.util.JSONUtils;
-import com.machinelinking.wikimedia.PageProcessor;
-import com.machinelinking.wikimedia.WikiPage;
 import org.apache.lucene.document.Document;
 import org.apache.lucene.document.Field;
+import org.apache.lucene.document.IntField;
+import org.apache.lucene.document.NumericDocValuesField;
+import org.apache.lucene.document.StoredField;
 import org.apache.lucene.document.StringField;
+import org.apache.lucene.document.TextField;
+import org.apache.lucene.facet.FacetsConfig;
+import org.apache.lucene.facet.sortedset.SortedSetDocValuesFacetField;
 import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.search.TopDocs;
+import org.codehaus.jackson.JsonEncoding;
+import org.codehaus.jackson.JsonFactory;
+import org.codehaus.jackson.JsonGenerator;
 import org.codehaus.jackson.JsonNode;
-import org.codehaus.jackson.map.ObjectMapper;
-import org.codehaus.jackson.node.ArrayNode;
-import org.codehaus.jackson.util.TokenBuffer;
 
 import java.io.*;
-import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
 
-public class LuceneIndexPageProcessor implements PageProcessor {
-    private long processedPages = 0;
-    private long errorPages = 0;
+public class LuceneIndexPageProcessor extends EnrichingPageProcessor {
+    private final IndexWriter[] indexWriters;
+    private final IndexWriter mainWriter;
+    private final IndexSearcher indexed;
+    private final boolean replacePages;
 
-    private final IndexWriter indexWriter;
-    private final ObjectMapper mapper = new ObjectMapper();
+    private static final Set<String> HASH_FIELD = Collections.singleton("content_hash");
+    private static final FacetsConfig FACETS = createFacetsConfig();
+    private static final JsonFactory JSON = new JsonFactory();
+
+    /**
+     * Every document stores its elasticsearch type, id and json source, so that {@link LuceneSearchServer}
+     * can answer like the elasticsearch index would.
+     */
+    public static final String TYPE_FIELD = "_type";
+    public static final String ID_FIELD = "_id";
+    public static final String SOURCE_FIELD = "_source";
+    public static final String PAGE_TYPE = "page";
+    public static final String SECTION_TYPE = "section";
+
+    /**
+     * Integer fields, besides their string terms, are indexed as numbers under the same name followed by
+     * {@link #NUMERIC_SUFFIX} so that they can be searched by range and aggregated.
+     */
+    public static final String[] NUMERIC_FIELDS = {"page_id"};
+    public static final String NUMERIC_SUFFIX = ".numeric";
+
+    /**
+     * Fields analyzed as a whole lowercased keyword, like the lowercase analyzer of the elasticsearch mapping.
+     */
+    public static final String[] KEYWORD_FIELDS = {
+            "title", "page_title", "page_categories", "section_title", "ancestors", "links.name", "references.name"
+    };
 
     public LuceneIndexPageProcessor(IndexWriter indexWriter){
-        this.indexWriter = indexWriter;
+        this(new IndexWriter[]{indexWriter}, null, null, false);
     }
 
     /**
-     * Get all the ancestors of the given section.
-     * @return an array containing the names of all the ancestors
+     * @param indexWriters writers the pages are spread over by id, so that a page always goes to the same one
+     * @param mainWriter writer holding the pages of earlier runs when it is not one of indexWriters, or null
+     * @param indexed snapshot of the pages indexed by earlier runs, needed in incremental mode
+     * @param replacePages delete the sections already indexed for a page before adding it
      */
-    private String[] getAncestors(JsonNode sections, JsonNode currentSection) throws IOException {
-        Integer[] ancestors = mapper.readValue(currentSection.path("ancestors"), Integer[].class);
-        if(ancestors == null){
-            return new String[]{};
-        }
-        String[] ancestors_str = new String[ancestors.length];
-        for(int i = 0; i < ancestors.length; i++){
-            ancestors_str[i] = sections.path(ancestors[i]).path("title").getTextValue().trim();
-        }
-        return ancestors_str;
+    public LuceneIndexPageProcessor(IndexWriter[] indexWriters, IndexWriter mainWriter, IndexSearcher indexed,
+                                    boolean replacePages){
+        this.indexWriters = indexWriters;
+        this.mainWriter = mainWriter;
+        this.indexed = indexed;
+        this.replacePages = replacePages;
+    }
+
+    private IndexWriter writerFor(int pageId) {
+        return indexWriters[(pageId & Integer.MAX_VALUE) % indexWriters.length];
     }
 
     /**
-     * indexes a single page into elasticsearch
-     * @param root root of the json tree
+     * builds the page document and the section documents of a single page
+     * @param enriched the enriched page
      * @throws java.io.IOException
      */
-    private boolean indexSections(JsonNode root, String pageTitle) throws IOException {
-        JsonNode sections = root.path("sections");
+    private List<Document> pageDocuments(EnrichedPage enriched, int pageId, String pageTitle, String contentHash)
+            throws IOException {
+        JsonNode sections = enriched.getSections();
 
         if (sections.isMissingNode()) {
             throw new IOException("sections were expected in the json document"); //TODO: specify some other type of exception
         }
 
-        String[] cats = mapper.readValue(root.path("categories").path("content"), String[].class);
-        if(cats == null){
-            cats = new String[]{};
+        String[] cats = enriched.getCategories();
+        final List<Document> docs = new ArrayList<>(enriched.getSectionCount() + 1);
+        docs.add(pageDocument(pageId, pageTitle, enriched, contentHash));
+        for(int i = 0; i < enriched.getSectionCount(); i++){
+            docs.add(FACETS.build(sectionDocument(pageId, pageTitle, cats, enriched, i, contentHash)));
         }
+        return docs;
+    }
 
-        ArrayNode arr = (ArrayNode)sections.path(0);
-        for(JsonNode currentSection: arr){
-            Document doc = new Document();
-            doc.add(new StringField("wikipedia_page", pageTitle, Field.Store.YES));
-            for(String cat: cats){
-                doc.add(new StringField("wikipedia_categories", cat, Field.Store.YES));
-            }
-            doc.add(new StringField("section", currentSection.path("title").getTextValue(), Field.Store.YES));
-            for(String ancestor: getAncestors(sections, currentSection)){
-                doc.add(new StringField("ancestors", ancestor, Field.Store.YES));
+    /**
+     * builds the page document, with the same fields as the elasticsearch page type. The enriched page is only
+     * stored in the source.
+     */
+    static Document pageDocument(int pageId, String pageTitle, EnrichedPage enriched, String contentHash)
+            throws IOException {
+        final ByteArrayOutputStream source = new ByteArrayOutputStream(enriched.getContent().length + 256);
+        final JsonGenerator g = JSON.createJsonGenerator(source, JsonEncoding.UTF8);
+        g.writeStartObject();
+        g.writeStringField("title", pageTitle);
+        g.writeNumberField("page_id", pageId);
+        g.writeStringField("content_hash", contentHash);
+        g.writeNumberField("content_bytes", enriched.getContent().length);
+        g.writeFieldName("content");
+        g.writeRawValue(new String(enriched.getContent(), StandardCharsets.UTF_8));
+        g.writeEndObject();
+        g.close();
+
+        Document doc = new Document();
+        doc.add(new StringField(TYPE_FIELD, PAGE_TYPE, Field.Store.YES));
+        doc.add(new StringField(ID_FIELD, pageDocumentId(pageId), Field.Store.YES));
+        doc.add(new StoredField(SOURCE_FIELD, source.toByteArray()));
+        addPageId(doc, pageId);
+        doc.add(new StoredField("content_hash", contentHash));
+        doc.add(new TextField("title", pageTitle, Field.Store.YES));
+        return doc;
+    }
+
+    /**
+     * builds the document of a single section, with the same fields as the elasticsearch section type:
+     * <code>.tokens</code> fields are analyzed with the default kstem analyzer, the others with
+     * the lowercase keyword analyzer, see {@link #KEYWORD_FIELDS}
+     * @param position position of the section in the sections array
+     */
+    static Document sectionDocument(int pageId, String pageTitle, String[] cats, EnrichedPage enriched,
+                                    int position, String contentHash) throws IOException {
+        Document doc = new Document();
+        doc.add(new StringField(TYPE_FIELD, SECTION_TYPE, Field.Store.YES));
+        doc.add(new StringField(ID_FIELD, sectionDocumentId(pageId, position), Field.Store.YES));
+        doc.add(new StoredField(SOURCE_FIELD, sectionSource(pageId, pageTitle, cats, enriched, position)));
+        addPageId(doc, pageId);
+        doc.add(new StoredField("content_hash", contentHash));
+        doc.add(new TextField("page_title", pageTitle, Field.Store.YES));
+        for(String cat: cats){
+            doc.add(new TextField("page_categories", cat, Field.Store.YES));
+            addFacet(doc, "page_categories", cat);
+        }
+
+        doc.add(new StringField("section_idx", Integer.toString(position), Field.Store.YES));
+
+        final String sectionTitle = enriched.getSectionTitle(position);
+        if(sectionTitle != null){
+            addKeywordAndTokens(doc, "section_title", sectionTitle);
+            addFacet(doc, "section_title", sectionTitle);
+        }
+        for(String ancestor: enriched.getAncestors(position)){
+            addKeywordAndTokens(doc, "ancestors", ancestor);
+        }
+        addLinks(doc, "links", enriched.getSectionLinks(position), false);
+        addLinks(doc, "references", enriched.getSectionReferences(position), true);
+        return doc;
+    }
+
+    /**
+     * @return the json source of a section, the same as the elasticsearch section document
+     */
+    private static byte[] sectionSource(int pageId, String pageTitle, String[] cats, EnrichedPage enriched,
+                                        int position) throws IOException {
+        final ByteArrayOutputStream source = new ByteArrayOutputStream(1024);
+        final JsonGenerator g = JSON.createJsonGenerator(source, JsonEncoding.UTF8);
+        g.writeStartObject();
+        g.writeNumberField("page_id", pageId);
+        g.writeStringField("page_title", pageTitle);
+        writeStrings(g, "page_categories", cats);
+        g.writeNumberField("section_idx", position);
+        g.writeStringField("section_title", enriched.getSectionTitle(position));
+        writeStrings(g, "ancestors", enriched.getAncestors(position));
+        writeLinks(g, "links", enriched.getSectionLinks(position), false);
+        writeLinks(g, "references", enriched.getSectionReferences(position), true);
+        final byte[] content = enriched.getSectionContent(position);
+        if(content != null){
+            g.writeFieldName("section_content");
+            g.writeRawValue(new String(content, StandardCharsets.UTF_8));
+        }
+        g.writeEndObject();
+        g.close();
+        return source.toByteArray();
+    }
+
+    private static void writeStrings(JsonGenerator g, String name, String[] values) throws IOException {
+        g.writeArrayFieldStart(name);
+        for(String value: values){
+            g.writeString(value);
+        }
+        g.writeEndArray();
+    }
+
+    private static void writeLinks(JsonGenerator g, String name, Link[] links, boolean references)
+            throws IOException {
+        g.writeArrayFieldStart(name);
+        for(Link l: links){
+            g.writeStartObject();
+            g.writeStringField("name", l.indexedName(references));
+            g.writeStringField("url", l.url);
+            g.writeEndObject();
+        }
+        g.writeEndArray();
+    }
+
+    /**
+     * The page id is a string term for lookups and deletes, and a number for ranges and aggregations.
+     */
+    private static void addPageId(Document doc, int pageId) {
+        doc.add(new StringField("page_id", Integer.toString(pageId), Field.Store.YES));
+        doc.add(new IntField("page_id" + NUMERIC_SUFFIX, pageId, Field.Store.NO));
+        doc.add(new NumericDocValuesField("page_id" + NUMERIC_SUFFIX, pageId));
+    }
+
+    private static void addKeywordAndTokens(Document doc, String name, String value) {
+        doc.add(new TextField(name, value, Field.Store.YES));
+        doc.add(new TextField(name + ".tokens", value, Field.Store.NO));
+    }
+
+    private static void addLinks(Document doc, String outName, Link[] links, boolean references) {
+        for(Link l: links){
+            addKeywordAndTokens(doc, outName + ".name", l.indexedName(references));
+            if(l.url != null){
+                doc.add(new StringField(outName + ".url", l.url, Field.Store.YES));
             }
-            indexWriter.addDocument(doc);
         }
+    }
 
+    /**
+     * Facet labels must not be empty.
+     */
+    private static void addFacet(Document doc, String dim, String label) {
+        if(!label.isEmpty()){
+            doc.add(new SortedSetDocValuesFacetField(dim, label));
+        }
+    }
 
-//        JsonNode currentSection = sections.path(0);
-//        int currentSectionIdx = 1;
-//        while(!currentSection.isMissingNode()){
-//            b = jsonBuilder().startObject();
-//            b.field("wikipedia_page", pageTitle);
-//            b.field("wikipedia_categories", cats);
-//            b.field("section", currentSection.path("title").getTextValue());
-//            String[] ancestors = getAncestors(sections, currentSection);
-//            b.field("ancestors", ancestors);
-//            addLinks("links", links, currentSectionIdx, b);
-//            addLinks("references", references, currentSectionIdx, b);
-//            currentSection = sections.path(currentSectionIdx);
-//            b.endObject();
-//            bulkRequest.add(client.prepareIndex(indexName, typeName).setSource(b));
-//
-//            // next section
-//            currentSectionIdx++;
-//        }
-//
-//        if(bulkRequest.numberOfActions() > 1){
-//            BulkResponse bulkResponse = bulkRequest.execute().actionGet();
-//            return !bulkResponse.hasFailures();
-//        }
-        return true;
+    /**
+     * @return the facets configuration of the section documents, needed to count the facets when searching
+     */
+    public static FacetsConfig createFacetsConfig() {
+        final FacetsConfig config = new FacetsConfig();
+        config.setMultiValued("page_categories", true);
+        return config;
     }
 
+    /**
+     * The same extractors as the elasticsearch index, the documents must hold the same content.
+     */
     @Override
-    public void processPage(String pagePrefix, String threadId, WikiPage page) {
-        try {
-            TokenBuffer buffer = JSONUtils.createJSONBuffer();
-//            final ByteArrayOutputStream jsonBuffer = new ByteArrayOutputStream();
-            final JSONSerializer serializer = new JSONSerializer(buffer);
-
-//            final WikiTextParser parser = new WikiTextParser(
-//                    WikiTextSerializerHandlerFactory.getInstance().createSerializerHandler(serializer)
-//            );
-            final WikiEnricher enricher = WikiEnricherFactory.getInstance().createFullyConfiguredInstance(
-                    WikiEnricherFactory.Extractors
-            );
-
-            enricher.enrichEntity(
-                    new DocumentSource(
-                            new URL(pagePrefix),
-                            page.getContent()
-                    ),
-                    serializer
-            );
-
-            final JsonNode root = JSONUtils.bufferToJSONNode(buffer);
-            indexSections(root, page.getTitle());
-            processedPages++;
-//        } catch (IOException|WikiTextParserException|RuntimeException exc) {
-        } catch(Exception e) {
-//            e.printStackTrace();
-            errorPages++;
-        }
+    protected WikiEnricher createEnricher() {
+        return WikiEnricherFactory.getInstance().createFullyConfiguredInstance(
+                WikiEnricherFactory.Extractors,
+                WikiEnricherFactory.Structure
+        );
+    }
 
-        if((processedPages + errorPages) % 100 == 0){
-            System.out.println("*************************************************");
+    @Override
+    protected boolean indexEnrichedPage(int pageId, String title, String contentHash, EnrichedPage enriched)
+            throws IOException {
+        final List<Document> docs = pageDocuments(enriched, pageId, title, contentHash);
+        countFacets(enriched);
+        recordStage(IngestMetrics.Stage.DOCUMENT, documentStart());
+
+        final long sinkStart = System.nanoTime();
+        final IndexWriter indexWriter = writerFor(pageId);
+        if(replacePages){
+            indexWriter.updateDocuments(pageTerm(pageId), docs);
+        } else {
+            indexWriter.addDocuments(docs);
         }
+        recordStage(IngestMetrics.Stage.SINK, sinkStart);
+        return true;
     }
 
+    /**
+     * Every document of a page holds its content hash, the first one is enough.
+     */
     @Override
-    public long getProcessedPages() {
-        return processedPages;
+    protected String indexedContentHash(int pageId) throws IOException {
+        if(indexed == null){
+            return null;
+        }
+        final TopDocs hits = indexed.search(new TermQuery(pageTerm(pageId)), 1);
+        if(hits.totalHits == 0){
+            return null;
+        }
+        final String hash = indexed.doc(hits.scoreDocs[0].doc, HASH_FIELD).get("content_hash");
+        return hash == null ? "" : hash;
     }
 
+    /**
+     * Every document of the page is deleted, the writer applies the deletion before the documents added next.
+     */
     @Override
-    public long getErrorPages() {
-        return errorPages;
+    protected void deletePage(int pageId, int sections) throws IOException {
+        final Term term = pageTerm(pageId);
+        writerFor(pageId).deleteDocuments(term);
+        if(mainWriter != null){
+            mainWriter.deleteDocuments(term);
+        }
+    }
+
+    private static Term pageTerm(int pageId) {
+        return new Term("page_id", Integer.toString(pageId));
     }
 }
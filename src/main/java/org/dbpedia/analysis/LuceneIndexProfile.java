@@ -0,0 +1,107 @@
+package org.dbpedia.analysis;
+
+import org.apache.lucene.index.ConcurrentMergeScheduler;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.TieredMergePolicy;
+
+/**
+ * <strong>LuceneIndexProfile</strong> holds the IndexWriter settings used by {@link LuceneIndexCreator}.
+ * The default profile keeps the lucene defaults, the bulk profile trades memory and disk space for ingestion speed.
+ */
+public class LuceneIndexProfile {
+    private double ramBufferMb = IndexWriterConfig.DEFAULT_RAM_BUFFER_SIZE_MB;
+    private int maxThreadStates = IndexWriterConfig.DEFAULT_MAX_THREAD_STATES;
+    private int maxMergeThreads = ConcurrentMergeScheduler.DEFAULT_MAX_THREAD_COUNT;
+    private int maxMerges = ConcurrentMergeScheduler.DEFAULT_MAX_MERGE_COUNT;
+    private double segmentsPerTier = 10.0;
+    private boolean compoundFiles = true;
+    private int forceMergeSegments = 0;
+
+    /**
+     * @return the lucene defaults, without a final merge
+     */
+    public static LuceneIndexProfile defaults() {
+        return new LuceneIndexProfile();
+    }
+
+    /**
+     * A profile for loading a whole dump: a large RAM buffer, one thread state per worker,
+     * merges sized for the host and no compound files.
+     */
+    public static LuceneIndexProfile bulk() {
+        final int mergeThreads = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+        return new LuceneIndexProfile()
+                .setRamBufferMb(256)
+                .setMaxThreadStates(0)
+                .setMaxMergeThreads(mergeThreads)
+                .setMaxMerges(mergeThreads + 2)
+                .setSegmentsPerTier(20.0)
+                .setCompoundFiles(false);
+    }
+
+    /**
+     * Apply the profile to a writer configuration.
+     * @param workers number of threads adding documents, used when maxThreadStates is 0
+     */
+    public void apply(IndexWriterConfig iwc, int workers) {
+        iwc.setRAMBufferSizeMB(ramBufferMb);
+        iwc.setMaxThreadStates(maxThreadStates > 0 ? maxThreadStates : workers);
+
+        final ConcurrentMergeScheduler scheduler = new ConcurrentMergeScheduler();
+        scheduler.setMaxMergesAndThreads(Math.max(maxMerges, maxMergeThreads), maxMergeThreads);
+        iwc.setMergeScheduler(scheduler);
+
+        final TieredMergePolicy mergePolicy = new TieredMergePolicy();
+        mergePolicy.setSegmentsPerTier(segmentsPerTier);
+        if(!compoundFiles){
+            mergePolicy.setNoCFSRatio(0.0);
+        }
+        iwc.setMergePolicy(mergePolicy);
+        iwc.setUseCompoundFile(compoundFiles);
+    }
+
+    public LuceneIndexProfile setRamBufferMb(double ramBufferMb) {
+        this.ramBufferMb = ramBufferMb;
+        return this;
+    }
+
+    /**
+     * @param maxThreadStates number of concurrent indexing thread states, 0 to match the number of workers
+     */
+    public LuceneIndexProfile setMaxThreadStates(int maxThreadStates) {
+        this.maxThreadStates = maxThreadStates;
+        return this;
+    }
+
+    public LuceneIndexProfile setMaxMergeThreads(int maxMergeThreads) {
+        this.maxMergeThreads = maxMergeThreads;
+        return this;
+    }
+
+    public LuceneIndexProfile setMaxMerges(int maxMerges) {
+        this.maxMerges = maxMerges;
+        return this;
+    }
+
+    public LuceneIndexProfile setSegmentsPerTier(double segmentsPerTier) {
+        this.segmentsPerTier = segmentsPerTier;
+        return this;
+    }
+
+    public LuceneIndexProfile setCompoundFiles(boolean compoundFiles) {
+        this.compoundFiles = compoundFiles;
+        return this;
+    }
+
+    /**
+     * @param forceMergeSegments merge the index down to this many segments once the dump is processed, 0 to skip it
+     */
+    public LuceneIndexProfile setForceMergeSegments(int forceMergeSegments) {
+        this.forceMergeSegments = forceMergeSegments;
+        return this;
+    }
+
+    public int getForceMergeSegments() {
+        return forceMergeSegments;
+    }
+}
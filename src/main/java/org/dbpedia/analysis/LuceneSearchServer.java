@@ -0,0 +1,893 @@
+package org.dbpedia.analysis;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.index.AtomicReaderContext;
+import org.apache.lucene.index.NumericDocValues;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.BooleanClause;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.CollectionTerminatedException;
+import org.apache.lucene.search.Collector;
+import org.apache.lucene.search.FilteredQuery;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.MultiCollector;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.QueryWrapperFilter;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.Scorer;
+import org.apache.lucene.search.SearcherManager;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.search.TopDocs;
+import org.apache.lucene.search.TotalHitCountCollector;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.BytesRef;
+import org.codehaus.jackson.JsonEncoding;
+import org.codehaus.jackson.JsonGenerator;
+import org.codehaus.jackson.JsonNode;
+import org.codehaus.jackson.map.ObjectMapper;
+import org.codehaus.jackson.node.ObjectNode;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <strong>LuceneSearchServer</strong> answers elasticsearch search requests over an index written by
+ * {@link LuceneIndexCreator}, so that the python extractors can run against a local lucene index.
+ * Only what the extractors use is supported: <code>/{index}/{type}/_search</code> with the queries of
+ * {@link QueryDslParser}, <code>size</code>, <code>from</code>, <code>_source</code> and <code>min</code> or
+ * <code>max</code> aggregations of the numeric fields, and scrolls, including
+ * the scan search type, through <code>/_search/scroll</code>. Documents are fetched by id with
+ * <code>/{index}/{type}/{id}</code>, or many at once with <code>/{index}/{type}/_mget</code>.
+ * Searches go through a {@link SearcherManager} refreshed in the background. A scroll keeps the searcher it started
+ * with until it is exhausted, cleared or expires, so it sees a consistent view of the index.
+ * Give the server a manager opened on the writer of a running ingestion for near real time search.
+ */
+public class LuceneSearchServer implements Closeable {
+    private static final Set<String> HIT_FIELDS = new HashSet<>(Arrays.asList(
+            LuceneIndexPageProcessor.ID_FIELD, LuceneIndexPageProcessor.TYPE_FIELD,
+            LuceneIndexPageProcessor.SOURCE_FIELD
+    ));
+    private static final int DEFAULT_SIZE = 10;
+
+    private final SearcherManager searchers;
+    private final QueryDslParser queries;
+    private final String indexName;
+    private final ObjectMapper mapper = new ObjectMapper();
+
+    private final ConcurrentMap<String, Scroll> scrolls = new ConcurrentHashMap<>();
+    private final AtomicLong scrollIds = new AtomicLong();
+    private long refreshIntervalMillis = 1000;
+
+    private HttpServer server;
+    private ExecutorService workers;
+    private ScheduledExecutorService maintenance;
+
+    /**
+     * @param searchers searchers over the index, the server releases them but does not close the manager
+     * @param analyzer analyzer the index was written with, see {@link LuceneIndexCreator#createAnalyzer()}
+     * @param indexName name the index answers to in the request paths and in the hits
+     */
+    public LuceneSearchServer(SearcherManager searchers, Analyzer analyzer, String indexName) {
+        this.searchers = searchers;
+        this.queries = new QueryDslParser(analyzer);
+        this.indexName = indexName;
+    }
+
+    /**
+     * @param refreshIntervalMillis milliseconds between two refreshes of the searchers, 0 to never refresh them
+     */
+    public void setRefreshInterval(long refreshIntervalMillis) {
+        this.refreshIntervalMillis = refreshIntervalMillis;
+    }
+
+    /**
+     * Start answering requests, the server runs on its own threads.
+     * @param threads number of requests handled concurrently
+     */
+    public void start(InetSocketAddress address, int threads) throws IOException {
+        server = HttpServer.create(address, 0);
+        workers = Executors.newFixedThreadPool(threads);
+        server.setExecutor(workers);
+        server.createContext("/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                LuceneSearchServer.this.handle(exchange);
+            }
+        });
+
+        maintenance = Executors.newSingleThreadScheduledExecutor();
+        maintenance.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                expireScrolls();
+            }
+        }, 1, 1, TimeUnit.SECONDS);
+        if(refreshIntervalMillis > 0){
+            maintenance.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        searchers.maybeRefresh();
+                    } catch (IOException e) {
+                        System.err.println("cannot refresh the searchers: " + e.getMessage());
+                    }
+                }
+            }, refreshIntervalMillis, refreshIntervalMillis, TimeUnit.MILLISECONDS);
+        }
+        server.start();
+    }
+
+    /**
+     * Stop answering requests and release the searchers held by the open scrolls.
+     */
+    @Override
+    public void close() throws IOException {
+        if(server != null){
+            server.stop(0);
+            workers.shutdown();
+            maintenance.shutdown();
+        }
+        for(String id: scrolls.keySet()){
+            clearScroll(id);
+        }
+    }
+
+    /**
+     * A request the client got wrong, answered with its status and the elasticsearch error format.
+     */
+    private static class RequestException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        private final int status;
+
+        RequestException(int status, String message) {
+            super(message);
+            this.status = status;
+        }
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try {
+            final String method = exchange.getRequestMethod();
+            final List<String> path = new ArrayList<>();
+            for(String segment: exchange.getRequestURI().getRawPath().split("/")){
+                if(!segment.isEmpty()){
+                    path.add(URLDecoder.decode(segment, "UTF-8"));
+                }
+            }
+            final Map<String, String> params = parseParams(exchange.getRequestURI().getRawQuery());
+            final byte[] body = readBody(exchange.getRequestBody());
+
+            if(path.isEmpty()){
+                if(method.equals("HEAD")){
+                    exchange.sendResponseHeaders(200, -1);
+                    exchange.close();
+                } else {
+                    respond(exchange, 200, info());
+                }
+            } else if(path.size() >= 2 && path.get(0).equals("_search") && path.get(1).equals("scroll")){
+                if(method.equals("DELETE")){
+                    final String ids = path.size() > 2 ? path.get(2) : new String(body, StandardCharsets.UTF_8);
+                    respond(exchange, 200, clearScrolls(ids));
+                } else {
+                    respond(exchange, 200, scroll(params, body));
+                }
+            } else if(path.get(path.size() - 1).equals("_search") && path.size() <= 3){
+                if(path.size() > 1){
+                    checkIndex(path.get(0));
+                }
+                respond(exchange, 200, search(path.size() == 3 ? path.get(1) : null, params, body));
+            } else if(path.get(path.size() - 1).equals("_mget") && path.size() <= 3){
+                if(path.size() > 1){
+                    checkIndex(path.get(0));
+                }
+                respond(exchange, 200, multiGet(path.size() == 3 ? path.get(1) : null, params, body));
+            } else if(path.size() == 3 && !path.get(2).startsWith("_")){
+                checkIndex(path.get(0));
+                get(exchange, method, path.get(1), path.get(2), params);
+            } else {
+                throw new RequestException(400, "No handler found for uri [" + exchange.getRequestURI() + "]");
+            }
+        } catch (RequestException e) {
+            respond(exchange, e.status, error(e.getMessage(), e.status));
+        } catch (IllegalArgumentException e) {
+            respond(exchange, 400, error("SearchParseException[" + e.getMessage() + "]", 400));
+        } catch (IOException | RuntimeException e) {
+            e.printStackTrace();
+            respond(exchange, 500, error(e.toString(), 500));
+        }
+    }
+
+    private void checkIndex(String indices) throws RequestException {
+        for(String index: indices.split(",")){
+            if(!index.equals(indexName) && !index.equals("_all") && !index.equals("*")){
+                throw new RequestException(404, "IndexMissingException[[" + index + "] missing]");
+            }
+        }
+    }
+
+    private static Map<String, String> parseParams(String query) throws IOException {
+        final Map<String, String> params = new HashMap<>();
+        if(query == null){
+            return params;
+        }
+        for(String pair: query.split("&")){
+            final int eq = pair.indexOf('=');
+            if(eq < 0){
+                params.put(URLDecoder.decode(pair, "UTF-8"), "");
+            } else {
+                params.put(
+                        URLDecoder.decode(pair.substring(0, eq), "UTF-8"),
+                        URLDecoder.decode(pair.substring(eq + 1), "UTF-8")
+                );
+            }
+        }
+        return params;
+    }
+
+    private static byte[] readBody(InputStream in) throws IOException {
+        final ByteArrayOutputStream body = new ByteArrayOutputStream();
+        final byte[] buffer = new byte[8192];
+        int n;
+        while((n = in.read(buffer)) > 0){
+            body.write(buffer, 0, n);
+        }
+        in.close();
+        return body.toByteArray();
+    }
+
+    private JsonNode readJson(byte[] body) throws IOException {
+        if(body.length == 0){
+            return mapper.createObjectNode();
+        }
+        try {
+            return mapper.readTree(body);
+        } catch (IOException e) {
+            throw new RequestException(400, "cannot parse the request body: " + e.getMessage());
+        }
+    }
+
+    /**
+     * The response written by a handler once the request is known to be valid.
+     */
+    private interface Response {
+        void write(JsonGenerator g) throws IOException;
+    }
+
+    private void respond(HttpExchange exchange, int status, Response response) throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final JsonGenerator g = mapper.getJsonFactory().createJsonGenerator(out, JsonEncoding.UTF8);
+        response.write(g);
+        g.close();
+
+        exchange.getResponseHeaders().set("Content-Type", "application/json; charset=UTF-8");
+        exchange.sendResponseHeaders(status, out.size());
+        try (OutputStream os = exchange.getResponseBody()) {
+            out.writeTo(os);
+        }
+    }
+
+    private Response info() {
+        return new Response() {
+            @Override
+            public void write(JsonGenerator g) throws IOException {
+                g.writeStartObject();
+                g.writeNumberField("status", 200);
+                g.writeStringField("name", indexName);
+                g.writeObjectFieldStart("version");
+                g.writeStringField("number", "1.2.1");
+                g.writeStringField("lucene_version", "4.8");
+                g.writeEndObject();
+                g.writeStringField("tagline", "You Know, for Search");
+                g.writeEndObject();
+            }
+        };
+    }
+
+    private static Response error(final String message, final int status) {
+        return new Response() {
+            @Override
+            public void write(JsonGenerator g) throws IOException {
+                g.writeStartObject();
+                g.writeStringField("error", message);
+                g.writeNumberField("status", status);
+                g.writeEndObject();
+            }
+        };
+    }
+
+    /**
+     * The <code>_source</code> and <code>_source_include</code> parameters win over the body, as in elasticsearch.
+     * @return the source fields to return, null for the whole source and an empty set for none
+     */
+    private static Set<String> sourceFields(Map<String, String> params, JsonNode body) {
+        final Set<String> fields = new HashSet<>();
+        if(params.containsKey("_source_include")){
+            fields.addAll(Arrays.asList(params.get("_source_include").split(",")));
+            return fields;
+        }
+        if(params.containsKey("_source")){
+            final String source = params.get("_source");
+            if(source.equals("false")){
+                return fields;
+            }
+            if(source.isEmpty() || source.equals("true")){
+                return null;
+            }
+            fields.addAll(Arrays.asList(source.split(",")));
+            return fields;
+        }
+        final JsonNode source = body.path("_source");
+        if(source.isMissingNode() || source.isBoolean() && source.getBooleanValue()){
+            return null;
+        }
+        if(source.isTextual()){
+            fields.add(source.getTextValue());
+        } else {
+            for(JsonNode field: source){
+                fields.add(field.asText());
+            }
+        }
+        return fields;
+    }
+
+    private static int intParam(Map<String, String> params, JsonNode body, String name, int defaultValue) {
+        if(params.containsKey(name)){
+            try {
+                return Integer.parseInt(params.get(name));
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException(String.format("[%s] must be a number", name));
+            }
+        }
+        return body.path(name).asInt(defaultValue);
+    }
+
+    /**
+     * Parse an elasticsearch time value such as <code>5m</code> or <code>30s</code>.
+     */
+    static long parseMillis(String time) {
+        final String t = time.trim().toLowerCase();
+        try {
+            if(t.endsWith("ms")){
+                return Long.parseLong(t.substring(0, t.length() - 2));
+            }
+            final long value = Long.parseLong(t.substring(0, t.length() - 1));
+            switch (t.charAt(t.length() - 1)) {
+                case 's':
+                    return TimeUnit.SECONDS.toMillis(value);
+                case 'm':
+                    return TimeUnit.MINUTES.toMillis(value);
+                case 'h':
+                    return TimeUnit.HOURS.toMillis(value);
+                case 'd':
+                    return TimeUnit.DAYS.toMillis(value);
+                default:
+                    return Long.parseLong(t);
+            }
+        } catch (NumberFormatException | StringIndexOutOfBoundsException e) {
+            throw new IllegalArgumentException(String.format("cannot parse the time value [%s]", time));
+        }
+    }
+
+    private Response search(String types, Map<String, String> params, byte[] rawBody) throws IOException {
+        final long start = System.nanoTime();
+        final JsonNode body = readJson(rawBody);
+        final Query query = filterTypes(queries.parse(body.get("query")), types);
+        final int size = intParam(params, body, "size", DEFAULT_SIZE);
+        final int from = intParam(params, body, "from", 0);
+        final Set<String> source = sourceFields(params, body);
+        final boolean scrolling = params.containsKey("scroll");
+        final long keepAliveMillis = scrolling ? parseMillis(params.get("scroll")) : 0;
+        final boolean scan = "scan".equals(params.get("search_type"));
+
+        final IndexSearcher searcher = searchers.acquire();
+        if(!scrolling){
+            try {
+                final TopDocs top = searcher.search(query, Math.max(from + size, 1));
+                final ScoreDoc[] page = from >= top.scoreDocs.length
+                        ? new ScoreDoc[0]
+                        : Arrays.copyOfRange(top.scoreDocs, from, Math.min(top.scoreDocs.length, from + size));
+                final JsonNode aggs = body.has("aggs") ? body.get("aggs") : body.path("aggregations");
+                return hits(
+                        searcher, null, top.totalHits, top.getMaxScore(), page, source,
+                        aggregate(searcher, query, aggs), start
+                );
+            } finally {
+                searchers.release(searcher);
+            }
+        }
+
+        final Scroll scroll;
+        try {
+            scroll = new Scroll(
+                    Long.toString(scrollIds.incrementAndGet()), searcher, query, size, scan, source, keepAliveMillis
+            );
+        } catch (IOException | RuntimeException e) {
+            searchers.release(searcher);
+            throw e;
+        }
+        // the scroll now owns the searcher
+        scrolls.put(scroll.id, scroll);
+        try {
+            if(scan){
+                // as in elasticsearch the first response of a scan only holds the number of hits
+                return hits(searcher, scroll.id, scroll.totalHits, 0, new ScoreDoc[0], source, null, start);
+            }
+            return scroll.next(start);
+        } catch (IOException | RuntimeException e) {
+            clearScroll(scroll.id);
+            throw e;
+        }
+    }
+
+    /**
+     * Get a document by id. There is no transaction log, the document is only found once the searchers have been
+     * refreshed after it was committed.
+     */
+    private void get(HttpExchange exchange, String method, final String type, final String id,
+                     Map<String, String> params) throws IOException {
+        final Set<String> source = sourceFields(params, mapper.createObjectNode());
+        final Document doc;
+        final IndexSearcher searcher = searchers.acquire();
+        try {
+            doc = find(searcher, type, id);
+        } finally {
+            searchers.release(searcher);
+        }
+
+        if(method.equals("HEAD")){
+            exchange.sendResponseHeaders(doc == null ? 404 : 200, -1);
+            exchange.close();
+            return;
+        }
+        respond(exchange, doc == null ? 404 : 200, new Response() {
+            @Override
+            public void write(JsonGenerator g) throws IOException {
+                writeGet(g, type, id, doc, source);
+            }
+        });
+    }
+
+    /**
+     * Get many documents with a single searcher. Each of the <code>docs</code> may give its own
+     * <code>_type</code> and <code>_source</code>, <code>ids</code> only use the ones of the request.
+     */
+    private Response multiGet(String type, Map<String, String> params, byte[] rawBody) throws IOException {
+        final JsonNode body = readJson(rawBody);
+        final Set<String> defaultSource = sourceFields(params, body);
+        final List<String> types = new ArrayList<>();
+        final List<String> ids = new ArrayList<>();
+        final List<Set<String>> sources = new ArrayList<>();
+        for(JsonNode doc: body.path("docs")){
+            types.add(doc.has("_type") ? doc.get("_type").asText() : type);
+            ids.add(doc.path("_id").asText());
+            sources.add(doc.has("_source") ? sourceFields(new HashMap<String, String>(), doc) : defaultSource);
+        }
+        for(JsonNode id: body.path("ids")){
+            types.add(type);
+            ids.add(id.asText());
+            sources.add(defaultSource);
+        }
+
+        final List<Document> docs = new ArrayList<>(ids.size());
+        final IndexSearcher searcher = searchers.acquire();
+        try {
+            for(int i = 0; i < ids.size(); i++){
+                docs.add(find(searcher, types.get(i), ids.get(i)));
+            }
+        } finally {
+            searchers.release(searcher);
+        }
+        return new Response() {
+            @Override
+            public void write(JsonGenerator g) throws IOException {
+                g.writeStartObject();
+                g.writeArrayFieldStart("docs");
+                for(int i = 0; i < docs.size(); i++){
+                    writeGet(g, types.get(i), ids.get(i), docs.get(i), sources.get(i));
+                }
+                g.writeEndArray();
+                g.writeEndObject();
+            }
+        };
+    }
+
+    /**
+     * @return the document with the given id, null if there is none
+     */
+    private static Document find(IndexSearcher searcher, String type, String id) throws IOException {
+        final TopDocs top = searcher.search(
+                filterTypes(new TermQuery(new Term(LuceneIndexPageProcessor.ID_FIELD, id)), type), 1
+        );
+        return top.totalHits == 0 ? null : searcher.doc(top.scoreDocs[0].doc, HIT_FIELDS);
+    }
+
+    private void writeGet(JsonGenerator g, String type, String id, Document doc, Set<String> source)
+            throws IOException {
+        if(doc == null){
+            g.writeStartObject();
+            g.writeStringField("_index", indexName);
+            g.writeStringField("_type", type == null ? "_all" : type);
+            g.writeStringField("_id", id);
+            g.writeBooleanField("found", false);
+            g.writeEndObject();
+        } else {
+            writeDocument(g, doc, null, source);
+        }
+    }
+
+    private static Query filterTypes(Query query, String types) {
+        if(types == null || types.equals("_all")){
+            return query;
+        }
+        final BooleanQuery typeQuery = new BooleanQuery();
+        for(String type: types.split(",")){
+            typeQuery.add(
+                    new TermQuery(new Term(LuceneIndexPageProcessor.TYPE_FIELD, type)), BooleanClause.Occur.SHOULD
+            );
+        }
+        return new FilteredQuery(query, new QueryWrapperFilter(typeQuery));
+    }
+
+    /**
+     * The scroll id is either a parameter or the body, as a plain string or a json object.
+     */
+    private Response scroll(Map<String, String> params, byte[] rawBody) throws IOException {
+        final long start = System.nanoTime();
+        String id = params.get("scroll_id");
+        if(id == null){
+            id = new String(rawBody, StandardCharsets.UTF_8).trim();
+            if(id.startsWith("{")){
+                id = readJson(rawBody).path("scroll_id").asText();
+            }
+        }
+        final Scroll scroll = scrolls.get(id);
+        if(scroll == null){
+            throw new RequestException(404, "SearchContextMissingException[No search context found for id [" + id + "]]");
+        }
+        if(params.containsKey("scroll")){
+            scroll.keepAliveMillis = parseMillis(params.get("scroll"));
+        }
+        return scroll.next(start);
+    }
+
+    private Response clearScrolls(String ids) throws IOException {
+        for(String id: ids.split(",")){
+            clearScroll(id.trim());
+        }
+        return new Response() {
+            @Override
+            public void write(JsonGenerator g) throws IOException {
+                g.writeStartObject();
+                g.writeBooleanField("succeeded", true);
+                g.writeEndObject();
+            }
+        };
+    }
+
+    private void clearScroll(String id) throws IOException {
+        final Scroll scroll = scrolls.remove(id);
+        if(scroll != null){
+            searchers.release(scroll.searcher);
+        }
+    }
+
+    private void expireScrolls() {
+        final long now = System.currentTimeMillis();
+        for(Scroll scroll: scrolls.values()){
+            // a scroll being read is not released under its feet
+            synchronized (scroll) {
+                if(scroll.lastAccess + scroll.keepAliveMillis < now){
+                    try {
+                        clearScroll(scroll.id);
+                    } catch (IOException e) {
+                        System.err.println("cannot release the searcher of scroll " + scroll.id + ": " + e.getMessage());
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Run the <code>min</code> and <code>max</code> aggregations of a search, in a single pass over the hits.
+     * @return the value of every aggregation by name, null for aggregations without any value
+     */
+    private static Map<String, Long> aggregate(IndexSearcher searcher, Query query, JsonNode aggs) throws IOException {
+        final Map<String, Long> values = new LinkedHashMap<>();
+        if(aggs.size() == 0){
+            return values;
+        }
+        final Set<String> numeric = new HashSet<>(Arrays.asList(LuceneIndexPageProcessor.NUMERIC_FIELDS));
+        final Map<String, MinMaxCollector> collectors = new LinkedHashMap<>();
+        final Iterator<Map.Entry<String, JsonNode>> it = aggs.getFields();
+        while(it.hasNext()){
+            final Map.Entry<String, JsonNode> agg = it.next();
+            final boolean max = agg.getValue().has("max");
+            final String field = agg.getValue().path(max ? "max" : "min").path("field").asText();
+            if(agg.getValue().size() != 1 || !numeric.contains(field)){
+                throw new IllegalArgumentException(String.format(
+                        "[%s] only min and max aggregations of %s are supported", agg.getKey(), numeric
+                ));
+            }
+            collectors.put(agg.getKey(), new MinMaxCollector(field + LuceneIndexPageProcessor.NUMERIC_SUFFIX, max));
+        }
+        searcher.search(query, MultiCollector.wrap(collectors.values().toArray(new Collector[collectors.size()])));
+        for(Map.Entry<String, MinMaxCollector> e: collectors.entrySet()){
+            values.put(e.getKey(), e.getValue().value());
+        }
+        return values;
+    }
+
+    private Response hits(final IndexSearcher searcher, final String scrollId, final int total, final float maxScore,
+                          ScoreDoc[] page, final Set<String> source, final Map<String, Long> aggregations,
+                          final long startNanos) throws IOException {
+        // the documents are read now, the searcher may be released before the response is written
+        final List<Document> docs = new ArrayList<>(page.length);
+        for(ScoreDoc hit: page){
+            docs.add(searcher.doc(hit.doc, HIT_FIELDS));
+        }
+        final ScoreDoc[] hits = page;
+        return new Response() {
+            @Override
+            public void write(JsonGenerator g) throws IOException {
+                g.writeStartObject();
+                if(scrollId != null){
+                    g.writeStringField("_scroll_id", scrollId);
+                }
+                g.writeNumberField("took", TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos));
+                g.writeBooleanField("timed_out", false);
+                g.writeObjectFieldStart("_shards");
+                g.writeNumberField("total", 1);
+                g.writeNumberField("successful", 1);
+                g.writeNumberField("failed", 0);
+                g.writeEndObject();
+                g.writeObjectFieldStart("hits");
+                g.writeNumberField("total", total);
+                g.writeNumberField("max_score", Float.isNaN(maxScore) ? 0 : maxScore);
+                g.writeArrayFieldStart("hits");
+                for(int i = 0; i < hits.length; i++){
+                    writeDocument(g, docs.get(i), hits[i].score, source);
+                }
+                g.writeEndArray();
+                g.writeEndObject();
+                if(aggregations != null && !aggregations.isEmpty()){
+                    g.writeObjectFieldStart("aggregations");
+                    for(Map.Entry<String, Long> e: aggregations.entrySet()){
+                        g.writeObjectFieldStart(e.getKey());
+                        g.writeFieldName("value");
+                        if(e.getValue() == null){
+                            g.writeNull();
+                        } else {
+                            g.writeNumber(e.getValue());
+                        }
+                        g.writeEndObject();
+                    }
+                    g.writeEndObject();
+                }
+                g.writeEndObject();
+            }
+        };
+    }
+
+    /**
+     * Write a search hit, or the response to a get when there is no score.
+     */
+    private void writeDocument(JsonGenerator g, Document doc, Float score, Set<String> source) throws IOException {
+        g.writeStartObject();
+        g.writeStringField("_index", indexName);
+        g.writeStringField("_type", doc.get(LuceneIndexPageProcessor.TYPE_FIELD));
+        g.writeStringField("_id", doc.get(LuceneIndexPageProcessor.ID_FIELD));
+        if(score == null){
+            g.writeNumberField("_version", 1);
+            g.writeBooleanField("found", true);
+        } else {
+            g.writeNumberField("_score", Float.isNaN(score) ? 0 : score);
+        }
+        final BytesRef stored = doc.getBinaryValue(LuceneIndexPageProcessor.SOURCE_FIELD);
+        if(stored != null && (source == null || !source.isEmpty())){
+            g.writeFieldName("_source");
+            if(source == null){
+                g.writeRawValue(new String(stored.bytes, stored.offset, stored.length, StandardCharsets.UTF_8));
+            } else {
+                final JsonNode full = mapper.readTree(
+                        mapper.getJsonFactory().createJsonParser(stored.bytes, stored.offset, stored.length)
+                );
+                final ObjectNode filtered = mapper.createObjectNode();
+                final Iterator<Map.Entry<String, JsonNode>> fields = full.getFields();
+                while(fields.hasNext()){
+                    final Map.Entry<String, JsonNode> field = fields.next();
+                    if(source.contains(field.getKey())){
+                        filtered.put(field.getKey(), field.getValue());
+                    }
+                }
+                mapper.writeTree(g, filtered);
+            }
+        }
+        g.writeEndObject();
+    }
+
+    /**
+     * An open scroll. A scan returns the hits in index order and only needs the last document returned, while a
+     * scored scroll pages through the hits with searchAfter.
+     */
+    private class Scroll {
+        private final String id;
+        private final IndexSearcher searcher;
+        private final Query query;
+        private final int size;
+        private final boolean scan;
+        private final Set<String> source;
+        private final int totalHits;
+
+        private volatile long keepAliveMillis;
+        private volatile long lastAccess = System.currentTimeMillis();
+        private ScoreDoc after;
+
+        Scroll(String id, IndexSearcher searcher, Query query, int size, boolean scan, Set<String> source,
+               long keepAliveMillis) throws IOException {
+            this.id = id;
+            this.searcher = searcher;
+            this.query = query;
+            this.size = Math.max(size, 1);
+            this.scan = scan;
+            this.source = source;
+            this.keepAliveMillis = keepAliveMillis;
+            if(scan){
+                final TotalHitCountCollector counter = new TotalHitCountCollector();
+                searcher.search(query, counter);
+                this.totalHits = counter.getTotalHits();
+            } else {
+                this.totalHits = -1;
+            }
+        }
+
+        synchronized Response next(long startNanos) throws IOException {
+            lastAccess = System.currentTimeMillis();
+            final ScoreDoc[] page;
+            final int total;
+            float maxScore = 0;
+            if(scan){
+                final ScanCollector collector = new ScanCollector(after == null ? -1 : after.doc, size);
+                searcher.search(query, collector);
+                page = collector.page();
+                total = totalHits;
+            } else {
+                final TopDocs top = searcher.searchAfter(after, query, size);
+                page = top.scoreDocs;
+                total = top.totalHits;
+                maxScore = top.getMaxScore();
+            }
+            if(page.length > 0){
+                after = page[page.length - 1];
+            }
+            final Response response = hits(searcher, id, total, maxScore, page, source, null, startNanos);
+            if(page.length == 0){
+                clearScroll(id);
+            }
+            return response;
+        }
+    }
+
+    /**
+     * Minimum or maximum of the numeric doc values of a field over the hits.
+     */
+    private static class MinMaxCollector extends Collector {
+        private final String field;
+        private final boolean max;
+        private NumericDocValues values;
+        private Bits hasValue;
+        private long value;
+        private boolean found = false;
+
+        MinMaxCollector(String field, boolean max) {
+            this.field = field;
+            this.max = max;
+        }
+
+        @Override
+        public void setScorer(Scorer scorer) {
+        }
+
+        @Override
+        public void collect(int doc) {
+            if(values == null || !hasValue.get(doc)){
+                return;
+            }
+            final long v = values.get(doc);
+            if(!found || (max ? v > value : v < value)){
+                value = v;
+                found = true;
+            }
+        }
+
+        @Override
+        public void setNextReader(AtomicReaderContext context) throws IOException {
+            values = context.reader().getNumericDocValues(field);
+            hasValue = context.reader().getDocsWithField(field);
+        }
+
+        @Override
+        public boolean acceptsDocsOutOfOrder() {
+            return true;
+        }
+
+        Long value() {
+            return found ? value : null;
+        }
+    }
+
+    /**
+     * Collects the first documents after a given one in index order, and stops as soon as it has enough of them.
+     */
+    private static class ScanCollector extends Collector {
+        private final int after;
+        private final ScoreDoc[] docs;
+        private int count = 0;
+        private int docBase;
+
+        ScanCollector(int after, int size) {
+            this.after = after;
+            this.docs = new ScoreDoc[size];
+        }
+
+        @Override
+        public void setScorer(Scorer scorer) {
+        }
+
+        @Override
+        public void collect(int doc) {
+            final int global = docBase + doc;
+            if(global <= after){
+                return;
+            }
+            docs[count++] = new ScoreDoc(global, 0);
+            if(count == docs.length){
+                throw new CollectionTerminatedException();
+            }
+        }
+
+        @Override
+        public void setNextReader(AtomicReaderContext context) {
+            docBase = context.docBase;
+            // segments already returned, or any segment once the page is full, are skipped entirely
+            if(count == docs.length || docBase + context.reader().maxDoc() - 1 <= after){
+                throw new CollectionTerminatedException();
+            }
+        }
+
+        @Override
+        public boolean acceptsDocsOutOfOrder() {
+            return false;
+        }
+
+        ScoreDoc[] page() {
+            return Arrays.copyOf(docs, count);
+        }
+    }
+}
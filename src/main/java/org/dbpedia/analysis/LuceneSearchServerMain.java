@@ -0,0 +1,105 @@
+package org.dbpedia.analysis;
+
+import com.beust.jcommander.JCommander;
+import com.beust.jcommander.Parameter;
+import com.beust.jcommander.ParameterException;
+import com.beust.jcommander.converters.FileConverter;
+import org.apache.lucene.search.SearcherManager;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+
+/**
+ * Serves a lucene index written by {@link LuceneIndexMain} over the elasticsearch http api, see
+ * {@link LuceneSearchServer}.
+ */
+public class LuceneSearchServerMain {
+    @Parameter(
+            names = {"--index", "-i"},
+            description = "path to the folder where the index is stored",
+            converter = FileConverter.class,
+            required = true
+    )
+    private File indexPath;
+
+    @Parameter(
+            names = {"--host"},
+            description = "address the server listens on"
+    )
+    private String host = "localhost";
+
+    @Parameter(
+            names = {"--port", "-p"},
+            description = "port the server listens on"
+    )
+    private int port = 9200;
+
+    @Parameter(
+            names = {"--name"},
+            description = "name of the index in the request paths, as in elasticsearch"
+    )
+    private String indexName = "jsonpedia";
+
+    @Parameter(
+            names = {"--threads"},
+            description = "number of requests handled concurrently"
+    )
+    private int threads = Runtime.getRuntime().availableProcessors();
+
+    @Parameter(
+            names = {"--refresh-interval"},
+            description = "milliseconds between two checks for new commits of the index, 0 to never check"
+    )
+    private long refreshInterval = 1000;
+
+    public int run(String[] args) {
+        final JCommander commander = new JCommander(this);
+        try {
+            commander.parse(args);
+            if(!indexPath.isDirectory()){
+                throw new ParameterException(String.format("%s is not an index directory", indexPath));
+            }
+            final Directory dir = FSDirectory.open(indexPath);
+            final SearcherManager searchers = new SearcherManager(dir, null);
+            final LuceneSearchServer server =
+                    new LuceneSearchServer(searchers, LuceneIndexCreator.createAnalyzer(), indexName);
+            server.setRefreshInterval(refreshInterval);
+            server.start(new InetSocketAddress(host, port), threads);
+            Runtime.getRuntime().addShutdownHook(new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        server.close();
+                        searchers.close();
+                        dir.close();
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                    }
+                }
+            });
+            System.out.println(String.format("serving %s as [%s] on %s:%d", indexPath, indexName, host, port));
+            return 0;
+        } catch(IOException ie) {
+            System.err.println(ie.getMessage());
+            commander.usage();
+            return 1;
+        } catch(ParameterException px) {
+            System.err.println(px.getMessage());
+            commander.usage();
+            return 2;
+        }
+    }
+
+    /**
+     * The server threads keep running once started, until the process is stopped.
+     */
+    public static void main(String[] args){
+        final int exitCode = new LuceneSearchServerMain().run(args);
+        if(exitCode != 0){
+            System.exit(exitCode);
+        }
+    }
+}
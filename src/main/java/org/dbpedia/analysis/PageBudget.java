@@ -0,0 +1,174 @@
+package org.dbpedia.analysis;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * <strong>PageBudget</strong> bounds the size and the enrichment time of a page. Pages over budget are not indexed,
+ * they are deferred: recorded to a file, one <code>page_id, reason, chars, millis, title</code> tab separated line
+ * per page, so that a later pass can process them alone, see {@link #readPageIds(File)}.
+ * A page over the time budget is abandoned as soon as the budget is spent, see {@link EnrichingPageProcessor}.
+ * Abandoned enrichments keep running, so only a few of them may run at once: past that, a worker waits for its
+ * page until one of them is done.
+ * The budget is shared by all the workers.
+ */
+public class PageBudget implements Closeable {
+    public static final String SIZE = "size";
+    public static final String TIME = "time";
+
+    private final int maxPageChars;
+    private final long maxPageMillis;
+    private final int maxAbandoned;
+    private final File file;
+    private final Writer writer;
+    private long deferredPages = 0;
+    private long abandonedPages = 0;
+    private int runningAbandoned = 0;
+
+    /**
+     * At most one abandoned enrichment per processor runs at once.
+     * @param maxPageChars pages with a longer wikitext are not enriched, 0 for no limit
+     * @param maxPageMillis pages whose enrichment takes longer are abandoned, 0 for no limit
+     * @param file file where the deferred pages are appended
+     */
+    public PageBudget(int maxPageChars, long maxPageMillis, File file) throws IOException {
+        this(maxPageChars, maxPageMillis, Runtime.getRuntime().availableProcessors(), file);
+    }
+
+    /**
+     * @param maxAbandoned number of abandoned enrichments that may still be running at once
+     */
+    public PageBudget(int maxPageChars, long maxPageMillis, int maxAbandoned, File file) throws IOException {
+        this.maxPageChars = maxPageChars;
+        this.maxPageMillis = maxPageMillis;
+        this.maxAbandoned = maxAbandoned;
+        this.file = file;
+        this.writer = new BufferedWriter(
+                new OutputStreamWriter(new FileOutputStream(file, true), StandardCharsets.UTF_8)
+        );
+    }
+
+    /**
+     * @param chars length of the wikitext of a page
+     * @return true if the page is too big to be enriched
+     */
+    public boolean isTooBig(int chars) {
+        return maxPageChars > 0 && chars > maxPageChars;
+    }
+
+    /**
+     * @return time a page may take to be enriched, 0 for no limit
+     */
+    public long getMaxPageMillis() {
+        return maxPageMillis;
+    }
+
+    /**
+     * Count a page whose enrichment is left running on its thread, if there is room for one more.
+     * @return false if too many abandoned enrichments are still running, the page must be waited for
+     */
+    public synchronized boolean abandon() {
+        if(runningAbandoned >= maxAbandoned){
+            return false;
+        }
+        runningAbandoned++;
+        abandonedPages++;
+        return true;
+    }
+
+    /**
+     * Take back {@link #abandon()}, the page got done before it was abandoned.
+     */
+    public synchronized void keep() {
+        runningAbandoned--;
+        abandonedPages--;
+    }
+
+    /**
+     * Called once an abandoned enrichment is done.
+     */
+    public synchronized void abandonedDone() {
+        runningAbandoned--;
+    }
+
+    public synchronized int getRunningAbandoned() {
+        return runningAbandoned;
+    }
+
+    /**
+     * Record a page over budget, the line is flushed right away so that a crash does not lose it.
+     * @param reason {@link #SIZE} or {@link #TIME}
+     */
+    public synchronized void defer(int pageId, String title, String reason, int chars, long millis)
+            throws IOException {
+        writer.write(String.format(
+                "%d\t%s\t%d\t%d\t%s\n", pageId, reason, chars, millis, title.replace('\t', ' ').replace('\n', ' ')
+        ));
+        writer.flush();
+        deferredPages++;
+    }
+
+    public synchronized long getDeferredPages() {
+        return deferredPages;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        writer.close();
+    }
+
+    /**
+     * Read the ids of the pages listed in a file written by a budget, or in any file holding a page id at the start
+     * of every line.
+     * @return the sorted page ids, without duplicates
+     */
+    public static int[] readPageIds(File file) throws IOException {
+        int[] ids = new int[1024];
+        int size = 0;
+        try (BufferedReader reader = new BufferedReader(
+                new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8))) {
+            String line;
+            while((line = reader.readLine()) != null){
+                final int tab = line.indexOf('\t');
+                final String id = (tab < 0 ? line : line.substring(0, tab)).trim();
+                if(id.isEmpty()){
+                    continue;
+                }
+                if(size == ids.length){
+                    ids = Arrays.copyOf(ids, size * 2);
+                }
+                try {
+                    ids[size++] = Integer.parseInt(id);
+                } catch (NumberFormatException e) {
+                    throw new IOException(String.format("%s: %s is not a page id", file, id), e);
+                }
+            }
+        }
+        Arrays.sort(ids, 0, size);
+        int unique = 0;
+        for(int i = 0; i < size; i++){
+            if(unique == 0 || ids[i] != ids[unique - 1]){
+                ids[unique++] = ids[i];
+            }
+        }
+        return Arrays.copyOf(ids, unique);
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format(
+                "page budget: %d pages deferred to %s, %d enrichments abandoned over time, %d of them still running",
+                deferredPages, file, abandonedPages, runningAbandoned
+        );
+    }
+}
@@ -0,0 +1,58 @@
+package org.dbpedia.analysis;
+
+import org.codehaus.jackson.JsonFactory;
+import org.codehaus.jackson.JsonGenerator;
+import org.codehaus.jackson.JsonParser;
+import org.codehaus.jackson.smile.SmileFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * <strong>PageContentCodec</strong> packs the enriched json of a page the way the enriched dump records are
+ * written: smile without back references, deflated. It is several times smaller than the json, and is decoded as a
+ * stream, the page never needs to be inflated as a whole.
+ * A codec reuses its buffers, it must only be used by one thread.
+ */
+public class PageContentCodec implements Closeable {
+    private static final JsonFactory JSON = new JsonFactory();
+    private static final SmileFactory SMILE = EnrichedDumpWriter.createSmileFactory();
+
+    private final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+    private final ByteArrayOutputStream packed = new ByteArrayOutputStream(1 << 16);
+
+    /**
+     * @param json the enriched page as json, see {@link EnrichedPage#getContent()}
+     * @return the page as deflated smile
+     */
+    public byte[] encode(byte[] json) throws IOException {
+        packed.reset();
+        deflater.reset();
+        final DeflaterOutputStream deflated = new DeflaterOutputStream(packed, deflater, 1 << 13);
+        final JsonGenerator generator = SMILE.createJsonGenerator(deflated);
+        final JsonParser parser = JSON.createJsonParser(json);
+        parser.nextToken();
+        generator.copyCurrentStructure(parser);
+        parser.close();
+        generator.close();
+        return packed.toByteArray();
+    }
+
+    /**
+     * @param packed a page encoded by {@link #encode(byte[])}
+     * @return parser over the page, inflating it as it goes
+     */
+    public static JsonParser decode(byte[] packed) throws IOException {
+        return SMILE.createJsonParser(new InflaterInputStream(new ByteArrayInputStream(packed)));
+    }
+
+    @Override
+    public void close() {
+        deflater.end();
+    }
+}
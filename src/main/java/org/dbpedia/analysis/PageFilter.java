@@ -0,0 +1,216 @@
+package org.dbpedia.analysis;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.EnumMap;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+
+/**
+ * <strong>PageFilter</strong> skips the pages that would not produce useful sections before they are enriched:
+ * pages out of the wanted namespaces, redirects, disambiguation pages, and pages whose title does not match the
+ * include and exclude patterns. It only looks at the title and scans the wikitext, so it costs next to nothing
+ * compared to the enrichment. The filter is shared by all the workers, which count the pages it skips.
+ */
+public class PageFilter {
+    /**
+     * Why a page is skipped.
+     */
+    public enum Reason {
+        NAMESPACE, REDIRECT, DISAMBIGUATION, TITLE
+    }
+
+    /**
+     * Name of the article namespace, which has no title prefix.
+     */
+    public static final String MAIN_NAMESPACE = "main";
+
+    /**
+     * The namespaces of the english wikipedia and their aliases, lowercase. The dump does not tell the namespace of
+     * a page apart from its title, <code>Namespace:Title</code>.
+     */
+    private static final Set<String> NAMESPACES = new HashSet<>(Arrays.asList(
+            "talk", "user", "user talk", "wikipedia", "wikipedia talk", "wp", "project", "file", "file talk", "image",
+            "mediawiki", "mediawiki talk", "template", "template talk", "help", "help talk", "category",
+            "category talk", "portal", "portal talk", "book", "book talk", "draft", "draft talk",
+            "education program", "education program talk", "timedtext", "timedtext talk", "module", "module talk",
+            "gadget", "gadget talk", "gadget definition", "gadget definition talk", "topic", "special", "media"
+    ));
+
+    private static final String REDIRECT = "#redirect";
+
+    /**
+     * Templates marking a disambiguation page, lowercase.
+     */
+    private static final Set<String> DISAMBIGUATION_TEMPLATES = new HashSet<>(Arrays.asList(
+            "disambiguation", "disambig", "disamb", "dab", "dis", "hndis", "geodis", "numberdis", "mathdab",
+            "schooldis", "hospitaldis", "roaddis", "airport disambiguation", "call sign disambiguation",
+            "letter-number combination disambiguation"
+    ));
+
+    private static final String DISAMBIGUATION_TITLE = "(disambiguation)";
+
+    private final Set<String> namespaces;
+    private boolean skipRedirects = true;
+    private boolean skipDisambiguations = true;
+    private Pattern includeTitles;
+    private Pattern excludeTitles;
+
+    private final Map<Reason, AtomicLong> skipped = new EnumMap<>(Reason.class);
+
+    /**
+     * @param namespaces namespaces of the pages to keep, {@link #MAIN_NAMESPACE} for the articles; null to keep all
+     */
+    public PageFilter(Collection<String> namespaces) {
+        if(namespaces == null){
+            this.namespaces = null;
+        } else {
+            this.namespaces = new HashSet<>();
+            for(String namespace: namespaces){
+                this.namespaces.add(namespace.trim().replace('_', ' ').toLowerCase(Locale.ROOT));
+            }
+        }
+        for(Reason reason: Reason.values()){
+            skipped.put(reason, new AtomicLong());
+        }
+    }
+
+    /**
+     * A filter keeping the articles only.
+     */
+    public PageFilter() {
+        this(Arrays.asList(MAIN_NAMESPACE));
+    }
+
+    public void setSkipRedirects(boolean skipRedirects) {
+        this.skipRedirects = skipRedirects;
+    }
+
+    public void setSkipDisambiguations(boolean skipDisambiguations) {
+        this.skipDisambiguations = skipDisambiguations;
+    }
+
+    /**
+     * @param includeTitles pattern the whole title of a page must match to be kept, or null
+     */
+    public void setIncludeTitles(Pattern includeTitles) {
+        this.includeTitles = includeTitles;
+    }
+
+    /**
+     * @param excludeTitles pattern the whole title of a page must not match to be kept, or null
+     */
+    public void setExcludeTitles(Pattern excludeTitles) {
+        this.excludeTitles = excludeTitles;
+    }
+
+    /**
+     * Check a page, and count it if it is skipped.
+     * @return why the page must be skipped, null if it must be processed
+     */
+    public Reason reject(String title, String content) {
+        final Reason reason = check(title, content);
+        if(reason != null){
+            skipped.get(reason).incrementAndGet();
+        }
+        return reason;
+    }
+
+    private Reason check(String title, String content) {
+        if(namespaces != null && !namespaces.contains(namespace(title))){
+            return Reason.NAMESPACE;
+        }
+        if(skipRedirects && isRedirect(content)){
+            return Reason.REDIRECT;
+        }
+        if(includeTitles != null && !includeTitles.matcher(title).matches()){
+            return Reason.TITLE;
+        }
+        if(excludeTitles != null && excludeTitles.matcher(title).matches()){
+            return Reason.TITLE;
+        }
+        if(skipDisambiguations && isDisambiguation(title, content)){
+            return Reason.DISAMBIGUATION;
+        }
+        return null;
+    }
+
+    /**
+     * @return the lowercase namespace of a title, {@link #MAIN_NAMESPACE} for an article
+     */
+    static String namespace(String title) {
+        final int colon = title.indexOf(':');
+        if(colon > 0){
+            final String prefix = title.substring(0, colon).trim().replace('_', ' ').toLowerCase(Locale.ROOT);
+            if(NAMESPACES.contains(prefix)){
+                return prefix;
+            }
+        }
+        return MAIN_NAMESPACE;
+    }
+
+    /**
+     * A redirect starts with <code>#REDIRECT</code>, in any case, after optional white space.
+     */
+    static boolean isRedirect(String content) {
+        int i = 0;
+        while(i < content.length() && Character.isWhitespace(content.charAt(i))){
+            i++;
+        }
+        return content.regionMatches(true, i, REDIRECT, 0, REDIRECT.length());
+    }
+
+    /**
+     * A disambiguation page has a <code>(disambiguation)</code> title or uses a disambiguation template.
+     */
+    static boolean isDisambiguation(String title, String content) {
+        if(title.endsWith(DISAMBIGUATION_TITLE)){
+            return true;
+        }
+        int start = content.indexOf("{{");
+        while(start >= 0){
+            int end = start + 2;
+            while(end < content.length() && content.charAt(end) != '|' && content.charAt(end) != '}'
+                    && content.charAt(end) != '{' && end - start < 64){
+                end++;
+            }
+            final String name = content.substring(start + 2, end).trim().replace('_', ' ').toLowerCase(Locale.ROOT);
+            if(DISAMBIGUATION_TEMPLATES.contains(name)){
+                return true;
+            }
+            start = content.indexOf("{{", end);
+        }
+        return false;
+    }
+
+    /**
+     * @return number of pages skipped for a reason
+     */
+    public long getSkipped(Reason reason) {
+        return skipped.get(reason).get();
+    }
+
+    /**
+     * @return number of pages skipped for any reason
+     */
+    public long getSkipped() {
+        long total = 0;
+        for(AtomicLong count: skipped.values()){
+            total += count.get();
+        }
+        return total;
+    }
+
+    @Override
+    public String toString() {
+        return String.format(
+                "page filter: %d pages skipped, %d out of namespace, %d redirects, %d disambiguations, %d by title",
+                getSkipped(), getSkipped(Reason.NAMESPACE), getSkipped(Reason.REDIRECT),
+                getSkipped(Reason.DISAMBIGUATION), getSkipped(Reason.TITLE)
+        );
+    }
+}
@@ -0,0 +1,134 @@
+package org.dbpedia.analysis;
+
+import com.beust.jcommander.Parameter;
+import com.beust.jcommander.ParameterException;
+import com.beust.jcommander.converters.BooleanConverter;
+import com.beust.jcommander.converters.FileConverter;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * The options choosing which pages an {@link EnrichingIndexCreator} processes and where, shared by the mains through
+ * <code>@ParametersDelegate</code>. Every page is enriched by the workers unless an option says otherwise.
+ */
+public class PageSelectionOptions {
+    @Parameter(
+            names = {"--heavy-page-size"},
+            description = "pages with a longer wikitext, in characters, are enriched on the --heavy-threads"
+    )
+    private int heavyPageSize = 262144;
+
+    @Parameter(
+            names = {"--heavy-threads"},
+            description = "threads enriching the heavy pages, 0 to leave them to the workers"
+    )
+    private int heavyThreads = 0;
+
+    @Parameter(
+            names = {"--max-page-size"},
+            description = "pages with a longer wikitext, in characters, are deferred instead of enriched, " +
+                    "0 for no limit"
+    )
+    private int maxPageSize = 0;
+
+    @Parameter(
+            names = {"--max-page-seconds"},
+            description = "pages taking longer to enrich are deferred instead of indexed, 0 for no limit"
+    )
+    private int maxPageSeconds = 0;
+
+    @Parameter(
+            names = {"--deferred"},
+            description = "file where the pages over --max-page-size or --max-page-seconds are recorded",
+            converter = FileConverter.class
+    )
+    private File deferredPath;
+
+    @Parameter(
+            names = {"--namespaces"},
+            description = "comma separated namespaces of the pages to index, main for the articles, " +
+                    "all for every namespace (the default)"
+    )
+    private List<String> namespaces;
+
+    @Parameter(
+            names = {"--skip-redirects"},
+            description = "do not enrich the redirect pages",
+            converter = BooleanConverter.class
+    )
+    private boolean skipRedirects = false;
+
+    @Parameter(
+            names = {"--skip-disambiguations"},
+            description = "do not enrich the disambiguation pages",
+            converter = BooleanConverter.class
+    )
+    private boolean skipDisambiguations = false;
+
+    @Parameter(
+            names = {"--include-titles"},
+            description = "regular expression the whole title of a page must match to be indexed"
+    )
+    private String includeTitles;
+
+    @Parameter(
+            names = {"--exclude-titles"},
+            description = "regular expression the whole title of a page must not match to be indexed"
+    )
+    private String excludeTitles;
+
+    /**
+     * Check the options, before anything is opened.
+     */
+    public void validate() {
+        if((maxPageSize > 0 || maxPageSeconds > 0) && deferredPath == null){
+            throw new ParameterException("--max-page-size and --max-page-seconds need a --deferred file");
+        }
+        // the title patterns
+        createFilter();
+    }
+
+    /**
+     * Set the filter, the heavy lane and the page budget of a creator up.
+     * @param enrichedInput whether the pages come from an enriched dump, they are not enriched again
+     * @return the filter, to print it once the pages are processed, or null if no option asks for one
+     */
+    public PageFilter configure(EnrichingIndexCreator<?> creator, boolean enrichedInput) throws IOException {
+        final PageFilter filter = createFilter();
+        creator.setPageFilter(filter);
+        if(!enrichedInput && heavyThreads > 0){
+            creator.setHeavyLane(new HeavyPageLane(heavyPageSize, heavyThreads, 4 * heavyThreads));
+        }
+        if(maxPageSize > 0 || maxPageSeconds > 0){
+            creator.setPageBudget(new PageBudget(maxPageSize, maxPageSeconds * 1000L, deferredPath));
+        }
+        return filter;
+    }
+
+    private PageFilter createFilter() {
+        if(namespaces == null && !skipRedirects && !skipDisambiguations
+                && includeTitles == null && excludeTitles == null){
+            return null;
+        }
+        final PageFilter filter = new PageFilter(
+                namespaces == null || namespaces.contains("all") ? null : namespaces
+        );
+        filter.setSkipRedirects(skipRedirects);
+        filter.setSkipDisambiguations(skipDisambiguations);
+        try {
+            if(includeTitles != null){
+                filter.setIncludeTitles(Pattern.compile(includeTitles));
+            }
+            if(excludeTitles != null){
+                filter.setExcludeTitles(Pattern.compile(excludeTitles));
+            }
+        } catch (PatternSyntaxException e) {
+            throw new ParameterException(e.getMessage());
+        }
+        return filter;
+    }
+}
@@ -0,0 +1,38 @@
+package org.dbpedia.analysis;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * <strong>PageSink</strong> is an index or a file the enriched pages are written to by {@link FanOutIndexCreator}.
+ * A sink is opened before the first page and closed after the last one. In between, each thread of the sink
+ * writes pages with a {@link Writer} of its own.
+ */
+public interface PageSink {
+    /**
+     * @return name of the sink in the reports
+     */
+    String getName();
+
+    void open() throws IOException;
+
+    /**
+     * @param thread number of the sink thread the writer belongs to
+     */
+    Writer createWriter(int thread) throws IOException;
+
+    /**
+     * Called once every writer has been closed.
+     * @param complete whether every page of the dump was written, an incomplete index must not be published
+     */
+    void close(boolean complete) throws IOException;
+
+    interface Writer extends Closeable {
+        /**
+         * @param contentBytes size in bytes of the page wikitext
+         * @return false if the page could not be fully written
+         */
+        boolean write(int pageId, String title, String contentHash, long contentBytes, EnrichedPage enriched)
+                throws IOException;
+    }
+}
@@ -0,0 +1,398 @@
+package org.dbpedia.analysis;
+
+import com.machinelinking.util.FileUtil;
+import org.apache.commons.compress.compressors.bzip2.BZip2CompressorInputStream;
+import org.apache.commons.io.IOUtils;
+
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <strong>ParallelBZip2InputStream</strong> decompresses a bzip2 file on several cores.
+ * A splitter thread scans the compressed bits for block and end of stream magic numbers, wraps every block
+ * into a standalone single-block bzip2 stream and hands it to a pool of decompressors.
+ * The decompressed blocks are read back in file order through a bounded ring, so at most
+ * <code>ringSize</code> blocks are held in memory. Concatenated (multistream) files are handled the same way.
+ */
+public class ParallelBZip2InputStream extends InputStream {
+    private static final long BLOCK_MAGIC = 0x314159265359L;
+    private static final long EOS_MAGIC = 0x177245385090L;
+    private static final long MAGIC_MASK = 0xFFFFFFFFFFFFL;
+
+    private static final Future<byte[]> END = done(null);
+
+    private final InputStream in;
+    private final ExecutorService decompressors;
+    private final BlockingQueue<Future<byte[]>> ring;
+    private final Thread splitter;
+
+    private final AtomicLong blocks = new AtomicLong();
+    private final AtomicLong compressedBytes = new AtomicLong();
+    private final AtomicLong decompressedBytes = new AtomicLong();
+    private final AtomicLong decompressionNanos = new AtomicLong();
+    private final IngestMetrics metrics;
+    private final long startNanos = System.nanoTime();
+
+    private byte[] current = new byte[0];
+    private int position = 0;
+    private boolean finished = false;
+
+    /**
+     * @param in the compressed input
+     * @param threads number of decompression threads
+     * @param ringSize max number of blocks decompressed ahead of the reader
+     */
+    public ParallelBZip2InputStream(InputStream in, int threads, int ringSize) {
+        this(in, threads, ringSize, null);
+    }
+
+    /**
+     * @param in the compressed input
+     * @param threads number of decompression threads
+     * @param ringSize max number of blocks decompressed ahead of the reader
+     * @param metrics every block is recorded in the decompression stage, may be null
+     */
+    public ParallelBZip2InputStream(InputStream in, int threads, int ringSize, IngestMetrics metrics) {
+        this.in = in;
+        this.metrics = metrics;
+        this.decompressors = Executors.newFixedThreadPool(threads);
+        this.ring = new ArrayBlockingQueue<>(ringSize);
+        this.splitter = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                split();
+            }
+        }, "bzip2-splitter");
+        this.splitter.setDaemon(true);
+        this.splitter.start();
+    }
+
+    /**
+     * Open a dump, bzip2 files are decompressed in parallel, anything else goes through jsonpedia.
+     * The decompression, and the number of blocks waiting to be read, are recorded in the given metrics.
+     * @param threads number of decompression threads, 0 to always decompress on the reading thread
+     * @param metrics may be null
+     */
+    public static InputStream open(File input, int threads, IngestMetrics metrics) throws IOException {
+        if(threads > 0 && input.getName().endsWith(".bz2")){
+            final ParallelBZip2InputStream is =
+                    new ParallelBZip2InputStream(new FileInputStream(input), threads, threads * 4, metrics);
+            if(metrics != null){
+                metrics.gauge("bzip2_blocks", new IngestMetrics.Gauge() {
+                    @Override
+                    public long value() {
+                        return is.ring.size();
+                    }
+                });
+            }
+            return is;
+        }
+        final InputStream is = FileUtil.openDecompressedInputStream(input);
+        return metrics == null ? is : metrics.meter(is, IngestMetrics.Stage.DECOMPRESSION);
+    }
+
+    /**
+     * Scan the compressed bytes keeping the last 64 bits in a window, a magic number may end at any of the
+     * 8 bit offsets of the byte just read. Positions are bit offsets in <code>buf</code>, which only holds
+     * the data of the block being scanned.
+     */
+    private void split() {
+        try {
+            byte[] buf = new byte[1 << 20];
+            int length = 0;
+            int scan = 0;
+            long window = 0;
+
+            boolean inHeader = true;
+            int headerPos = 0;
+            int level = 0;
+            long searchFrom = Long.MAX_VALUE;
+            long blockStart = -1;
+
+            while(true){
+                if(length == buf.length){
+                    buf = Arrays.copyOf(buf, buf.length * 2);
+                }
+                final int read = in.read(buf, length, buf.length - length);
+                if(read < 0){
+                    break;
+                }
+                length += read;
+
+                for(; scan < length; scan++){
+                    window = (window << 8) | (buf[scan] & 0xFF);
+                    if(inHeader){
+                        if(scan == headerPos + 3){
+                            level = checkHeader(buf, headerPos);
+                            inHeader = false;
+                            searchFrom = (long) (headerPos + 4) * 8;
+                        }
+                        continue;
+                    }
+
+                    for(int shift = 7; shift >= 0; shift--){
+                        final long start = (long) (scan + 1) * 8 - shift - 48;
+                        if(start < searchFrom){
+                            continue;
+                        }
+                        final long magic = (window >>> shift) & MAGIC_MASK;
+                        if(magic != BLOCK_MAGIC && magic != EOS_MAGIC){
+                            continue;
+                        }
+
+                        if(blockStart >= 0){
+                            submit(Block.toStream(buf, blockStart, start, level));
+                        }
+                        if(magic == BLOCK_MAGIC){
+                            blockStart = start;
+                            searchFrom = start + 80; // magic and block crc
+                        } else {
+                            // skip the combined crc, the next stream starts on a byte boundary
+                            blockStart = -1;
+                            searchFrom = Long.MAX_VALUE;
+                            inHeader = true;
+                            headerPos = (int) ((start + 80 + 7) >>> 3);
+                        }
+                        break;
+                    }
+
+                    // drop the bytes of the blocks already submitted
+                    final int keep = blockStart >= 0 ? (int) (blockStart >>> 3) : Math.min(headerPos, scan + 1);
+                    if(keep > buf.length / 2){
+                        System.arraycopy(buf, keep, buf, 0, length - keep);
+                        length -= keep;
+                        scan -= keep;
+                        headerPos -= keep;
+                        if(blockStart >= 0){
+                            blockStart -= (long) keep * 8;
+                        }
+                        if(searchFrom != Long.MAX_VALUE){
+                            searchFrom -= (long) keep * 8;
+                        }
+                    }
+                }
+            }
+
+            if(!inHeader || length > headerPos){
+                throw new EOFException("truncated bzip2 stream");
+            }
+            ring.put(END);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (final IOException e) {
+            try {
+                ring.put(ParallelBZip2InputStream.<byte[]>failed(e));
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * @return the block size level of the stream starting at the given byte
+     */
+    private static int checkHeader(byte[] buf, int pos) throws IOException {
+        if(buf[pos] != 'B' || buf[pos + 1] != 'Z' || buf[pos + 2] != 'h'){
+            throw new IOException("not a bzip2 stream");
+        }
+        final int level = buf[pos + 3];
+        if(level < '1' || level > '9'){
+            throw new IOException("invalid bzip2 block size");
+        }
+        return level;
+    }
+
+    private void submit(final byte[] compressed) throws InterruptedException {
+        compressedBytes.addAndGet(compressed.length);
+        blocks.incrementAndGet();
+        ring.put(decompressors.submit(new Callable<byte[]>() {
+            @Override
+            public byte[] call() throws IOException {
+                final long start = System.nanoTime();
+                final byte[] data = IOUtils.toByteArray(
+                        new BZip2CompressorInputStream(new ByteArrayInputStream(compressed))
+                );
+                decompressionNanos.addAndGet(System.nanoTime() - start);
+                decompressedBytes.addAndGet(data.length);
+                if(metrics != null){
+                    metrics.record(IngestMetrics.Stage.DECOMPRESSION, start, data.length);
+                }
+                return data;
+            }
+        }));
+    }
+
+    private boolean nextBlock() throws IOException {
+        if(finished){
+            return false;
+        }
+        try {
+            final byte[] data = ring.take().get();
+            if(data == null){
+                finished = true;
+                return false;
+            }
+            current = data;
+            position = 0;
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while waiting for a bzip2 block");
+        } catch (ExecutionException e) {
+            throw new IOException("bzip2 block " + blocks.get() + " could not be decompressed", e.getCause());
+        }
+    }
+
+    @Override
+    public int read() throws IOException {
+        while(position == current.length){
+            if(!nextBlock()){
+                return -1;
+            }
+        }
+        return current[position++] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if(len == 0){
+            return 0;
+        }
+        while(position == current.length){
+            if(!nextBlock()){
+                return -1;
+            }
+        }
+        final int n = Math.min(len, current.length - position);
+        System.arraycopy(current, position, b, off, n);
+        position += n;
+        return n;
+    }
+
+    @Override
+    public void close() throws IOException {
+        splitter.interrupt();
+        decompressors.shutdownNow();
+        in.close();
+    }
+
+    /**
+     * @return decompressed megabytes per second of wall clock time since the stream was opened
+     */
+    public double getThroughput() {
+        final double seconds = (System.nanoTime() - startNanos) / 1e9;
+        return decompressedBytes.get() / 1048576.0 / seconds;
+    }
+
+    @Override
+    public String toString() {
+        final double seconds = (System.nanoTime() - startNanos) / 1e9;
+        return String.format(
+                "bzip2: %d blocks, %.1f MB -> %.1f MB in %.1fs (%.1f MB/s, %.1f cpu seconds)",
+                blocks.get(),
+                compressedBytes.get() / 1048576.0,
+                decompressedBytes.get() / 1048576.0,
+                seconds,
+                getThroughput(),
+                decompressionNanos.get() / 1e9
+        );
+    }
+
+    private static <T> Future<T> done(final T value) {
+        final FutureTask<T> f = new FutureTask<>(new Callable<T>() {
+            @Override
+            public T call() {
+                return value;
+            }
+        });
+        f.run();
+        return f;
+    }
+
+    private static <T> Future<T> failed(final IOException e) {
+        final FutureTask<T> f = new FutureTask<>(new Callable<T>() {
+            @Override
+            public T call() throws IOException {
+                throw e;
+            }
+        });
+        f.run();
+        return f;
+    }
+
+    /**
+     * A single compressed block rebuilt as a standalone bzip2 stream.
+     */
+    private static final class Block {
+        private final byte[] data;
+        private long bits = 0;
+
+        private Block(int size) {
+            data = new byte[size];
+        }
+
+        /**
+         * Copy the bits of a block (magic number and crc included) after a stream header and close it with an
+         * end of stream marker, the combined crc of a single block stream is its block crc.
+         */
+        static byte[] toStream(byte[] src, long from, long to, int level) {
+            final Block b = new Block((int) ((to - from + 32 + 80 + 7) >>> 3));
+            b.writeBits(('B' << 24) | ('Z' << 16) | ('h' << 8) | level, 32);
+
+            // the header keeps the output byte aligned, so whole bytes can be copied with a shift
+            long p = from;
+            for(; p + 8 <= to; p += 8){
+                b.data[(int) (b.bits >>> 3)] = (byte) byteAt(src, p);
+                b.bits += 8;
+            }
+            for(; p < to; p++){
+                b.writeBit((src[(int) (p >>> 3)] >>> (7 - (p & 7))) & 1);
+            }
+
+            long crc = 0;
+            for(int i = 0; i < 4; i++){
+                crc = (crc << 8) | byteAt(src, from + 48 + i * 8);
+            }
+            b.writeBits(EOS_MAGIC, 48);
+            b.writeBits(crc, 32);
+            return b.data;
+        }
+
+        private static int byteAt(byte[] src, long bit) {
+            final int i = (int) (bit >>> 3);
+            final int k = (int) (bit & 7);
+            if(k == 0){
+                return src[i] & 0xFF;
+            }
+            return ((src[i] << k) | ((src[i + 1] & 0xFF) >>> (8 - k))) & 0xFF;
+        }
+
+        private void writeBit(int bit) {
+            if(bit != 0){
+                data[(int) (bits >>> 3)] |= (byte) (0x80 >>> (bits & 7));
+            }
+            bits++;
+        }
+
+        private void writeBits(long value, int n) {
+            for(int i = n - 1; i >= 0; i--){
+                writeBit((int) (value >>> i) & 1);
+            }
+        }
+    }
+}
@@ -0,0 +1,57 @@
+package org.dbpedia.analysis;
+
+import com.machinelinking.wikimedia.WikiDumpMultiThreadProcessor;
+
+/**
+ * <strong>ProcessorSink</strong> writes the pages to the index of an index creator, e.g. an
+ * {@link ElasticSearchIndexCreator} or a {@link LuceneIndexCreator}. Every sink thread gets a processor of its own
+ * from the creator, as if it was one of the workers of a dump the creator processes itself.
+ */
+public class ProcessorSink<P extends EnrichingPageProcessor> implements PageSink {
+    private final String name;
+    private final WikiDumpMultiThreadProcessor<P> creator;
+
+    /**
+     * @param creator configured creator, it must not process a dump itself
+     */
+    public ProcessorSink(String name, WikiDumpMultiThreadProcessor<P> creator) {
+        this.name = name;
+        this.creator = creator;
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public void open() {
+        creator.initProcess();
+    }
+
+    @Override
+    public Writer createWriter(int thread) {
+        final P processor = creator.initProcessor(thread);
+        return new Writer() {
+            @Override
+            public boolean write(int pageId, String title, String contentHash, long contentBytes,
+                                 EnrichedPage enriched) {
+                return processor.processEnrichedPage(pageId, title, contentHash, contentBytes, enriched);
+            }
+
+            @Override
+            public void close() {
+                creator.finalizeProcessor(processor);
+            }
+        };
+    }
+
+    @Override
+    public void close(boolean complete) {
+        creator.finalizeProcess(null);
+        if(creator instanceof ElasticSearchIndexCreator){
+            // moves the alias to the new index only if complete
+            ((ElasticSearchIndexCreator) creator).finish(complete);
+        }
+    }
+}
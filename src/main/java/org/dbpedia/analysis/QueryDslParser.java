@@ -0,0 +1,190 @@
+package org.dbpedia.analysis;
+
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.BooleanClause;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.MatchAllDocsQuery;
+import org.apache.lucene.search.NumericRangeQuery;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.search.TermRangeQuery;
+import org.apache.lucene.util.QueryBuilder;
+import org.codehaus.jackson.JsonNode;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * <strong>QueryDslParser</strong> turns the subset of the elasticsearch query dsl used by the extractors into
+ * lucene queries over the documents written by {@link LuceneIndexPageProcessor}.
+ * Supported queries are <code>match_all</code>, <code>term</code>, <code>terms</code>, <code>match</code>,
+ * <code>range</code> and <code>bool</code>, anything else is rejected with an {@link IllegalArgumentException}.
+ * As in elasticsearch, term queries are not analyzed and match queries go through the analyzer of their field.
+ * Ranges over {@link LuceneIndexPageProcessor#NUMERIC_FIELDS} compare numbers, other ranges compare terms.
+ */
+public class QueryDslParser {
+    private static final Set<String> NUMERIC_FIELDS =
+            new HashSet<>(Arrays.asList(LuceneIndexPageProcessor.NUMERIC_FIELDS));
+
+    private final QueryBuilder builder;
+
+    /**
+     * @param analyzer analyzer the index was written with
+     */
+    public QueryDslParser(Analyzer analyzer) {
+        this.builder = new QueryBuilder(analyzer);
+    }
+
+    /**
+     * @param query the value of the <code>query</code> field of a search body, null or missing for all documents
+     */
+    public Query parse(JsonNode query) {
+        if(query == null || query.isMissingNode() || query.isNull()){
+            return new MatchAllDocsQuery();
+        }
+        final Map.Entry<String, JsonNode> clause = single(query, "query");
+        switch (clause.getKey()) {
+            case "match_all":
+                return new MatchAllDocsQuery();
+            case "term":
+                return term(clause.getValue());
+            case "terms":
+                return terms(clause.getValue());
+            case "match":
+                return match(clause.getValue());
+            case "range":
+                return range(clause.getValue());
+            case "bool":
+                return bool(clause.getValue());
+            default:
+                throw new IllegalArgumentException(String.format("unsupported query [%s]", clause.getKey()));
+        }
+    }
+
+    /**
+     * @return the only field of an object, e.g. the query type or the field a term query is about
+     */
+    private static Map.Entry<String, JsonNode> single(JsonNode node, String what) {
+        if(!node.isObject() || node.size() != 1){
+            throw new IllegalArgumentException(String.format("[%s] must be an object with a single field", what));
+        }
+        return node.getFields().next();
+    }
+
+    /**
+     * Both <code>{"field": "value"}</code> and <code>{"field": {"value": "value"}}</code> are accepted.
+     */
+    private Query term(JsonNode node) {
+        final Map.Entry<String, JsonNode> field = single(node, "term");
+        final JsonNode value = field.getValue().isObject() ? field.getValue().path("value") : field.getValue();
+        if(!value.isValueNode()){
+            throw new IllegalArgumentException(String.format("[term] on [%s] needs a value", field.getKey()));
+        }
+        return new TermQuery(new Term(field.getKey(), value.asText()));
+    }
+
+    private Query terms(JsonNode node) {
+        final Map.Entry<String, JsonNode> field = single(node, "terms");
+        final BooleanQuery query = new BooleanQuery();
+        for(JsonNode value: field.getValue()){
+            query.add(new TermQuery(new Term(field.getKey(), value.asText())), BooleanClause.Occur.SHOULD);
+        }
+        return query;
+    }
+
+    /**
+     * Both <code>{"field": "text"}</code> and <code>{"field": {"query": "text", "operator": "and"}}</code>
+     * are accepted, text without any token matches no document.
+     */
+    private Query match(JsonNode node) {
+        final Map.Entry<String, JsonNode> field = single(node, "match");
+        String text;
+        BooleanClause.Occur occur = BooleanClause.Occur.SHOULD;
+        if(field.getValue().isObject()){
+            text = field.getValue().path("query").asText();
+            if(field.getValue().path("operator").asText().equalsIgnoreCase("and")){
+                occur = BooleanClause.Occur.MUST;
+            }
+        } else {
+            text = field.getValue().asText();
+        }
+        final Query query = builder.createBooleanQuery(field.getKey(), text, occur);
+        return query == null ? new BooleanQuery() : query;
+    }
+
+    /**
+     * <code>gte</code>, <code>gt</code>, <code>lte</code> and <code>lt</code> bounds are accepted, a missing bound
+     * leaves the range open.
+     */
+    private Query range(JsonNode node) {
+        final Map.Entry<String, JsonNode> field = single(node, "range");
+        final JsonNode bounds = field.getValue();
+        final JsonNode lower = bounds.has("gte") ? bounds.get("gte") : bounds.get("gt");
+        final JsonNode upper = bounds.has("lte") ? bounds.get("lte") : bounds.get("lt");
+        final boolean includeLower = !bounds.has("gt") || bounds.has("gte");
+        final boolean includeUpper = !bounds.has("lt") || bounds.has("lte");
+        if(NUMERIC_FIELDS.contains(field.getKey())){
+            return NumericRangeQuery.newIntRange(
+                    field.getKey() + LuceneIndexPageProcessor.NUMERIC_SUFFIX,
+                    lower == null ? null : lower.asInt(), upper == null ? null : upper.asInt(),
+                    includeLower, includeUpper
+            );
+        }
+        return TermRangeQuery.newStringRange(
+                field.getKey(), lower == null ? null : lower.asText(), upper == null ? null : upper.asText(),
+                includeLower, includeUpper
+        );
+    }
+
+    private Query bool(JsonNode node) {
+        final BooleanQuery query = new BooleanQuery();
+        boolean positive = false;
+        final Iterator<Map.Entry<String, JsonNode>> fields = node.getFields();
+        while(fields.hasNext()){
+            final Map.Entry<String, JsonNode> field = fields.next();
+            switch (field.getKey()) {
+                case "must":
+                    positive |= addClauses(query, field.getValue(), BooleanClause.Occur.MUST);
+                    break;
+                case "should":
+                    positive |= addClauses(query, field.getValue(), BooleanClause.Occur.SHOULD);
+                    break;
+                case "must_not":
+                    addClauses(query, field.getValue(), BooleanClause.Occur.MUST_NOT);
+                    break;
+                case "minimum_should_match":
+                    query.setMinimumNumberShouldMatch(field.getValue().asInt());
+                    break;
+                case "boost":
+                    query.setBoost((float) field.getValue().asDouble());
+                    break;
+                default:
+                    throw new IllegalArgumentException(String.format("unsupported [bool] field [%s]", field.getKey()));
+            }
+        }
+        // a lucene boolean query with only prohibited clauses matches nothing, in elasticsearch it matches the rest
+        if(!positive){
+            query.add(new MatchAllDocsQuery(), BooleanClause.Occur.MUST);
+        }
+        return query;
+    }
+
+    /**
+     * A clause is either a single query or an array of queries.
+     * @return true if at least one clause was added
+     */
+    private boolean addClauses(BooleanQuery query, JsonNode clauses, BooleanClause.Occur occur) {
+        if(clauses.isArray()){
+            for(JsonNode clause: clauses){
+                query.add(parse(clause), occur);
+            }
+            return clauses.size() > 0;
+        }
+        query.add(parse(clauses), occur);
+        return true;
+    }
+}
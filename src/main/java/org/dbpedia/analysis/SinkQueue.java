@@ -0,0 +1,173 @@
+package org.dbpedia.analysis;
+
+import java.io.IOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <strong>SinkQueue</strong> feeds a {@link PageSink} from a bounded queue drained by threads of its own, so that
+ * the workers only wait for a sink once its queue is full. The time they spend waiting is the backpressure of the
+ * sink, it is reported along with its throughput.
+ */
+public class SinkQueue {
+    /**
+     * Tells a sink thread that no page will follow.
+     */
+    private static final Page END = new Page(-1, null, null, 0, null);
+
+    private final PageSink sink;
+    private final BlockingQueue<Page> queue;
+    private final Thread[] threads;
+    private final PageSink.Writer[] writers;
+
+    private final AtomicLong writtenPages = new AtomicLong();
+    private final AtomicLong failedPages = new AtomicLong();
+    private final AtomicLong fullWaits = new AtomicLong();
+    private final AtomicLong fullNanos = new AtomicLong();
+    private long startNanos;
+    private long endNanos;
+
+    /**
+     * An enriched page waiting to be written.
+     */
+    static class Page {
+        private final int pageId;
+        private final String title;
+        private final String contentHash;
+        private final long contentBytes;
+        private final EnrichedPage enriched;
+
+        Page(int pageId, String title, String contentHash, long contentBytes, EnrichedPage enriched) {
+            this.pageId = pageId;
+            this.title = title;
+            this.contentHash = contentHash;
+            this.contentBytes = contentBytes;
+            this.enriched = enriched;
+        }
+    }
+
+    /**
+     * @param threads number of threads writing to the sink
+     * @param capacity number of pages the queue holds before the workers wait
+     */
+    public SinkQueue(PageSink sink, int threads, int capacity) {
+        this.sink = sink;
+        this.queue = new ArrayBlockingQueue<>(capacity);
+        this.threads = new Thread[threads];
+        this.writers = new PageSink.Writer[threads];
+    }
+
+    public String getName() {
+        return sink.getName();
+    }
+
+    /**
+     * @return number of pages waiting in the queue
+     */
+    public int getDepth() {
+        return queue.size();
+    }
+
+    /**
+     * Open the sink and start its threads, the writers are created first so that a sink that cannot be written
+     * fails before any page is queued.
+     */
+    public void start() throws IOException {
+        sink.open();
+        for(int i = 0; i < threads.length; i++){
+            writers[i] = sink.createWriter(i);
+        }
+        startNanos = System.nanoTime();
+        for(int i = 0; i < threads.length; i++){
+            final PageSink.Writer writer = writers[i];
+            threads[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    drain(writer);
+                }
+            }, String.format("sink-%s-%d", sink.getName(), i));
+            threads[i].start();
+        }
+    }
+
+    /**
+     * Queue a page, waits while the queue is full.
+     */
+    public void put(int pageId, String title, String contentHash, long contentBytes, EnrichedPage enriched)
+            throws InterruptedException {
+        final Page page = new Page(pageId, title, contentHash, contentBytes, enriched);
+        if(!queue.offer(page)){
+            final long start = System.nanoTime();
+            queue.put(page);
+            fullWaits.incrementAndGet();
+            fullNanos.addAndGet(System.nanoTime() - start);
+        }
+    }
+
+    private void drain(PageSink.Writer writer) {
+        try {
+            Page page;
+            while((page = queue.take()) != END){
+                try {
+                    if(writer.write(page.pageId, page.title, page.contentHash, page.contentBytes, page.enriched)){
+                        writtenPages.incrementAndGet();
+                    } else {
+                        failedPages.incrementAndGet();
+                    }
+                } catch (IOException | RuntimeException e) {
+                    System.err.println(String.format("%s sink: cannot write %s", sink.getName(), page.title));
+                    e.printStackTrace();
+                    failedPages.incrementAndGet();
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Wait for the queued pages to be written, then close the writers and the sink.
+     * Must be called once no more pages are queued.
+     * @param complete whether every page of the dump was queued
+     */
+    public void finish(boolean complete) throws IOException, InterruptedException {
+        for(int i = 0; i < threads.length; i++){
+            queue.put(END);
+        }
+        for(Thread thread: threads){
+            thread.join();
+        }
+        endNanos = System.nanoTime();
+        for(PageSink.Writer writer: writers){
+            writer.close();
+        }
+        sink.close(complete);
+    }
+
+    public long getWrittenPages() {
+        return writtenPages.get();
+    }
+
+    public long getFailedPages() {
+        return failedPages.get();
+    }
+
+    /**
+     * @return time the workers spent waiting for room in the queue, in milliseconds
+     */
+    public long getFullMillis() {
+        return fullNanos.get() / 1000000;
+    }
+
+    @Override
+    public String toString() {
+        final long end = endNanos > 0 ? endNanos : System.nanoTime();
+        final double seconds = Math.max(end - startNanos, 1) / 1e9;
+        return String.format(
+                "%s sink: %d pages (%.1f/s), %d failed, %d threads, queue full %d times for %.1fs",
+                sink.getName(), writtenPages.get(), writtenPages.get() / seconds, failedPages.get(),
+                threads.length, fullWaits.get(), fullNanos.get() / 1e9
+        );
+    }
+}
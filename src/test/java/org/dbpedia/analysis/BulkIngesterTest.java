@@ -0,0 +1,326 @@
+package org.dbpedia.analysis;
+
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.bulk.BulkItemResponse;
+import org.elasticsearch.action.bulk.BulkRequest;
+import org.elasticsearch.action.bulk.BulkResponse;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.client.internal.InternalClient;
+import org.elasticsearch.common.io.stream.BytesStreamOutput;
+import org.elasticsearch.common.settings.ImmutableSettings;
+import org.elasticsearch.common.util.concurrent.EsRejectedExecutionException;
+import org.elasticsearch.node.Node;
+import org.elasticsearch.node.NodeBuilder;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * {@link BulkIngester} against a local node running in the JVM.
+ */
+public class BulkIngesterTest {
+    private static final String index = "bulk-ingester-test";
+    private static final String type = "page";
+
+    private static File dataDir;
+    private static Node node;
+    private static Client client;
+
+    private BulkIngester ingester;
+
+    @BeforeClass
+    public static void startNode() throws IOException {
+        dataDir = Files.createTempDirectory("bulk-ingester-test").toFile();
+        node = NodeBuilder.nodeBuilder()
+                .local(true)
+                .clusterName("bulk-ingester-test-" + System.nanoTime())
+                .settings(ImmutableSettings.settingsBuilder()
+                        .put("path.data", dataDir.getPath())
+                        .put("http.enabled", false)
+                        .put("index.number_of_shards", 1)
+                        .put("index.number_of_replicas", 0))
+                .node();
+        client = node.client();
+    }
+
+    @AfterClass
+    public static void stopNode() {
+        node.close();
+        delete(dataDir);
+    }
+
+    @Before
+    public void createIndex() {
+        client.admin().indices().prepareCreate(index).get();
+        client.admin().cluster().prepareHealth(index).setWaitForGreenStatus().get();
+    }
+
+    @After
+    public void deleteIndex() throws InterruptedException {
+        if(ingester != null){
+            ingester.close();
+            ingester = null;
+        }
+        client.admin().indices().prepareDelete(index).get();
+    }
+
+    @Test
+    public void sendsABulkEveryBulkActionsDocuments() throws Exception {
+        ingester = new BulkIngester(client, 10, 100, 3600, 1, 3);
+        add(ingester, 25, "doc");
+        awaitIndexed(20);
+        Thread.sleep(200);
+        assertEquals(20, ingester.getIndexedItems());
+
+        ingester.flush();
+        assertEquals(25, ingester.getIndexedItems());
+        assertEquals(25, count());
+    }
+
+    @Test
+    public void sendsABulkOnceItReachesBulkSize() throws Exception {
+        ingester = new BulkIngester(client, 10000, 1, 3600, 1, 3);
+        final char[] text = new char[64 * 1024];
+        Arrays.fill(text, 'x');
+        for(int i = 0; i < 20; i++){
+            ingester.add(client.prepareIndex(index, type, "doc" + i).setSource("text", new String(text)).request());
+        }
+        awaitIndexed(1);
+        Thread.sleep(200);
+        assertTrue(ingester.getIndexedItems() < 20);
+
+        ingester.flush();
+        assertEquals(20, ingester.getIndexedItems());
+        assertEquals(20, count());
+    }
+
+    @Test
+    public void flushSendsAndWaitsForTheQueuedDocuments() throws Exception {
+        ingester = new BulkIngester(client, 1000, 100, 3600, 4, 3);
+        add(ingester, 5, "doc");
+        Thread.sleep(200);
+        assertEquals(0, ingester.getIndexedItems());
+
+        ingester.flush();
+        assertEquals(5, ingester.getIndexedItems());
+        assertEquals(0, ingester.getPending());
+        assertEquals(5, count());
+    }
+
+    @Test(timeout = 30000)
+    public void flushDoesNotWaitForDocumentsAddedMeanwhile() throws Exception {
+        final CountDownLatch beforeSent = new CountDownLatch(1);
+        final CountDownLatch meanwhileSent = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        // the documents added before the flush are only answered once the ones added meanwhile are in flight,
+        // and those are held until the flush is over
+        final Client holding = holding(holding(client, "meanwhile", meanwhileSent, release), "before", beforeSent,
+                meanwhileSent);
+        ingester = new BulkIngester(holding, 100, 100, 3600, 2, 3);
+        add(ingester, 50, "before");
+        final Thread worker = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    beforeSent.await();
+                    add(ingester, 100, "meanwhile");
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        worker.start();
+        try {
+            ingester.flush();
+            assertEquals(50, ingester.getIndexedItems());
+        } finally {
+            release.countDown();
+            worker.join();
+        }
+    }
+
+    @Test
+    public void retriesRejectedItems() throws Exception {
+        ingester = new BulkIngester(rejecting(client, "doc3", 2, false), 10, 100, 3600, 1, 3);
+        add(ingester, 10, "doc");
+        ingester.flush();
+
+        assertEquals(10, ingester.getIndexedItems());
+        assertEquals(2, ingester.getRetriedItems());
+        assertEquals(0, ingester.getFailedItems());
+        assertEquals(10, count());
+    }
+
+    @Test
+    public void retriesRejectedBulks() throws Exception {
+        ingester = new BulkIngester(rejecting(client, null, 1, true), 10, 100, 3600, 1, 3);
+        add(ingester, 10, "doc");
+        ingester.flush();
+
+        assertEquals(10, ingester.getIndexedItems());
+        assertEquals(10, ingester.getRetriedItems());
+        assertEquals(10, count());
+    }
+
+    @Test
+    public void failsItemsRejectedMoreThanMaxRetries() throws Exception {
+        ingester = new BulkIngester(rejecting(client, "doc3", Integer.MAX_VALUE, false), 10, 100, 3600, 1, 2);
+        add(ingester, 10, "doc");
+        ingester.flush();
+
+        assertEquals(9, ingester.getIndexedItems());
+        assertEquals(2, ingester.getRetriedItems());
+        assertEquals(1, ingester.getFailedItems());
+    }
+
+    private static void add(BulkIngester ingester, int documents, String idPrefix) {
+        for(int i = 0; i < documents; i++){
+            ingester.add(client.prepareIndex(index, type, idPrefix + i).setSource("title", "Page " + i).request());
+        }
+    }
+
+    /**
+     * Wait for at least a number of documents to be indexed without flushing.
+     */
+    private void awaitIndexed(long items) throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + 10000;
+        while(ingester.getIndexedItems() < items && System.currentTimeMillis() < deadline){
+            Thread.sleep(10);
+        }
+        assertTrue(ingester.getIndexedItems() >= items);
+    }
+
+    private static long count() {
+        client.admin().indices().prepareRefresh(index).get();
+        return client.prepareCount(index).get().getCount();
+    }
+
+    /**
+     * A client answering the first bulks as a busy cluster would. The bulk processor needs an internal client.
+     * The bulks are sent serialized, as by a transport client: the local node sets the version of the requests
+     * it indexes, which would make the retries conflict.
+     * @param id document rejected in the bulk responses, ignored when the whole bulk is rejected
+     * @param rejections number of bulks to reject
+     * @param wholeBulk fail the bulk request instead of one of its items
+     */
+    private static Client rejecting(final Client client, final String id, int rejections, final boolean wholeBulk) {
+        final AtomicInteger left = new AtomicInteger(rejections);
+        return (Client) Proxy.newProxyInstance(Client.class.getClassLoader(), new Class[]{InternalClient.class},
+                new InvocationHandler() {
+                    @Override
+                    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                        if(method.getName().equals("bulk") && args.length == 2){
+                            @SuppressWarnings("unchecked")
+                            final ActionListener<BulkResponse> listener = (ActionListener<BulkResponse>) args[1];
+                            if(wholeBulk && left.getAndDecrement() > 0){
+                                listener.onFailure(new EsRejectedExecutionException("rejected execution on bulk"));
+                                return null;
+                            }
+                            args[0] = copy((BulkRequest) args[0]);
+                            args[1] = new ActionListener<BulkResponse>() {
+                                @Override
+                                public void onResponse(BulkResponse response) {
+                                    listener.onResponse(wholeBulk ? response : reject(response, id, left));
+                                }
+
+                                @Override
+                                public void onFailure(Throwable e) {
+                                    listener.onFailure(e);
+                                }
+                            };
+                        }
+                        try {
+                            return method.invoke(client, args);
+                        } catch (InvocationTargetException e) {
+                            throw e.getCause();
+                        }
+                    }
+                });
+    }
+
+    /**
+     * A client holding back the bulks starting with a document id prefix until a latch is released.
+     * @param sent counted down when such a bulk is sent
+     */
+    private static Client holding(final Client client, final String idPrefix, final CountDownLatch sent,
+                                  final CountDownLatch hold) {
+        return (Client) Proxy.newProxyInstance(Client.class.getClassLoader(), new Class[]{InternalClient.class},
+                new InvocationHandler() {
+                    @Override
+                    public Object invoke(Object proxy, final Method method, final Object[] args) throws Throwable {
+                        if(method.getName().equals("bulk") && args.length == 2
+                                && firstId((BulkRequest) args[0]).startsWith(idPrefix)){
+                            sent.countDown();
+                            new Thread(new Runnable() {
+                                @Override
+                                public void run() {
+                                    try {
+                                        hold.await();
+                                        method.invoke(client, args);
+                                    } catch (Exception e) {
+                                        throw new RuntimeException(e);
+                                    }
+                                }
+                            }).start();
+                            return null;
+                        }
+                        try {
+                            return method.invoke(client, args);
+                        } catch (InvocationTargetException e) {
+                            throw e.getCause();
+                        }
+                    }
+                });
+    }
+
+    private static String firstId(BulkRequest request) {
+        return ((IndexRequest) request.requests().get(0)).id();
+    }
+
+    private static BulkRequest copy(BulkRequest request) throws IOException {
+        final BytesStreamOutput out = new BytesStreamOutput();
+        request.writeTo(out);
+        final BulkRequest copy = new BulkRequest();
+        copy.readFrom(out.bytes().streamInput());
+        return copy;
+    }
+
+    private static BulkResponse reject(BulkResponse response, String id, AtomicInteger left) {
+        final BulkItemResponse[] items = response.getItems();
+        for(int i = 0; i < items.length; i++){
+            if(items[i].getId().equals(id) && left.getAndDecrement() > 0){
+                items[i] = new BulkItemResponse(items[i].getItemId(), items[i].getOpType(),
+                        new BulkItemResponse.Failure(items[i].getIndex(), items[i].getType(), items[i].getId(),
+                                new EsRejectedExecutionException("rejected execution (queue capacity 50) on bulk")));
+            }
+        }
+        return new BulkResponse(items, response.getTookInMillis());
+    }
+
+    private static void delete(File file) {
+        final File[] children = file.listFiles();
+        if(children != null){
+            for(File child: children){
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+}
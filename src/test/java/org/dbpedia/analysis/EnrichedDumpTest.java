@@ -0,0 +1,254 @@
+package org.dbpedia.analysis;
+
+import com.machinelinking.enricher.WikiEnricher;
+import org.codehaus.jackson.JsonNode;
+import org.codehaus.jackson.JsonParser;
+import org.codehaus.jackson.map.ObjectMapper;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * {@link EnrichedDumpWriter}, {@link EnrichedDumpReader} and {@link PageContentCodec}.
+ */
+public class EnrichedDumpTest {
+    private static final ObjectMapper mapper = new ObjectMapper();
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void readsBackEveryPage() throws Exception {
+        final File dir = folder.getRoot();
+        // small chunks, every worker writes several of them
+        write(dir, EnrichedDumpWriter.newGeneration(dir), 64, 1, 2, 3, 4, 5);
+
+        final Map<Integer, Page> pages = read(dir);
+        assertEquals(5, pages.size());
+        for(int pageId = 1; pageId <= 5; pageId++){
+            final Page page = pages.get(pageId);
+            assertEquals("Page " + pageId, page.title);
+            assertEquals("hash" + pageId, page.contentHash);
+            assertEquals(100 + pageId, page.contentBytes);
+            assertEquals("text of " + pageId, page.text);
+        }
+        assertTrue(new File(dir, "generation-00000").list().length > 2);
+    }
+
+    @Test
+    public void readsASingleRecordByLocation() throws Exception {
+        final File dir = folder.getRoot();
+        write(dir, EnrichedDumpWriter.newGeneration(dir), 64, 1, 2, 3);
+
+        for(Page page: read(dir).values()){
+            final EnrichedDumpReader.Record record = EnrichedDumpReader.readRecord(dir, page.location);
+            assertEquals(page.pageId, record.getPageId());
+            assertEquals(page.title, record.getTitle());
+            assertEquals(page.text, text(record.getEnriched()));
+        }
+    }
+
+    @Test
+    public void readsAChunkCutShortUpToItsLastCompleteRecord() throws Exception {
+        final File dir = folder.getRoot();
+        final String generation = EnrichedDumpWriter.newGeneration(dir);
+        write(dir, generation, EnrichedDumpWriter.DEFAULT_CHUNK_BYTES, 1, 2, 3);
+
+        // the index lists a record the chunk only holds half of
+        final File chunk = new File(dir, generation + "/enriched-000-00000" + EnrichedDumpWriter.CHUNK_SUFFIX);
+        final long third = offsetOf(dir, 3);
+        truncate(chunk, third + 4 + (chunk.length() - third - 4) / 2);
+
+        assertEquals(Collections.<Integer>emptySet(), missing(read(dir), 1, 2));
+        assertEquals(2, read(dir).size());
+    }
+
+    @Test
+    public void readsAChunkCutShortInARecordLength() throws Exception {
+        final File dir = folder.getRoot();
+        final String generation = EnrichedDumpWriter.newGeneration(dir);
+        write(dir, generation, EnrichedDumpWriter.DEFAULT_CHUNK_BYTES, 1, 2, 3);
+
+        final File chunk = new File(dir, generation + "/enriched-000-00000" + EnrichedDumpWriter.CHUNK_SUFFIX);
+        truncate(chunk, offsetOf(dir, 3) + 2);
+
+        assertEquals(2, read(dir).size());
+    }
+
+    @Test
+    public void ignoresAnIndexEntryCutShort() throws Exception {
+        final File dir = folder.getRoot();
+        final String generation = EnrichedDumpWriter.newGeneration(dir);
+        write(dir, generation, EnrichedDumpWriter.DEFAULT_CHUNK_BYTES, 1, 2, 3);
+
+        final File idx = new File(dir, generation + "/enriched-000-00000" + EnrichedDumpWriter.INDEX_SUFFIX);
+        truncate(idx, idx.length() - 5);
+
+        assertEquals(Collections.<Integer>emptySet(), missing(read(dir), 1, 2));
+        assertEquals(2, read(dir).size());
+    }
+
+    @Test
+    public void keepsTheRecordOfTheLatestGeneration() throws Exception {
+        final File dir = folder.getRoot();
+        write(dir, EnrichedDumpWriter.newGeneration(dir), 64, 1, 2, 3);
+        final String later = EnrichedDumpWriter.newGeneration(dir);
+        assertEquals("generation-00001", later);
+        try (EnrichedDumpWriter writer = new EnrichedDumpWriter(dir, later, 0)) {
+            writer.write(2, "Page 2", "changed", 200, json("changed text"));
+        }
+
+        final Map<Integer, Page> pages = read(dir);
+        assertEquals(3, pages.size());
+        assertEquals("changed text", pages.get(2).text);
+        assertTrue(pages.get(2).location.startsWith(later + "/"));
+        assertEquals("text of 1", pages.get(1).text);
+    }
+
+    @Test
+    public void keepsAnOlderRecordWhenTheLatestIsCutShort() throws Exception {
+        final File dir = folder.getRoot();
+        write(dir, EnrichedDumpWriter.newGeneration(dir), 64, 1, 2);
+        final String later = EnrichedDumpWriter.newGeneration(dir);
+        try (EnrichedDumpWriter writer = new EnrichedDumpWriter(dir, later, 0)) {
+            writer.write(2, "Page 2", "changed", 200, json("changed text"));
+        }
+        final File chunk = new File(dir, later + "/enriched-000-00000" + EnrichedDumpWriter.CHUNK_SUFFIX);
+        truncate(chunk, chunk.length() - 1);
+
+        assertEquals("text of 2", read(dir).get(2).text);
+    }
+
+    @Test
+    public void flushWritesTheBufferedRecords() throws Exception {
+        final File dir = folder.getRoot();
+        final String generation = EnrichedDumpWriter.newGeneration(dir);
+        try (EnrichedDumpWriter writer = new EnrichedDumpWriter(dir, generation, 0)) {
+            final String location = writer.write(7, "Page 7", "hash7", 107, json("text of 7"));
+            writer.flush();
+            assertEquals("text of 7", text(EnrichedDumpReader.readRecord(dir, location).getEnriched()));
+        }
+    }
+
+    @Test
+    public void decodesTheEncodedContent() throws Exception {
+        final byte[] json = json("encoded text");
+        final PageContentCodec codec = new PageContentCodec();
+        try {
+            final byte[] packed = codec.encode(json);
+            final JsonParser parser = PageContentCodec.decode(packed);
+            assertEquals(mapper.readTree(json), mapper.readTree(parser));
+            // the buffers are reused for the next page
+            assertEquals(mapper.readTree(json("next")), mapper.readTree(PageContentCodec.decode(codec.encode(
+                    json("next")
+            ))));
+        } finally {
+            codec.close();
+        }
+    }
+
+    private static byte[] json(String text) {
+        return ("{\"sections\":[],\"text\":\"" + text + "\"}").getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static String text(JsonParser parser) throws IOException {
+        try {
+            parser.nextToken();
+            return mapper.readTree(parser).get("text").getTextValue();
+        } finally {
+            parser.close();
+        }
+    }
+
+    private static void write(File dir, String generation, long chunkBytes, int... pageIds) throws IOException {
+        try (EnrichedDumpWriter writer = new EnrichedDumpWriter(dir, generation, 0, chunkBytes)) {
+            for(int pageId: pageIds){
+                writer.write(pageId, "Page " + pageId, "hash" + pageId, 100 + pageId, json("text of " + pageId));
+            }
+        }
+    }
+
+    private static long offsetOf(File dir, int pageId) throws IOException {
+        final String location = read(dir).get(pageId).location;
+        return Long.parseLong(location.substring(location.lastIndexOf(':') + 1));
+    }
+
+    private static void truncate(File file, long length) throws IOException {
+        try (RandomAccessFile f = new RandomAccessFile(file, "rw")) {
+            f.setLength(length);
+        }
+    }
+
+    private static Set<Integer> missing(Map<Integer, Page> pages, int... pageIds) {
+        final Set<Integer> missing = new TreeSet<>();
+        for(int pageId: pageIds){
+            if(!pages.containsKey(pageId)){
+                missing.add(pageId);
+            }
+        }
+        return missing;
+    }
+
+    private static Map<Integer, Page> read(File dir) throws IOException {
+        final Collector collector = new Collector();
+        new EnrichedDumpReader(dir).read(Collections.singletonList(collector), new IngestMetrics("test"));
+        assertEquals(0, collector.getErrorPages());
+        return collector.pages;
+    }
+
+    private static class Page {
+        private final int pageId;
+        private final String title;
+        private final String contentHash;
+        private final long contentBytes;
+        private final String location;
+        private final String text;
+
+        private Page(int pageId, String title, String contentHash, long contentBytes, String location, String text) {
+            this.pageId = pageId;
+            this.title = title;
+            this.contentHash = contentHash;
+            this.contentBytes = contentBytes;
+            this.location = location;
+            this.text = text;
+        }
+    }
+
+    /**
+     * Keeps the pages read from a dump, failing on a page read twice.
+     */
+    private static class Collector extends EnrichingPageProcessor {
+        private final Map<Integer, Page> pages = new TreeMap<>();
+
+        @Override
+        protected WikiEnricher createEnricher() {
+            throw new UnsupportedOperationException("the pages are already enriched");
+        }
+
+        @Override
+        protected boolean indexEnrichedPage(int pageId, String title, String contentHash, EnrichedPage enriched)
+                throws IOException {
+            final JsonNode content = mapper.readTree(enriched.getContent());
+            final Page previous = pages.put(pageId, new Page(
+                    pageId, title, contentHash, pageBytes(), dumpLocation(), content.get("text").getTextValue()
+            ));
+            if(previous != null){
+                throw new IOException(String.format("page %d read twice", pageId));
+            }
+            return true;
+        }
+    }
+}
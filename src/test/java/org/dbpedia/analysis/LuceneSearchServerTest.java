@@ -0,0 +1,178 @@
+package org.dbpedia.analysis;
+
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.SearcherManager;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.RAMDirectory;
+import org.codehaus.jackson.JsonNode;
+import org.codehaus.jackson.map.ObjectMapper;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * {@link LuceneSearchServer} answering over http, on an index of several segments written by
+ * {@link LuceneIndexPageProcessor}.
+ */
+public class LuceneSearchServerTest {
+    private static final ObjectMapper mapper = new ObjectMapper();
+    private static final int PAGES = 21;
+    /**
+     * Every page is a page document and two section documents, besides them the index holds two documents without
+     * a page id.
+     */
+    private static final int DOCUMENTS = 3 * PAGES + 2;
+
+    private Directory directory;
+    private SearcherManager searchers;
+    private LuceneSearchServer server;
+    private int port;
+
+    @Before
+    public void start() throws IOException {
+        directory = new RAMDirectory();
+        try (IndexWriter writer = QueryDslParserTest.createWriter(directory)) {
+            QueryDslParserTest.addPages(writer, 1, 7);
+            writer.commit();
+            writer.addDocument(other("other-1"));
+            QueryDslParserTest.addPages(writer, 8, 14);
+            writer.commit();
+            // a segment without any page id
+            writer.addDocument(other("other-2"));
+            writer.commit();
+            QueryDslParserTest.addPages(writer, 15, PAGES);
+        }
+        searchers = new SearcherManager(directory, null);
+        final IndexSearcher searcher = searchers.acquire();
+        try {
+            assertEquals(4, searcher.getIndexReader().leaves().size());
+        } finally {
+            searchers.release(searcher);
+        }
+
+        try (ServerSocket socket = new ServerSocket(0)) {
+            port = socket.getLocalPort();
+        }
+        server = new LuceneSearchServer(searchers, LuceneIndexCreator.createAnalyzer(), "wiki");
+        server.setRefreshInterval(0);
+        server.start(new InetSocketAddress("localhost", port), 2);
+    }
+
+    @After
+    public void stop() throws IOException {
+        server.close();
+        searchers.close();
+        directory.close();
+    }
+
+    @Test
+    public void scanPagesThroughEverySegmentInIndexOrder() throws IOException {
+        // 4 does not divide the 7 pages of a segment, pages end on both sides of every boundary
+        final List<String> ids = scroll("/wiki/page/_search?search_type=scan&scroll=1m&size=4", PAGES);
+        final List<String> expected = new ArrayList<>();
+        for(int pageId = 1; pageId <= PAGES; pageId++){
+            expected.add(Integer.toString(pageId));
+        }
+        assertEquals(expected, ids);
+    }
+
+    @Test
+    public void scanPagesEndingOnASegmentBoundary() throws IOException {
+        // the first segment holds exactly a page of 21 documents, the next one starts the second page
+        final List<String> ids = scroll("/wiki/_search?search_type=scan&scroll=1m&size=21", DOCUMENTS);
+        assertEquals(DOCUMENTS, new HashSet<>(ids).size());
+    }
+
+    @Test
+    public void scrollPagesThroughEveryHit() throws IOException {
+        final List<String> ids = scroll("/wiki/_search?scroll=1m&size=4", DOCUMENTS);
+        assertEquals(DOCUMENTS, new HashSet<>(ids).size());
+    }
+
+    @Test
+    public void minAndMaxSkipTheDocumentsWithoutAValue() throws IOException {
+        final String aggs = "\"aggs\": {\"lo\": {\"min\": {\"field\": \"page_id\"}}, " +
+                "\"hi\": {\"max\": {\"field\": \"page_id\"}}}";
+        JsonNode response = request(200, "/wiki/_search", "{\"query\": {\"match_all\": {}}, " + aggs + "}");
+        assertEquals(1, response.path("aggregations").path("lo").path("value").getIntValue());
+        assertEquals(PAGES, response.path("aggregations").path("hi").path("value").getIntValue());
+
+        response = request(200, "/wiki/_search",
+                "{\"query\": {\"range\": {\"page_id\": {\"gt\": 7, \"lt\": 15}}}, " + aggs + "}");
+        assertEquals(8, response.path("aggregations").path("lo").path("value").getIntValue());
+        assertEquals(14, response.path("aggregations").path("hi").path("value").getIntValue());
+
+        // the hits have no value at all
+        response = request(200, "/wiki/_search", "{\"query\": {\"term\": {\"_type\": \"other\"}}, " + aggs + "}");
+        assertEquals(2, response.path("hits").path("total").getIntValue());
+        assertTrue(response.path("aggregations").path("lo").path("value").isNull());
+        assertTrue(response.path("aggregations").path("hi").path("value").isNull());
+    }
+
+    /**
+     * Read a scroll to its end, which releases it.
+     * @return the ids of the hits in the order they were returned
+     */
+    private List<String> scroll(String search, int total) throws IOException {
+        JsonNode response = request(200, search, "{\"query\": {\"match_all\": {}}}");
+        assertEquals(total, response.path("hits").path("total").getIntValue());
+        final String scrollId = response.path("_scroll_id").getTextValue();
+        final List<String> ids = new ArrayList<>();
+        addIds(response, ids);
+        while(true){
+            response = request(200, "/_search/scroll?scroll=1m", scrollId);
+            if(response.path("hits").path("hits").size() == 0){
+                break;
+            }
+            addIds(response, ids);
+        }
+        request(404, "/_search/scroll", scrollId);
+        return ids;
+    }
+
+    private static void addIds(JsonNode response, List<String> ids) {
+        for(JsonNode hit: response.path("hits").path("hits")){
+            ids.add(hit.path("_id").getTextValue());
+        }
+    }
+
+    private JsonNode request(int status, String path, String body) throws IOException {
+        final HttpURLConnection connection = (HttpURLConnection) new URL("http://localhost:" + port + path)
+                .openConnection();
+        connection.setRequestMethod("POST");
+        connection.setDoOutput(true);
+        try (OutputStream out = connection.getOutputStream()) {
+            out.write(body.getBytes(StandardCharsets.UTF_8));
+        }
+        assertEquals(path, status, connection.getResponseCode());
+        try (InputStream in = status < 400 ? connection.getInputStream() : connection.getErrorStream()) {
+            return mapper.readTree(in);
+        }
+    }
+
+    private static Document other(String id) {
+        final Document doc = new Document();
+        doc.add(new StringField(LuceneIndexPageProcessor.TYPE_FIELD, "other", Field.Store.YES));
+        doc.add(new StringField(LuceneIndexPageProcessor.ID_FIELD, id, Field.Store.YES));
+        return doc;
+    }
+}
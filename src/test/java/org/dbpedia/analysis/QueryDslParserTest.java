@@ -0,0 +1,154 @@
+package org.dbpedia.analysis;
+
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.NoMergePolicy;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.RAMDirectory;
+import org.apache.lucene.util.Version;
+import org.codehaus.jackson.JsonParser;
+import org.codehaus.jackson.map.ObjectMapper;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Set;
+import java.util.TreeSet;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * {@link QueryDslParser} over an index written by {@link LuceneIndexPageProcessor}.
+ */
+public class QueryDslParserTest {
+    private static final ObjectMapper mapper = new ObjectMapper();
+
+    private Directory directory;
+    private DirectoryReader reader;
+    private IndexSearcher searcher;
+    private final QueryDslParser parser = new QueryDslParser(LuceneIndexCreator.createAnalyzer());
+
+    @Before
+    public void index() throws IOException {
+        directory = new RAMDirectory();
+        try (IndexWriter writer = createWriter(directory)) {
+            addPages(writer, 1, 5);
+        }
+        reader = DirectoryReader.open(directory);
+        searcher = new IndexSearcher(reader);
+    }
+
+    @After
+    public void close() throws IOException {
+        reader.close();
+        directory.close();
+    }
+
+    @Test
+    public void boolWithOnlyMustNotMatchesEverythingElse() throws IOException {
+        assertEquals(pages(1, 3, 4, 5), search("{\"bool\": {\"must_not\": {\"term\": {\"page_id\": 2}}}}"));
+        assertEquals(pages(1, 5), search(
+                "{\"bool\": {\"must_not\": [{\"term\": {\"page_id\": 2}}, {\"range\": {\"page_id\": {\"gte\": 3, \"lte\": 4}}}]}}"
+        ));
+        // an empty must_not array leaves every document
+        assertEquals(pages(1, 2, 3, 4, 5), search("{\"bool\": {\"must_not\": []}}"));
+    }
+
+    @Test
+    public void boolWithMustNotAndShouldOnlyMatchesTheShould() throws IOException {
+        assertEquals(pages(3), search(
+                "{\"bool\": {\"should\": {\"terms\": {\"page_id\": [2, 3]}}, \"must_not\": {\"term\": {\"page_id\": 2}}}}"
+        ));
+    }
+
+    @Test
+    public void numericRangesIncludeTheirBoundsOnlyWithGteAndLte() throws IOException {
+        assertEquals(pages(2, 3, 4), search("{\"range\": {\"page_id\": {\"gte\": 2, \"lte\": 4}}}"));
+        assertEquals(pages(3), search("{\"range\": {\"page_id\": {\"gt\": 2, \"lt\": 4}}}"));
+        assertEquals(pages(2, 3), search("{\"range\": {\"page_id\": {\"gte\": 2, \"lt\": 4}}}"));
+        assertEquals(pages(3, 4), search("{\"range\": {\"page_id\": {\"gt\": 2, \"lte\": 4}}}"));
+        // a missing bound leaves the range open
+        assertEquals(pages(4, 5), search("{\"range\": {\"page_id\": {\"gte\": 4}}}"));
+        assertEquals(pages(1), search("{\"range\": {\"page_id\": {\"lt\": 2}}}"));
+    }
+
+    @Test
+    public void termRangesIncludeTheirBoundsOnlyWithGteAndLte() throws IOException {
+        // section_idx is a string field, only the section documents hold it
+        assertEquals(2 * 5, count("{\"range\": {\"section_idx\": {\"gte\": \"0\", \"lte\": \"1\"}}}"));
+        assertEquals(5, count("{\"range\": {\"section_idx\": {\"gt\": \"0\", \"lte\": \"1\"}}}"));
+        assertEquals(5, count("{\"range\": {\"section_idx\": {\"gte\": \"0\", \"lt\": \"1\"}}}"));
+        assertEquals(0, count("{\"range\": {\"section_idx\": {\"gt\": \"0\", \"lt\": \"1\"}}}"));
+    }
+
+    @Test
+    public void matchGoesThroughTheAnalyzerAndTermDoesNot() throws IOException {
+        assertEquals(5, count("{\"match\": {\"section_title\": \"HISTORY\"}}"));
+        assertEquals(0, count("{\"term\": {\"section_title\": \"HISTORY\"}}"));
+        assertEquals(5, count("{\"term\": {\"section_title\": {\"value\": \"history\"}}}"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsAnUnsupportedQuery() throws IOException {
+        search("{\"fuzzy\": {\"title\": \"page\"}}");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsAnUnsupportedBoolField() throws IOException {
+        search("{\"bool\": {\"filter\": {\"match_all\": {}}}}");
+    }
+
+    /**
+     * @return the ids of the pages with at least one matching document
+     */
+    private Set<Integer> search(String query) throws IOException {
+        final Set<Integer> pageIds = new TreeSet<>();
+        for(ScoreDoc hit: searcher.search(parser.parse(mapper.readTree(query)), reader.maxDoc()).scoreDocs){
+            pageIds.add(Integer.parseInt(searcher.doc(hit.doc).get("page_id")));
+        }
+        return pageIds;
+    }
+
+    private int count(String query) throws IOException {
+        return searcher.search(parser.parse(mapper.readTree(query)), 1).totalHits;
+    }
+
+    private static Set<Integer> pages(int... pageIds) {
+        final Set<Integer> pages = new TreeSet<>();
+        for(int pageId: pageIds){
+            pages.add(pageId);
+        }
+        return pages;
+    }
+
+    /**
+     * A writer that never merges, every commit leaves a segment of its own.
+     */
+    static IndexWriter createWriter(Directory directory) throws IOException {
+        final IndexWriterConfig config = new IndexWriterConfig(Version.LUCENE_48, LuceneIndexCreator.createAnalyzer());
+        config.setMergePolicy(NoMergePolicy.NO_COMPOUND_FILES);
+        return new IndexWriter(directory, config);
+    }
+
+    /**
+     * Index the pages <code>first</code> to <code>last</code>, each with an "Introduction" and a "History" section,
+     * as a page document followed by its section documents.
+     */
+    static void addPages(IndexWriter writer, int first, int last) throws IOException {
+        final LuceneIndexPageProcessor processor = new LuceneIndexPageProcessor(writer);
+        for(int pageId = first; pageId <= last; pageId++){
+            final JsonParser json = mapper.getJsonFactory().createJsonParser(
+                    "{\"sections\": [{\"title\": \"Introduction\"}, {\"title\": \"History\"}]}"
+            );
+            final String title = "Page " + pageId;
+            if(!processor.processEnrichedPage(pageId, title, "hash" + pageId, 100, EnrichedPage.read(json, mapper))){
+                throw new IOException(title + " was not indexed");
+            }
+        }
+        processor.release();
+    }
+}